@@ -85,6 +85,30 @@ public final class PropHashMap extends HashMap<YeelightProp, Object> {
         return super.put(key, o);
     }
 
+    /**
+     * Put numeric value without parsing it from string.
+     *
+     * @return previous value associated with the key
+     */
+    @Nullable
+    public Object putInt(@NotNull YeelightProp key, int value) {
+        Object o;
+        switch (key.type) {
+            case YeelightProp.TYPE_INT:
+                o = value;
+                break;
+            case YeelightProp.TYPE_ON_OFF:
+                o = value != 0;
+                break;
+            case YeelightProp.TYPE_COLOR_MODE:
+                o = YeelightProp.ColorMode.from(value);
+                break;
+            default: //string and array types
+                o = String.valueOf(value);
+        }
+        return super.put(key, o);
+    }
+
     /**
      * Get int prop or undefined.
      */
@@ -18,18 +18,37 @@ abstract class Utils {
         return "on".equals(s);
     }
 
-    /** Parse int returning {@link YeelightDevice#UNDEFINED_VALUE} on exception. */
+    /** Parse int returning {@link YeelightDevice#UNDEFINED_VALUE} on errors. */
     static int parseInt(String s){
         return parseInt(s, YeelightDevice.UNDEFINED_VALUE);
     }
 
-    /** Parse int returning default value on exception. */
+    /**
+     * Parse decimal int returning default value if string is null, malformed or out of range.
+     * This does not throw so it's cheap for values that are often invalid.
+     */
     static int parseInt(String s, int defaultVal){
-        try {
-            return Integer.parseInt(s);
-        }catch (NumberFormatException | NullPointerException npe){
-            return defaultVal;
+        if (s == null) return defaultVal;
+        int len = s.length();
+        if (len == 0) return defaultVal;
+        int i = 0;
+        boolean negative = false;
+        char first = s.charAt(0);
+        if (first == '-' || first == '+') {
+            if (len == 1) return defaultVal;
+            negative = first == '-';
+            i = 1;
+        }
+        // accumulate negatively so Integer.MIN_VALUE fits
+        long result = 0;
+        for (; i < len; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return defaultVal;
+            result = result * 10 - digit;
+            if (result < Integer.MIN_VALUE) return defaultVal;
         }
+        if (negative) return (int) result;
+        return result == Integer.MIN_VALUE ? defaultVal : (int) -result;
     }
 
     /**
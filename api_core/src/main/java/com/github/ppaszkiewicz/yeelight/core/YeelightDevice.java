@@ -3,6 +3,8 @@ package com.github.ppaszkiewicz.yeelight.core;
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommand;
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightConnection;
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightConnectionProvider;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightMusicConnection;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightMusicServer;
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightReply;
 import com.github.ppaszkiewicz.yeelight.core.values.YeelightCron;
 import com.github.ppaszkiewicz.yeelight.core.values.YeelightDeviceModel;
@@ -367,6 +369,27 @@ public class YeelightDevice implements YeelightConnection.Listener {
         return conn;
     }
 
+    /**
+     * Async view of this device, its methods return futures of the replies instead of sent commands.
+     * Requires {@link java.util.concurrent.CompletableFuture} (Android API 24).
+     */
+    @NotNull
+    public YeelightDeviceAsync async() {
+        return new YeelightDeviceAsync(this);
+    }
+
+    /**
+     * Create stream of color frames sent at given rate, for high rate color updates that should drop
+     * stale frames instead of queueing them. Stream is not started.
+     *
+     * @param fps target frame rate, reachable only in music mode
+     * @see #startMusicConnection()
+     */
+    @NotNull
+    public YeelightFrameStream frameStream(int fps) {
+        return new YeelightFrameStream(this, fps, YeelightFrameStream.DEFAULT_CAPACITY);
+    }
+
     /**
      * Explicitly set or replace this devices connection instead of relying on provider.
      *
@@ -707,7 +730,23 @@ public class YeelightDevice implements YeelightConnection.Listener {
      */
     @NotNull
     public YeelightCommand setPower(boolean on, int fadeTime, @NotNull PowerMode mode) {
-        return commandFade(set_power, fadeTime, Utils.isOnFromBoolean(on), mode);
+        return commandFade(set_power, fadeTime, powerParams(on, mode));
+    }
+
+    /** Params of set_power for every mode, shared so they're not created each time. */
+    private final static Object[][] POWER_ON_PARAMS = new Object[PowerMode.values().length][];
+    private final static Object[][] POWER_OFF_PARAMS = new Object[PowerMode.values().length][];
+
+    static {
+        for (PowerMode mode : PowerMode.values()) {
+            POWER_ON_PARAMS[mode.ordinal()] = new Object[]{Utils.isOnFromBoolean(true), mode};
+            POWER_OFF_PARAMS[mode.ordinal()] = new Object[]{Utils.isOnFromBoolean(false), mode};
+        }
+    }
+
+    @NotNull
+    private static Object[] powerParams(boolean on, @NotNull PowerMode mode) {
+        return on ? POWER_ON_PARAMS[mode.ordinal()] : POWER_OFF_PARAMS[mode.ordinal()];
     }
 
     /* ************************************************************
@@ -904,7 +943,10 @@ public class YeelightDevice implements YeelightConnection.Listener {
      *************************************************************/
 
     /**
-     * Start music mode.
+     * Start music mode. This only sends the command, device will connect to given server that has to
+     * be hosted separately.
+     *
+     * @see #startMusicConnection()
      */
     @NotNull
     public YeelightCommand startMusicMode(String hostName, int port) {
@@ -919,6 +961,47 @@ public class YeelightDevice implements YeelightConnection.Listener {
         return command(set_music, MusicMode.turn_off);
     }
 
+    /**
+     * Start music mode using {@link YeelightMusicServer#getDefault()}.
+     *
+     * @see #startMusicConnection(YeelightMusicServer)
+     */
+    @NotNull
+    public YeelightMusicConnection startMusicConnection() {
+        return startMusicConnection(YeelightMusicServer.getDefault());
+    }
+
+    /**
+     * Start music mode: device connects back to given server and all commands of this device are sent
+     * thru that connection without quota until music mode ends. Then device switches back to its
+     * current connection.<br>
+     * Commands are sent thru current connection until device connects back. If music connection
+     * already exists it's returned instead.
+     *
+     * @param server server device will connect to, started if needed
+     * @return music connection that became this devices connection
+     */
+    @NotNull
+    public YeelightMusicConnection startMusicConnection(@NotNull YeelightMusicServer server) {
+        YeelightConnection current = getDeviceConnection();
+        if (current instanceof YeelightMusicConnection) return (YeelightMusicConnection) current;
+        YeelightMusicConnection music = new YeelightMusicConnection(this, current, server);
+        setDeviceConnection(music);
+        music.connect();
+        return music;
+    }
+
+    /**
+     * End music mode started with {@link #startMusicConnection()}, switching back to previous connection.
+     *
+     * @return false if music connection did not exist
+     */
+    public boolean stopMusicConnection() {
+        YeelightConnection current = deviceConnection;
+        if (!(current instanceof YeelightMusicConnection)) return false;
+        return current.tryDisconnect();
+    }
+
     /* ************************************************************
         17: set_name
      *************************************************************/
@@ -1472,7 +1555,30 @@ public class YeelightDevice implements YeelightConnection.Listener {
      */
     @NotNull
     private YeelightCommand commandFade(@NotNull YeelightMethod m, int fadeTime, @Nullable Object... params) {
-        return sendCommandMessage(new YeelightCommand(nextCommandID(), m, YeelightCommand.Effect.of(fadeTime), params));
+        return sendCommandMessage(new YeelightCommand(nextCommandID(), m, effectOf(fadeTime), params));
+    }
+
+    /**
+     * Helper to create and send command with single int param (with fade effect) without boxing it.
+     */
+    @NotNull
+    private YeelightCommand commandFade(@NotNull YeelightMethod m, int fadeTime, int param) {
+        return sendCommandMessage(new YeelightCommand.Primitive(nextCommandID(), m, effectOf(fadeTime), param));
+    }
+
+    /**
+     * Helper to create and send command with two int params (with fade effect) without boxing them.
+     */
+    @NotNull
+    private YeelightCommand commandFade(@NotNull YeelightMethod m, int fadeTime, int param0, int param1) {
+        return sendCommandMessage(new YeelightCommand.Primitive(nextCommandID(), m, effectOf(fadeTime), param0, param1));
+    }
+
+    /** Effect of given fade time, reusing default effect if possible. */
+    @NotNull
+    private YeelightCommand.Effect effectOf(int fadeTime) {
+        if (fadeTime == defaultEffect.duration) return defaultEffect;
+        return YeelightCommand.Effect.of(fadeTime);
     }
 
     /**
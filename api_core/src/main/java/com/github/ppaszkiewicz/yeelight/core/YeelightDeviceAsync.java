@@ -0,0 +1,241 @@
+package com.github.ppaszkiewicz.yeelight.core;
+
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommand;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightConnection;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightReply;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightReplyException;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightFlow;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightProp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import static com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod.PowerMode;
+
+/**
+ * Async view of {@link YeelightDevice}, obtained with {@link YeelightDevice#async()}.<br>
+ * Each method sends the same command as its device counterpart and returns future completed with
+ * the reply matched by its id. Any amount of commands can be in flight on a single connection, and
+ * futures of many devices can be joined with {@link #allOf(Collection)}.<br><br>
+ *
+ * Futures complete exceptionally with {@link YeelightReplyException} if device replied with an error or
+ * did not reply in time, or with the cause if command could not be sent or connection closed.
+ * Futures complete on connection threads so dependent stages should not block.<br><br>
+ *
+ * This is a separate class so devices can be used where {@link CompletableFuture} is not available
+ * (Android below API 24).
+ */
+public final class YeelightDeviceAsync {
+    @NotNull
+    private final YeelightDevice device;
+
+    YeelightDeviceAsync(@NotNull YeelightDevice device) {
+        this.device = device;
+    }
+
+    /** Device this sends commands to. */
+    @NotNull
+    public YeelightDevice getDevice() {
+        return device;
+    }
+
+    /** Send command to the device. */
+    @NotNull
+    public CompletableFuture<YeelightReply> send(@NotNull YeelightCommand command) {
+        return replyOf(device.sendCommandMessage(command));
+    }
+
+    /** @see YeelightDevice#updateProps(YeelightProp...) */
+    @NotNull
+    public CompletableFuture<YeelightReply> updateProps(@NotNull YeelightProp... props) {
+        return replyOf(device.updateProps(props));
+    }
+
+    /** @see YeelightDevice#setPower(boolean) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setPower(boolean on) {
+        return replyOf(device.setPower(on));
+    }
+
+    /** @see YeelightDevice#setPower(boolean, int, PowerMode) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setPower(boolean on, int fadeTime, @NotNull PowerMode mode) {
+        return replyOf(device.setPower(on, fadeTime, mode));
+    }
+
+    /** @see YeelightDevice#togglePower() */
+    @NotNull
+    public CompletableFuture<YeelightReply> togglePower() {
+        return replyOf(device.togglePower());
+    }
+
+    /** @see YeelightDevice#setBrightness(int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setBrightness(int brightness) {
+        return replyOf(device.setBrightness(brightness));
+    }
+
+    /** @see YeelightDevice#setBrightness(int, int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setBrightness(int brightness, int fadeTime) {
+        return replyOf(device.setBrightness(brightness, fadeTime));
+    }
+
+    /** @see YeelightDevice#setColorTemp(int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setColorTemp(int temperature) {
+        return replyOf(device.setColorTemp(temperature));
+    }
+
+    /** @see YeelightDevice#setColorTemp(int, int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setColorTemp(int temperature, int fadeTime) {
+        return replyOf(device.setColorTemp(temperature, fadeTime));
+    }
+
+    /** @see YeelightDevice#setColor(int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setColor(int color) {
+        return replyOf(device.setColor(color));
+    }
+
+    /** @see YeelightDevice#setColor(int, int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setColor(int color, int fadeTime) {
+        return replyOf(device.setColor(color, fadeTime));
+    }
+
+    /** @see YeelightDevice#setHSVColor(int, int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setHSVColor(int hue, int saturation) {
+        return replyOf(device.setHSVColor(hue, saturation));
+    }
+
+    /** @see YeelightDevice#setHSVColor(int, int, int) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setHSVColor(int hue, int saturation, int fadeTime) {
+        return replyOf(device.setHSVColor(hue, saturation, fadeTime));
+    }
+
+    /** @see YeelightDevice#startColorFlow(YeelightFlow) */
+    @NotNull
+    public CompletableFuture<YeelightReply> startColorFlow(@NotNull YeelightFlow flow) {
+        return replyOf(device.startColorFlow(flow));
+    }
+
+    /** @see YeelightDevice#stopColorFlow() */
+    @NotNull
+    public CompletableFuture<YeelightReply> stopColorFlow() {
+        return replyOf(device.stopColorFlow());
+    }
+
+    /** @see YeelightDevice#setDefault() */
+    @NotNull
+    public CompletableFuture<YeelightReply> setDefault() {
+        return replyOf(device.setDefault());
+    }
+
+    /** @see YeelightDevice#setName(String) */
+    @NotNull
+    public CompletableFuture<YeelightReply> setName(@NotNull String name) {
+        return replyOf(device.setName(name));
+    }
+
+    /**
+     * Send command thru given connection.
+     */
+    @NotNull
+    public static CompletableFuture<YeelightReply> send(@NotNull YeelightConnection connection,
+                                                        @NotNull YeelightCommand command) {
+        // listener is attached before sending so connection can't complete the command first,
+        // though it would be delivered either way
+        CompletableFuture<YeelightReply> future = replyOf(command);
+        connection.send(command);
+        return future;
+    }
+
+    /**
+     * Future completed with reply of given command, which might already be sent.
+     * Listener already set on the command is chained and still receives the reply.
+     */
+    @NotNull
+    public static CompletableFuture<YeelightReply> replyOf(@NotNull YeelightCommand command) {
+        FutureListener listener = new FutureListener(command.getListener());
+        command.onReply(listener);
+        return listener.future;
+    }
+
+    /**
+     * Future completed with replies of all given futures in the same order, or exceptionally
+     * when any of them fails.
+     */
+    @SafeVarargs
+    @NotNull
+    public static CompletableFuture<List<YeelightReply>> allOf(@NotNull CompletableFuture<YeelightReply>... futures) {
+        List<CompletableFuture<YeelightReply>> list = new ArrayList<>(futures.length);
+        for (CompletableFuture<YeelightReply> f : futures) {
+            list.add(f);
+        }
+        return allOf(list);
+    }
+
+    /**
+     * Future completed with replies of all given futures in the same order, or exceptionally
+     * when any of them fails.
+     */
+    @NotNull
+    public static CompletableFuture<List<YeelightReply>> allOf(@NotNull Collection<CompletableFuture<YeelightReply>> futures) {
+        // copy keeps the order even if collection changes meanwhile
+        final List<CompletableFuture<YeelightReply>> list = new ArrayList<>(futures);
+        final CompletableFuture<List<YeelightReply>> result = new CompletableFuture<>();
+        CompletableFuture.allOf(list.toArray(new CompletableFuture<?>[list.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, Throwable error) {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                    return;
+                }
+                List<YeelightReply> replies = new ArrayList<>(list.size());
+                for (CompletableFuture<YeelightReply> f : list) {
+                    replies.add(f.join());
+                }
+                result.complete(replies);
+            }
+        });
+        return result;
+    }
+
+    /** Completes future with the reply of the command, then passes it to chained listener. */
+    private static final class FutureListener implements YeelightCommand.ErrorListener {
+        final CompletableFuture<YeelightReply> future = new CompletableFuture<>();
+        @Nullable
+        private final YeelightCommand.Listener chained;
+
+        FutureListener(@Nullable YeelightCommand.Listener chained) {
+            this.chained = chained;
+        }
+
+        @Override
+        public void onReply(@NotNull YeelightReply reply) {
+            if (reply.isError()) {
+                future.completeExceptionally(new YeelightReplyException(reply));
+            } else {
+                future.complete(reply);
+            }
+            if (chained != null) chained.onReply(reply);
+        }
+
+        @Override
+        public void onFailure(@NotNull YeelightCommand command, @NotNull Throwable error) {
+            future.completeExceptionally(error);
+            if (chained instanceof YeelightCommand.ErrorListener)
+                ((YeelightCommand.ErrorListener) chained).onFailure(command, error);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.github.ppaszkiewicz.yeelight.core;
+
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommand;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommandEncoder;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightConnection;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightMusicConnection;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightRateGovernor;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightSocketThreadImpl;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightTimer;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stream of color frames sent to a single device at a fixed rate, obtained with
+ * {@link YeelightDevice#frameStream(int)}.<br>
+ * Producer writes frames into a ring buffer and sender running on {@link YeelightTimer} picks only
+ * the newest frame on each tick, so frames that were replaced before they could be sent are dropped
+ * instead of queued. Each frame is sent as a single step color flow, so color, brightness and
+ * transition duration change together.<br>
+ * Picked frame is written on the send executor, as writes of {@link YeelightMusicConnection} block and
+ * must not stall the shared timer. No frame is picked while previous one is still being written.<br><br>
+ *
+ * Over {@link YeelightMusicConnection} frames are sent at target rate. Over other connections rate is
+ * limited to the command quota: rate of connection {@link YeelightRateGovernor} if it has one, or
+ * {@link YeelightRateGovernor#DEVICE_QUOTA_PER_MINUTE} otherwise.<br>
+ * Ticks are aligned to timer tick ({@link YeelightTimer#DEFAULT_TICK_MS}), so high rates are kept on
+ * average with some jitter.<br><br>
+ *
+ * {@link #write} must be called from a single thread at a time.
+ */
+public final class YeelightFrameStream {
+    /** Default amount of frames kept in the ring buffer. */
+    public static final int DEFAULT_CAPACITY = 16;
+    /** Shortest transition device accepts. */
+    public static final int MIN_DURATION_MS = 50;
+    /** Highest supported frame rate. */
+    public static final int MAX_FPS = 100;
+    private static final String TAG = "YeelightFrameStream";
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    @NotNull
+    private final YeelightDevice device;
+    // ring buffer written only by producer, sequence publishes written slots
+    private final int[] colors;
+    private final int[] brightness;
+    private final int[] durations;
+    private final int mask;
+    /** Sequence of next frame to write. */
+    private volatile long writeSequence = 0;
+
+    // fields below are only used by sender (timer thread) once started
+    /** Sequence of last sent frame, -1 if nothing was sent yet. */
+    private long sentSequence = -1;
+    private long nextTickNanos;
+    private final SendTimeout sendTimeout = new SendTimeout();
+    /** True while picked frame is being written. */
+    private final AtomicBoolean isSending = new AtomicBoolean();
+    @NotNull
+    private volatile Executor sendExecutor = YeelightSocketThreadImpl.getDefaultWriteExecutor();
+
+    private volatile long periodNanos;
+    private volatile boolean isRunning = false;
+    // stats
+    private volatile long sentCount = 0;
+    private volatile long droppedCount = 0;
+    private volatile long lateCount = 0;
+
+    YeelightFrameStream(@NotNull YeelightDevice device, int fps, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.device = device;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        colors = new int[size];
+        brightness = new int[size];
+        durations = new int[size];
+        mask = size - 1;
+        setFps(fps);
+    }
+
+    /**
+     * Change target frame rate.
+     */
+    @NotNull
+    public YeelightFrameStream setFps(int fps) {
+        if (fps < 1 || fps > MAX_FPS) throw new IllegalArgumentException("fps must be between 1 and " + MAX_FPS + ": " + fps);
+        periodNanos = NANOS_PER_SECOND / fps;
+        return this;
+    }
+
+    /** Target frame rate. */
+    public int getFps() {
+        return (int) (NANOS_PER_SECOND / periodNanos);
+    }
+
+    /**
+     * Set executor frames are written on. Default is {@link YeelightSocketThreadImpl#getDefaultWriteExecutor()}.
+     */
+    @NotNull
+    public YeelightFrameStream setSendExecutor(@NotNull Executor executor) {
+        sendExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Write new frame. Frame is sent on next tick unless newer frame is written before that.
+     *
+     * @param color      rgb color
+     * @param brightness brightness 1 - 100
+     * @param durationMs transition duration, at least {@link #MIN_DURATION_MS}
+     */
+    public void write(int color, int brightness, int durationMs) {
+        long seq = writeSequence;
+        int slot = (int) (seq & mask);
+        colors[slot] = color & 0xFFFFFF;
+        this.brightness[slot] = Math.max(1, Math.min(100, brightness));
+        durations[slot] = Math.max(MIN_DURATION_MS, durationMs);
+        // volatile write publishes the frame
+        writeSequence = seq + 1;
+    }
+
+    /**
+     * Start sending frames.
+     */
+    public synchronized void start() {
+        if (isRunning) return;
+        isRunning = true;
+        nextTickNanos = System.nanoTime();
+        YeelightTimer.getDefault().schedule(sendTimeout, 0);
+    }
+
+    /**
+     * Stop sending frames. Frame that is being sent right now might still be sent.
+     */
+    public synchronized void stop() {
+        isRunning = false;
+        sendTimeout.cancel();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /** Amount of frames written by producer. */
+    public long getWrittenCount() {
+        return writeSequence;
+    }
+
+    /** Amount of frames sent to the device. */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /** Amount of frames dropped because newer frame was written before they were sent. */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** Amount of ticks that ran later than half of the frame period. */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    /** Hand newest frame to send executor and schedule next tick. Runs on timer thread. */
+    private void tick() {
+        if (!isRunning) return;
+        long now = System.nanoTime();
+        long period = periodNanos;
+        YeelightConnection conn = null;
+        if (device.canConnect()) {
+            conn = device.getDeviceConnection();
+            if (!(conn instanceof YeelightMusicConnection) || !conn.isConnected()) {
+                // keep within the quota
+                YeelightRateGovernor governor = conn.getRateGovernor();
+                double perMinute = governor != null ? governor.getRate() : YeelightRateGovernor.DEVICE_QUOTA_PER_MINUTE;
+                period = Math.max(period, (long) (NANOS_PER_MINUTE / perMinute));
+            }
+        }
+        if (now - nextTickNanos > period / 2) lateCount++;
+        long latest = writeSequence - 1;
+        // frame that is still being written holds newer frames back until a later tick
+        if (conn != null && latest > sentSequence && isSending.compareAndSet(false, true)) {
+            int slot = (int) (latest & mask);
+            int color = colors[slot];
+            int bright = brightness[slot];
+            int duration = durations[slot];
+            // producer could have wrapped around and overwritten the slot while it was read
+            if (writeSequence - latest < colors.length) {
+                long previousSequence = sentSequence;
+                long previousDropped = droppedCount;
+                droppedCount += latest - sentSequence - 1;
+                sentSequence = latest;
+                try {
+                    sendExecutor.execute(new FrameSend(conn, new FrameCommand(conn.nextMessageId(), color, bright, duration)));
+                } catch (RuntimeException e) {
+                    // frame was not picked after all, next tick retries it
+                    YLog.e(TAG, "frame send rejected: " + e);
+                    sentSequence = previousSequence;
+                    droppedCount = previousDropped;
+                    isSending.set(false);
+                }
+            } else {
+                isSending.set(false);
+            }
+        }
+        // don't try to catch up with ticks that were missed
+        nextTickNanos = Math.max(nextTickNanos + period, now);
+        synchronized (this) {
+            if (isRunning) {
+                YeelightTimer.getDefault().schedule(sendTimeout,
+                        TimeUnit.NANOSECONDS.toMillis(nextTickNanos - System.nanoTime()));
+            }
+        }
+    }
+
+    private final class SendTimeout extends YeelightTimer.Timeout {
+        @Override
+        public void run() {
+            tick();
+        }
+    }
+
+    /** Writes picked frame. */
+    private final class FrameSend implements Runnable {
+        @NotNull
+        private final YeelightConnection conn;
+        @NotNull
+        private final FrameCommand frame;
+
+        FrameSend(@NotNull YeelightConnection conn, @NotNull FrameCommand frame) {
+            this.conn = conn;
+            this.frame = frame;
+        }
+
+        @Override
+        public void run() {
+            try {
+                conn.send(frame);
+                sentCount++;
+            } finally {
+                isSending.set(false);
+            }
+        }
+    }
+
+    /** Single step color flow that stays on the frame color. */
+    private static final class FrameCommand extends YeelightCommand {
+        private final int color;
+        private final int brightness;
+        private final int duration;
+
+        FrameCommand(int id, int color, int brightness, int duration) {
+            super(id, YeelightMethod.start_cf, null, (Object[]) null);
+            this.color = color;
+            this.brightness = brightness;
+            this.duration = duration;
+            setReplyTimeout(TIMEOUT_NONE);
+        }
+
+        @Override
+        protected void encodeParams(@NotNull YeelightCommandEncoder encoder) {
+            // count 1, stay on last state, flow expression "duration,mode(color),value,brightness"
+            encoder.param(1);
+            encoder.param(1);
+            encoder.param(duration + ",1," + color + "," + brightness);
+        }
+
+        @Override
+        public String toString() {
+            return "YeelightCommand[" + id + ", " + method + ", frame " + Integer.toHexString(color) + "]";
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.github.ppaszkiewicz.yeelight.core.YLog;
 import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 
@@ -12,10 +13,13 @@ import java.io.IOException;
  * updates can be properly received.<br><br>
  *
  * This is an abstract base, inheriting classes should use desired delay/schedule implementations.
+ * {@link YeelightTimerAutoConnection} runs timeouts on shared {@link YeelightTimer}.
  */
 public abstract class YeelightAutoConnection extends YeelightConnection {
     private final static String TAG = "YeeDeviceAutoConn";
     private final TimeoutRunnable mTimeoutRunnable = new TimeoutRunnable();
+    @Nullable
+    private final YeelightSocket.Factory socketFactory;
     private final YeelightSocket<?> socket;
 
     /**
@@ -23,7 +27,18 @@ public abstract class YeelightAutoConnection extends YeelightConnection {
      * @param device device this connection is being created for
      * */
     protected YeelightAutoConnection(YeelightDevice device) {
+        this(device, null);
+    }
+
+    /**
+     * Stateless connection.
+     * @param device device this connection is being created for
+     * @param socketFactory factory of socket for this connection, for example {@link YeelightSocketSelectorImpl#FACTORY}.
+     *                      If null Thread implementation is used.
+     * */
+    protected YeelightAutoConnection(YeelightDevice device, @Nullable YeelightSocket.Factory socketFactory) {
         super(device);
+        this.socketFactory = socketFactory;
         socket = createSocket();
     }
 
@@ -33,13 +48,21 @@ public abstract class YeelightAutoConnection extends YeelightConnection {
         addConnectionListenerInterceptor(ListenerInterceptor.of(new DisconnectListenerDelegate()));
     }
 
-    /** Create socket implementation for this connection. By default Thread implementation is used.<br>
+    /** Create socket implementation for this connection. By default socket factory provided in the
+     * constructor is used, or Thread implementation if there was none.<br>
      * Note that this is called during constructor so not all fields might be initialized yet. */
     @NotNull
     protected YeelightSocket<? extends YeelightAutoConnection> createSocket(){
+        if (socketFactory != null) return socketFactory.create(this);
         return new YeelightAutoSocket(this);
     }
 
+    /** Socket of this connection, for example to observe its {@link YeelightSocket.State}. */
+    @NotNull
+    public YeelightSocket<?> getSocket() {
+        return socket;
+    }
+
     @Override
     public boolean isConnecting() {
         return socket.isConnecting();
@@ -81,9 +104,15 @@ public abstract class YeelightAutoConnection extends YeelightConnection {
 
     @Override
     public void disconnect() throws IOException {
-        if(socket.isConnected()) {
-            socket.close();
-        }
+        // socket ignores close in states it can't be closed from, this also cancels connect in progress
+        socket.close();
+    }
+
+    /** Auto disconnect is cancelled, socket closes when drained. */
+    @Override
+    public void drain(long timeoutMs, @Nullable DrainListener listener) {
+        cancelTimeout(mTimeoutRunnable);
+        socket.drain(timeoutMs, listener);
     }
 
     private class TimeoutRunnable implements Runnable{
@@ -4,6 +4,7 @@ import com.github.ppaszkiewicz.yeelight.core.YLog;
 import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 
@@ -13,35 +14,78 @@ import java.io.IOException;
  */
 public class YeelightBasicConnection extends YeelightConnection {
     private final static String TAG = "YeeDeviceBasicConn";
+    @Nullable
+    private final YeelightSocket.Factory socketFactory;
     private final YeelightSocket socket;
 
     public static class PoolProvider extends YeelightConnectionPool<YeelightBasicConnection> {
+        @Nullable
+        private final YeelightSocket.Factory socketFactory;
+
+        public PoolProvider() {
+            this(null);
+        }
+
+        /**
+         * @param socketFactory factory of sockets for created connections, for example
+         *                      {@link YeelightSocketSelectorImpl#FACTORY}. If null Thread implementation is used.
+         */
+        public PoolProvider(@Nullable YeelightSocket.Factory socketFactory) {
+            this.socketFactory = socketFactory;
+        }
+
         @Override
         protected YeelightBasicConnection instantiateConnection(@NotNull YeelightDevice device) {
-            return new YeelightBasicConnection(device);
+            return new YeelightBasicConnection(device, socketFactory);
         }
     }
 
     public YeelightBasicConnection(@NotNull YeelightDevice device) {
+        this(device, null);
+    }
+
+    /**
+     * Connection to the device that starts connecting immediately.
+     *
+     * @param socketFactory factory of socket for this connection. If null Thread implementation is used.
+     */
+    public YeelightBasicConnection(@NotNull YeelightDevice device, @Nullable YeelightSocket.Factory socketFactory) {
         super(device);
+        this.socketFactory = socketFactory;
         socket = createSocket();
         connect();
     }
 
     public YeelightBasicConnection(long deviceId, @NotNull String address, int port) {
+        this(deviceId, address, port, null);
+    }
+
+    /**
+     * @param socketFactory factory of socket for this connection. If null Thread implementation is used.
+     */
+    public YeelightBasicConnection(long deviceId, @NotNull String address, int port, @Nullable YeelightSocket.Factory socketFactory) {
         super(deviceId, address, port);
+        this.socketFactory = socketFactory;
         socket = createSocket();
     }
 
     /**
-     * Create socket implementation for this connection. By default Thread implementation is used.<br>
+     * Create socket implementation for this connection. By default socket factory provided in the
+     * constructor is used, or Thread implementation if there was none.<br>
      * Note that this is called during constructor so not all fields might be initialized yet.
      */
     @NotNull
     protected YeelightSocket<YeelightBasicConnection> createSocket() {
+        if (socketFactory != null) return socketFactory.create(this);
         return new YeelightSocketThreadImpl<>(this);
     }
 
+    /** Socket of this connection, for example to observe its {@link YeelightSocket.State}. */
+    @NotNull
+    public YeelightSocket<?> getSocket() {
+        return socket;
+    }
+
     /**
      * Send commands.
      */
@@ -76,10 +120,16 @@ public class YeelightBasicConnection extends YeelightConnection {
 
     @Override
     public void disconnect() throws IOException {
-        if (socket.isConnected()) {
-            socket.close();
-        } else
+        YeelightSocket.State s = socket.getState();
+        if (s == YeelightSocket.State.IDLE || s == YeelightSocket.State.CLOSED)
             YLog.i(TAG, "disconnect(): Socket already disconnected " + deviceId);
+        // socket ignores close in states it can't be closed from, this also cancels connect in progress
+        socket.close();
+    }
+
+    @Override
+    public void drain(long timeoutMs, @Nullable DrainListener listener) {
+        socket.drain(timeoutMs, listener);
     }
 
     @Override
@@ -0,0 +1,407 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
+import com.github.ppaszkiewicz.yeelight.core.utils.LongConcurrentMap;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends one logical frame (the same change) to many devices of a {@link YeelightConnectionPool} so
+ * it lands on all of them at about the same time.<br>
+ * One way latency of each device is estimated as half of its smoothed round trip time
+ * ({@link YeelightConnection#getRttEstimator()}). Devices with the highest latency are sent to first
+ * and others are delayed by the difference, capped by {@link #setMaxCompensation(long)}. Devices
+ * without any round trip samples yet are treated as having no latency.<br><br>
+ *
+ * Sending runs on the calling thread, which is blocked for the compensation time (difference between
+ * highest and lowest latency, at most max compensation) of every broadcast. It parks and busy spins for
+ * the last {@value #SPIN_THRESHOLD_MICROS}us before each delayed send, as timer ticks are too coarse for
+ * it, so broadcast must not be called from socket or timer threads. Each frame reports skew between
+ * estimated landing times, planned when it's sent and measured from the replies once all of them arrive.<br>
+ * Listener already set on created commands is chained and receives replies as usual.<br>
+ * Commands held by {@link YeelightRateGovernor} or waiting for connection are not compensated.
+ */
+public final class YeelightBroadcastScheduler {
+    private final static String TAG = "YeelightBroadcast";
+    /** Default max delay of a single device. */
+    public final static long DEFAULT_MAX_COMPENSATION_MS = 100;
+    /** Remaining wait below which sender spins instead of parking, parking is too coarse for it. */
+    private final static long SPIN_THRESHOLD_MICROS = 200;
+    private final static long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(SPIN_THRESHOLD_MICROS);
+
+    @NotNull
+    private final YeelightConnectionPool<?> pool;
+    private volatile long maxCompensationNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_COMPENSATION_MS);
+
+    // measured skew stats, guarded by this
+    private long frameCount = 0;
+    private long lastSkewNanos = -1;
+    private long averageSkewNanos = -1;
+    private long maxSkewNanos = -1;
+
+    public YeelightBroadcastScheduler(@NotNull YeelightConnectionPool<?> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set max time any device can be delayed by to compensate for its lower latency.
+     */
+    @NotNull
+    public YeelightBroadcastScheduler setMaxCompensation(long maxCompensationMs) {
+        if (maxCompensationMs < 0) throw new IllegalArgumentException("max compensation can't be negative: " + maxCompensationMs);
+        maxCompensationNanos = TimeUnit.MILLISECONDS.toNanos(maxCompensationMs);
+        return this;
+    }
+
+    /** Max time any device can be delayed by. */
+    public long getMaxCompensation() {
+        return TimeUnit.NANOSECONDS.toMillis(maxCompensationNanos);
+    }
+
+    /**
+     * Send the same command to all connections of the pool.
+     */
+    @NotNull
+    public Frame broadcast(@NotNull YeelightMethod method, @Nullable YeelightCommand.Effect effect, @Nullable Object... params) {
+        return broadcast(new MethodFactory(method, effect, params));
+    }
+
+    /**
+     * Send commands created by the factory to all connections of the pool.
+     */
+    @NotNull
+    public Frame broadcast(@NotNull CommandFactory factory) {
+        LongConcurrentMap.Snapshot<? extends YeelightConnection> snapshot = pool.getConnectionSnapshot();
+        List<YeelightConnection> connections = new ArrayList<>(snapshot.size());
+        for (YeelightConnection conn : snapshot) {
+            connections.add(conn);
+        }
+        return send(connections, factory);
+    }
+
+    /**
+     * Send the same command to given devices, their connections are obtained from the pool.
+     */
+    @NotNull
+    public Frame broadcast(@NotNull Collection<? extends YeelightDevice> devices, @NotNull YeelightMethod method,
+                           @Nullable YeelightCommand.Effect effect, @Nullable Object... params) {
+        return broadcast(devices, new MethodFactory(method, effect, params));
+    }
+
+    /**
+     * Send commands created by the factory to given devices, their connections are obtained from the pool.
+     */
+    @NotNull
+    public Frame broadcast(@NotNull Collection<? extends YeelightDevice> devices, @NotNull CommandFactory factory) {
+        List<YeelightConnection> connections = new ArrayList<>(devices.size());
+        for (YeelightDevice device : devices) {
+            connections.add(pool.getConnection(device));
+        }
+        return send(connections, factory);
+    }
+
+    @NotNull
+    private Frame send(@NotNull List<YeelightConnection> connections, @NotNull CommandFactory factory) {
+        int count = connections.size();
+        Target[] targets = new Target[count];
+        long maxLatency = 0;
+        for (int i = 0; i < count; i++) {
+            YeelightConnection conn = connections.get(i);
+            Target t = new Target(conn, factory.create(conn), conn.getRttEstimator().getSmoothedNanos() / 2);
+            targets[i] = t;
+            maxLatency = Math.max(maxLatency, t.latencyNanos);
+        }
+        long maxOffset = maxCompensationNanos;
+        for (Target t : targets) {
+            t.offsetNanos = Math.min(maxLatency - t.latencyNanos, maxOffset);
+        }
+        Arrays.sort(targets, BY_OFFSET);
+        Frame frame = new Frame(targets);
+        long start = System.nanoTime();
+        for (Target t : targets) {
+            waitUntil(start + t.offsetNanos);
+            t.command.onReply(new TargetListener(frame, t, t.command.getListener()));
+            try {
+                t.connection.send(t.command);
+            } catch (RuntimeException e) {
+                // released connection, other devices should still get the frame
+                YLog.e(TAG, "broadcast@" + t.connection.deviceId + ": " + e.getMessage());
+                t.command.completeWithFailure(e);
+            }
+            t.calledAtNanos = System.nanoTime();
+        }
+        frame.onSent();
+        return frame;
+    }
+
+    /**
+     * Park until given time, spinning for the final part as parking overshoots it. Blocks calling
+     * thread for at most max compensation.
+     */
+    private static void waitUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private synchronized void onFrameMeasured(long skewNanos) {
+        frameCount++;
+        lastSkewNanos = skewNanos;
+        averageSkewNanos = averageSkewNanos < 0 ? skewNanos : averageSkewNanos + (skewNanos - averageSkewNanos) / 8;
+        maxSkewNanos = Math.max(maxSkewNanos, skewNanos);
+    }
+
+    /** Amount of frames that received all replies. */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /** Measured skew of last frame in milliseconds, -1 if there was none. */
+    public synchronized double getLastSkewMs() {
+        return toMs(lastSkewNanos);
+    }
+
+    /** Moving average of measured skew in milliseconds, -1 if there was no frame yet. */
+    public synchronized double getAverageSkewMs() {
+        return toMs(averageSkewNanos);
+    }
+
+    /** Highest measured skew in milliseconds, -1 if there was no frame yet. */
+    public synchronized double getMaxSkewMs() {
+        return toMs(maxSkewNanos);
+    }
+
+    /** Forget measured skew stats. */
+    public synchronized void resetStats() {
+        frameCount = 0;
+        lastSkewNanos = -1;
+        averageSkewNanos = -1;
+        maxSkewNanos = -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YeelightBroadcastScheduler[frames " + frameCount + ", skew last " + getLastSkewMs()
+                + "ms, avg " + getAverageSkewMs() + "ms, max " + getMaxSkewMs() + "ms]";
+    }
+
+    private static double toMs(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0;
+    }
+
+    /**
+     * Creates command of a frame for each connection.
+     */
+    public interface CommandFactory {
+        /**
+         * Create command for given connection, it should use {@link YeelightConnection#nextMessageId()}.
+         */
+        @NotNull
+        YeelightCommand create(@NotNull YeelightConnection connection);
+    }
+
+    /**
+     * Single frame sent to many devices.
+     */
+    public final class Frame {
+        @NotNull
+        private final Target[] targets;
+        /** Amount of commands that did not complete yet. */
+        private final AtomicInteger pending;
+        /** Opened after measured skew is known. */
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private long plannedSkewNanos = -1;
+        private long measuredSkewNanos = -1;
+
+        Frame(@NotNull Target[] targets) {
+            this.targets = targets;
+            pending = new AtomicInteger(targets.length);
+            if (targets.length == 0) completed.countDown();
+        }
+
+        /** Skew of landing times estimated from round trip times before sending. */
+        private synchronized void onSent() {
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (Target t : targets) {
+                long sentAt = t.command.getSentAtNanos();
+                if (sentAt == 0) sentAt = t.calledAtNanos;
+                long landing = sentAt + t.latencyNanos;
+                min = Math.min(min, landing);
+                max = Math.max(max, landing);
+            }
+            plannedSkewNanos = targets.length > 0 ? max - min : 0;
+        }
+
+        /** Called for each target once its command completes. */
+        void onTargetCompleted() {
+            if (pending.decrementAndGet() != 0) return;
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (Target t : targets) {
+                if (t.landingNanos == 0) continue;
+                min = Math.min(min, t.landingNanos);
+                max = Math.max(max, t.landingNanos);
+            }
+            if (min <= max) {
+                synchronized (this) {
+                    measuredSkewNanos = max - min;
+                }
+                onFrameMeasured(max - min);
+            }
+            completed.countDown();
+        }
+
+        /** Amount of devices this frame was sent to. */
+        public int getDeviceCount() {
+            return targets.length;
+        }
+
+        /** Delay applied to given device in milliseconds, -1 if frame was not sent to it. */
+        public double getOffsetMs(long deviceId) {
+            for (Target t : targets) {
+                if (t.connection.deviceId == deviceId) return toMs(t.offsetNanos);
+            }
+            return -1;
+        }
+
+        /**
+         * Commands sent to all devices, in the order they were sent. Setting their listener replaces
+         * the one measuring this frame, set it in {@link CommandFactory} instead.
+         */
+        @NotNull
+        public List<YeelightCommand> getCommands() {
+            List<YeelightCommand> commands = new ArrayList<>(targets.length);
+            for (Target t : targets) {
+                commands.add(t.command);
+            }
+            return commands;
+        }
+
+        /** Skew of landing times estimated before sending, in milliseconds. */
+        public synchronized double getPlannedSkewMs() {
+            return toMs(plannedSkewNanos);
+        }
+
+        /**
+         * Skew of landing times estimated from the replies in milliseconds, -1 until all commands
+         * complete or if no device replied.
+         */
+        public synchronized double getMeasuredSkewMs() {
+            return toMs(measuredSkewNanos);
+        }
+
+        /** True if all commands of this frame completed. */
+        public boolean isCompleted() {
+            return completed.getCount() == 0;
+        }
+
+        /**
+         * Block until all commands complete.
+         *
+         * @return true if all commands completed in time
+         */
+        public boolean await(long timeoutMs) throws InterruptedException {
+            return completed.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Device frame is sent to. */
+    private static final class Target {
+        @NotNull
+        final YeelightConnection connection;
+        @NotNull
+        final YeelightCommand command;
+        final long latencyNanos;
+        long offsetNanos;
+        long calledAtNanos;
+        /** Landing time estimated from reply, 0 if there was no reply. Written before latch countdown. */
+        volatile long landingNanos;
+
+        Target(@NotNull YeelightConnection connection, @NotNull YeelightCommand command, long latencyNanos) {
+            this.connection = connection;
+            this.command = command;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    private static final Comparator<Target> BY_OFFSET = new Comparator<Target>() {
+        @Override
+        public int compare(Target o1, Target o2) {
+            return o1.offsetNanos < o2.offsetNanos ? -1 : (o1.offsetNanos == o2.offsetNanos ? 0 : 1);
+        }
+    };
+
+    /**
+     * Estimates when command landed on the device as half way between writing it and its reply, then
+     * passes the reply to listener that was set on the command before.
+     */
+    private static final class TargetListener implements YeelightCommand.ErrorListener {
+        @NotNull
+        private final Frame frame;
+        @NotNull
+        private final Target target;
+        @Nullable
+        private final YeelightCommand.Listener chained;
+
+        TargetListener(@NotNull Frame frame, @NotNull Target target, @Nullable YeelightCommand.Listener chained) {
+            this.frame = frame;
+            this.target = target;
+            this.chained = chained;
+        }
+
+        @Override
+        public void onReply(@NotNull YeelightReply reply) {
+            long sentAt = target.command.getSentAtNanos();
+            if (sentAt != 0 && !reply.isNotSent() && !reply.isTimeout()) {
+                target.landingNanos = sentAt + (System.nanoTime() - sentAt) / 2;
+            }
+            frame.onTargetCompleted();
+            if (chained != null) chained.onReply(reply);
+        }
+
+        @Override
+        public void onFailure(@NotNull YeelightCommand command, @NotNull Throwable error) {
+            frame.onTargetCompleted();
+            if (chained instanceof YeelightCommand.ErrorListener)
+                ((YeelightCommand.ErrorListener) chained).onFailure(command, error);
+        }
+    }
+
+    private static final class MethodFactory implements CommandFactory {
+        @NotNull
+        private final YeelightMethod method;
+        @Nullable
+        private final YeelightCommand.Effect effect;
+        @Nullable
+        private final Object[] params;
+
+        MethodFactory(@NotNull YeelightMethod method, @Nullable YeelightCommand.Effect effect, @Nullable Object[] params) {
+            this.method = method;
+            this.effect = effect;
+            this.params = params;
+        }
+
+        @NotNull
+        @Override
+        public YeelightCommand create(@NotNull YeelightConnection connection) {
+            return new YeelightCommand(connection.nextMessageId(), method, effect, params);
+        }
+    }
+}
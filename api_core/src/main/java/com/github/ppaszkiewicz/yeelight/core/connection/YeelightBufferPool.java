@@ -0,0 +1,101 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of byte buffers of fixed size used for reading from devices, so opening and closing
+ * connections does not allocate new buffers each time.<br>
+ * Requests for bigger buffers are allocated on demand and not retained.
+ */
+public final class YeelightBufferPool {
+    /** Default size of pooled buffers. */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    /** Default amount of idle buffers retained by the pool. */
+    public static final int DEFAULT_MAX_POOLED = 64;
+
+    private static YeelightBufferPool defaultHeapPool;
+    private static YeelightBufferPool defaultDirectPool;
+
+    private final int bufferSize;
+    private final boolean isDirect;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    /** Approximate size of {@link #pool}, kept separately since queue size is O(n). */
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    /** Shared pool of heap buffers, used by blocking sockets. */
+    @NotNull
+    public static synchronized YeelightBufferPool getDefault() {
+        if (defaultHeapPool == null)
+            defaultHeapPool = new YeelightBufferPool(DEFAULT_BUFFER_SIZE, false, DEFAULT_MAX_POOLED);
+        return defaultHeapPool;
+    }
+
+    /** Shared pool of direct buffers, used by channel based sockets. */
+    @NotNull
+    public static synchronized YeelightBufferPool getDefaultDirect() {
+        if (defaultDirectPool == null)
+            defaultDirectPool = new YeelightBufferPool(DEFAULT_BUFFER_SIZE, true, DEFAULT_MAX_POOLED);
+        return defaultDirectPool;
+    }
+
+    /**
+     * @param bufferSize size of pooled buffers
+     * @param isDirect   true to allocate direct buffers
+     * @param maxPooled  max amount of released buffers retained for reuse
+     */
+    public YeelightBufferPool(int bufferSize, boolean isDirect, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.isDirect = isDirect;
+        this.maxPooled = maxPooled;
+    }
+
+    /** Size of pooled buffers. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** True if this pool holds direct buffers. */
+    public boolean isDirect() {
+        return isDirect;
+    }
+
+    /**
+     * Obtain cleared buffer with at least given capacity. It should be returned with {@link #release(ByteBuffer)}.
+     */
+    @NotNull
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity > bufferSize) {
+            return allocate(minCapacity);
+        }
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return allocate(bufferSize);
+        }
+        pooledCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return buffer to the pool. Buffer must not be used after this call.
+     */
+    public void release(@NotNull ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != isDirect) return;
+        if (pooledCount.incrementAndGet() > maxPooled) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        pool.add(buffer);
+    }
+
+    @NotNull
+    private ByteBuffer allocate(int capacity) {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
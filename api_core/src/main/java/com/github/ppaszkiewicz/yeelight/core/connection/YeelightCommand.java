@@ -6,16 +6,23 @@ import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
 
 /**
  * Command that can be send to the device.
  */
 public class YeelightCommand {
     private final static String TAG = "YeelightCommand";
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    /** Use reply timeout of the connection. */
+    public final static long TIMEOUT_DEFAULT = 0;
+    /**
+     * Wait for the reply without a timeout, until it arrives or the connection closes. Meant only for
+     * commands whose reply is not needed, like frames of {@link com.github.ppaszkiewicz.yeelight.core.YeelightFrameStream}.
+     */
+    public final static long TIMEOUT_NONE = -1;
     public final int id;
     @NotNull
     public final YeelightMethod method;
@@ -23,9 +30,29 @@ public class YeelightCommand {
     public final Object[] params;
     @Nullable
     public final Effect effect;
-    /** Optional listener for this commands reply. */
+    /** Optional listener for this commands reply. Guarded by this. */
+    @Nullable
+    private Listener listener;
+    /** Reply received for this command. Guarded by this. */
+    @Nullable
+    private YeelightReply reply;
+    /** Reason this command will never get a reply. Guarded by this. */
     @Nullable
-    Listener listener;
+    private Throwable failure;
+    /** True once reply or reply timeout was claimed for dispatch. Guarded by this. */
+    private boolean isAnswered;
+    /** Internal hook of connection that routed this command. Guarded by this. */
+    @Nullable
+    private CompletionHook completionHook;
+    /** How long to wait for a reply, or one of TIMEOUT_ constants. */
+    private volatile long replyTimeoutMs = TIMEOUT_DEFAULT;
+    /** Scheduled while waiting for the reply, set by the socket that sent this. */
+    @Nullable
+    volatile YeelightTimer.Timeout replyTimeout;
+    /** {@link System#nanoTime()} when this was written, 0 if it was not written yet. */
+    volatile long sentAtNanos;
+    /** True for keep alive commands sent by the pool, they don't count as use of the connection. */
+    boolean isHeartbeat;
 
     /**
      * Message to send to the device
@@ -51,30 +78,42 @@ public class YeelightCommand {
     }
 
     /**
-     * Convert this object to JSON that will be sent to device.
+     * Convert this object to JSON that will be sent to device. This is the same as output
+     * of {@link #encodeTo(YeelightCommandEncoder)}.
      */
     @NotNull
     public String toJSON() {
-        JSONObject root = new JSONObject();
-        try {
-            root.put("id", id);
-            root.put("method", getMethodName());
-            JSONArray jsonParams = new JSONArray();
-            if (params != null) {
-                for (Object o : params) {
-                    if (o instanceof CustomParam)
-                        ((CustomParam) o).addToJSONArray(jsonParams);
-                    else
-                        jsonParams.put(o);
-                }
+        YeelightCommandEncoder encoder = new YeelightCommandEncoder();
+        encodeTo(encoder);
+        return encoder.toString();
+    }
+
+    /**
+     * Write JSON of this command into the encoder.
+     */
+    public void encodeTo(@NotNull YeelightCommandEncoder encoder) {
+        if (method == YeelightMethod.none) {
+            // custom method name
+            encoder.beginCommand(id, getMethodName());
+        } else {
+            encoder.beginCommand(id, method);
+        }
+        encodeParams(encoder);
+        encoder.endCommand();
+    }
+
+    /**
+     * Write params and effect of this command. Params that implement {@link CustomParam} are injected
+     * by that interface.
+     */
+    protected void encodeParams(@NotNull YeelightCommandEncoder encoder) {
+        if (params != null) {
+            for (Object o : params) {
+                encoder.param(o);
             }
-            if (effect != null)
-                effect.addToJSONArray(jsonParams);
-            root.put("params", jsonParams);
-        } catch (JSONException e) {
-            e.printStackTrace();
         }
-        return root.toString();
+        if (effect != null)
+            effect.encodeTo(encoder);
     }
 
     @Override
@@ -82,27 +121,153 @@ public class YeelightCommand {
         return "YeelightCommand["+id+", "+method+", params["+(params != null ? params.length : "null")+"]]";
     }
 
+    /**
+     * Set how long to wait for the reply before it fails with {@link YeelightReply#ERROR_TIMEOUT}.
+     * This must be set before command is sent.
+     *
+     * @param timeoutMs timeout, {@link #TIMEOUT_DEFAULT} to use timeout of the connection or {@link #TIMEOUT_NONE}
+     */
+    @NotNull
+    public YeelightCommand setReplyTimeout(long timeoutMs) {
+        this.replyTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    /** Reply timeout set with {@link #setReplyTimeout(long)}. */
+    public long getReplyTimeout() {
+        return replyTimeoutMs;
+    }
+
+    /** {@link System#nanoTime()} when this command was written to the device, 0 if it was not written. */
+    public long getSentAtNanos() {
+        return sentAtNanos;
+    }
+
     /**
      * Set reply listener for this command. This will be invoked from async thread.<br>
-     * This will not be called if device encounters an error or disconnects.<br><br>
+     * If reply does not arrive within reply timeout this is called with {@link YeelightReply#ERROR_TIMEOUT} error.
+     * If command fails without a reply (device disconnects) this is only called if it's an {@link ErrorListener}.<br>
+     * If command already completed listener is invoked right away, so it's safe to set this after
+     * command was sent.<br><br>
      * Note that command keeps hard reference to listener, and connection holds hard reference to unsent
      * commands so it's possible to have a memory leak here.
      */
     @NotNull
     public YeelightCommand onReply(@Nullable Listener listener) {
-        this.listener = listener;
+        YeelightReply r;
+        Throwable f;
+        synchronized (this) {
+            this.listener = listener;
+            r = reply;
+            f = failure;
+        }
+        if (listener != null) notifyListener(listener, r, f);
         return this;
     }
 
     /**
      * Set reply listener for this command. This will be invoked from async thread.<br>
-     * This will not be called if device encounters an error or disconnects.<br><br>
+     * If reply does not arrive within reply timeout this is called with {@link YeelightReply#ERROR_TIMEOUT} error.
+     * If command already completed listener is invoked right away.<br><br>
      * This sets up provided listener with a weak reference.
      */
     @NotNull
     public YeelightCommand onReplyWeak(@Nullable Listener listener) {
-        this.listener = new ListenerDelegate(new WeakReference<>(listener));
-        return this;
+        return onReply(new ListenerDelegate(new WeakReference<>(listener)));
+    }
+
+    /** Listener set with {@link #onReply(Listener)} or null, so it can be chained. */
+    @Nullable
+    public synchronized Listener getListener() {
+        return listener;
+    }
+
+    /** Reply received for this command or null if it did not arrive yet. */
+    @Nullable
+    public synchronized YeelightReply getReply() {
+        return reply;
+    }
+
+    /** Reason this command failed without a reply or null. */
+    @Nullable
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /** True if this command received a reply or failed. */
+    public synchronized boolean isCompleted() {
+        return reply != null || failure != null;
+    }
+
+    /**
+     * Set hook notified once this command completes in any way, before its listener.
+     *
+     * @return false if command already completed, hook is not set then
+     */
+    synchronized boolean setCompletionHook(@Nullable CompletionHook hook) {
+        if (reply != null || failure != null) return false;
+        completionHook = hook;
+        return true;
+    }
+
+    /**
+     * Claim the right to dispatch reply of this command, so device reply and reply timeout can't both
+     * be dispatched.
+     *
+     * @return false if reply was already claimed or command completed
+     */
+    synchronized boolean claimAnswer() {
+        if (isAnswered || reply != null || failure != null) return false;
+        isAnswered = true;
+        return true;
+    }
+
+    /**
+     * Complete this command with received reply and notify the listener. Only first completion is
+     * delivered.
+     *
+     * @return true if this completed the command
+     */
+    boolean completeWithReply(@NotNull YeelightReply reply) {
+        Listener l;
+        CompletionHook h;
+        synchronized (this) {
+            if (this.reply != null || failure != null) return false;
+            this.reply = reply;
+            l = listener;
+            h = completionHook;
+        }
+        if (h != null) h.onCompleted(this);
+        if (l != null) l.onReply(reply);
+        return true;
+    }
+
+    /**
+     * Complete this command with an error because it will never get a reply, and notify the listener
+     * if it's an {@link ErrorListener}. Only first completion is delivered.
+     *
+     * @return true if this completed the command
+     */
+    boolean completeWithFailure(@NotNull Throwable failure) {
+        Listener l;
+        CompletionHook h;
+        synchronized (this) {
+            if (reply != null || this.failure != null) return false;
+            this.failure = failure;
+            l = listener;
+            h = completionHook;
+        }
+        if (h != null) h.onCompleted(this);
+        if (l instanceof ErrorListener) ((ErrorListener) l).onFailure(this, failure);
+        return true;
+    }
+
+    private void notifyListener(@NotNull Listener listener, @Nullable YeelightReply r, @Nullable Throwable f) {
+        if (r != null) {
+            listener.onReply(r);
+        } else if (f != null && listener instanceof ErrorListener) {
+            ((ErrorListener) listener).onFailure(this, f);
+        }
     }
 
     /**
@@ -123,6 +288,56 @@ public class YeelightCommand {
         }
     }
 
+    /**
+     * Command with one or two int params that does not box them, used for frequently sent commands
+     * like brightness or color changes.<br>
+     * {@link #params} of this command are always null, use {@link #getParam(int)} instead.
+     */
+    public static class Primitive extends YeelightCommand {
+        private final int paramCount;
+        private final int param0;
+        private final int param1;
+
+        public Primitive(int id, @NotNull YeelightMethod method, @Nullable Effect effect, int param) {
+            super(id, method, effect, (Object[]) null);
+            paramCount = 1;
+            param0 = param;
+            param1 = 0;
+        }
+
+        public Primitive(int id, @NotNull YeelightMethod method, @Nullable Effect effect, int param0, int param1) {
+            super(id, method, effect, (Object[]) null);
+            paramCount = 2;
+            this.param0 = param0;
+            this.param1 = param1;
+        }
+
+        /** Amount of int params. */
+        public int getParamCount() {
+            return paramCount;
+        }
+
+        /** Get int param at given index. */
+        public int getParam(int index) {
+            if (index < 0 || index >= paramCount)
+                throw new IndexOutOfBoundsException("param " + index + " of " + paramCount);
+            return index == 0 ? param0 : param1;
+        }
+
+        @Override
+        protected void encodeParams(@NotNull YeelightCommandEncoder encoder) {
+            encoder.param(param0);
+            if (paramCount > 1) encoder.param(param1);
+            if (effect != null)
+                effect.encodeTo(encoder);
+        }
+
+        @Override
+        public String toString() {
+            return "YeelightCommand["+id+", "+method+", params["+paramCount+"]]";
+        }
+    }
+
     /**
      * Use this subclass to create raw commands. <br>
      * Note that using raw messages will prevent proper reply parsing for some commands (like
@@ -153,13 +368,21 @@ public class YeelightCommand {
         public String toJSON() {
             return raw;
         }
+
+        @Override
+        public void encodeTo(@NotNull YeelightCommandEncoder encoder) {
+            encoder.put(raw.getBytes(UTF_8));
+        }
     }
 
     /**
      * Fade effect of command messages.<br>
      * Currently only sudden (no effect) or fade effect is supported.
      */
-    public static final class Effect implements CustomParam {
+    public static final class Effect implements EncodedParam {
+        private static final byte[] SMOOTH = "\"smooth\"".getBytes(UTF_8);
+        private static final byte[] SUDDEN_BYTES = "\"sudden\"".getBytes(UTF_8);
+
         public final boolean smooth;
         public final int duration;
 
@@ -178,6 +401,8 @@ public class YeelightCommand {
         public static Effect of(int duration) {
             if (duration == 0)
                 return Effect.SUDDEN;
+            if (duration == DEFAULT.duration)
+                return Effect.DEFAULT;
             return new Effect(true, duration);
         }
 
@@ -191,6 +416,12 @@ public class YeelightCommand {
             jsonArray.put(smooth ? "smooth" : "sudden");
             jsonArray.put(duration);
         }
+
+        @Override
+        public void encodeTo(@NotNull YeelightCommandEncoder encoder) {
+            encoder.rawParams(smooth ? SMOOTH : SUDDEN_BYTES);
+            encoder.param(duration);
+        }
     }
 
     /**
@@ -206,9 +437,22 @@ public class YeelightCommand {
         void addToJSONArray(@NotNull JSONArray jsonArray);
     }
 
+    /**
+     * Custom param that writes itself directly into the encoder, so sending it does not
+     * involve building JSON objects. Output must be equal to values added by
+     * {@link #addToJSONArray(JSONArray)}.
+     */
+    public interface EncodedParam extends CustomParam {
+        /**
+         * Append this object to params of command being encoded.
+         */
+        void encodeTo(@NotNull YeelightCommandEncoder encoder);
+    }
+
     /**
      * Listener for replies to this command.<br>
-     * This will not be called if device encounters an error or disconnects.
+     * This will not be called if device disconnects. Errors and reply timeouts are delivered as
+     * error replies.
      */
     public interface Listener {
         /**
@@ -217,11 +461,27 @@ public class YeelightCommand {
         void onReply(@NotNull YeelightReply reply);
     }
 
+    /** Internal listener of command completion, used by connections to track commands they routed. */
+    interface CompletionHook {
+        void onCompleted(@NotNull YeelightCommand command);
+    }
+
+    /**
+     * Listener that is also notified when command fails without a reply, for example if it could not
+     * be sent or connection closed before reply arrived.
+     */
+    public interface ErrorListener extends Listener {
+        /**
+         * Command will never receive a reply.
+         */
+        void onFailure(@NotNull YeelightCommand command, @NotNull Throwable error);
+    }
+
     /**
      * Delegates all methods of {@link Listener} down to provided listener, or does nothing
      * if listener is null or reference to it is lost.
      */
-    public static class ListenerDelegate implements Listener {
+    public static class ListenerDelegate implements ErrorListener {
         private ReferenceHolder<Listener> listener;
 
         public ListenerDelegate() {
@@ -265,5 +525,12 @@ public class YeelightCommand {
             if (l != null)
                 l.onReply(reply);
         }
+
+        @Override
+        public void onFailure(@NotNull YeelightCommand command, @NotNull Throwable error) {
+            Listener l = getListener();
+            if (l instanceof ErrorListener)
+                ((ErrorListener) l).onFailure(command, error);
+        }
     }
 }
\ No newline at end of file
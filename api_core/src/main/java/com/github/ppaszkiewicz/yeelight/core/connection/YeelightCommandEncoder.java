@@ -0,0 +1,314 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encodes commands into a single reusable byte buffer, so any amount of commands can be sent with
+ * one write and flush.<br>
+ * Commands are written as JSON directly, without building JSON objects or intermediate strings.
+ * Common parts of each method are encoded once and reused.<br>
+ * This is not thread safe, each socket should hold its own encoder.
+ */
+public final class YeelightCommandEncoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 512;
+    /** Buffers grown above this are dropped on reset so single huge command does not pin memory. */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final byte[] LINE_END = {'\r', '\n'};
+    private static final byte[] ID_PREFIX = bytes("{\"id\":");
+    private static final byte[] METHOD_PREFIX = bytes(",\"method\":");
+    private static final byte[] PARAMS_PREFIX = bytes(",\"params\":[");
+    private static final byte[] COMMAND_END = {']', '}'};
+    private static final byte[] TRUE = bytes("true");
+    private static final byte[] FALSE = bytes("false");
+    private static final byte[] NULL = bytes("null");
+    private static final byte[] HEX = bytes("0123456789abcdef");
+    /** Method name and params opening, indexed by method ordinal. */
+    private static final byte[][] METHOD_TEMPLATES;
+
+    static {
+        YeelightMethod[] methods = YeelightMethod.values();
+        METHOD_TEMPLATES = new byte[methods.length][];
+        for (YeelightMethod m : methods) {
+            METHOD_TEMPLATES[m.ordinal()] = bytes(",\"method\":\"" + m.name() + "\",\"params\":[");
+        }
+    }
+
+    @NotNull
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count = 0;
+    /** Amount of params written for current command, used to separate them. */
+    private int paramCount = 0;
+
+    /**
+     * Append command followed by line end.
+     */
+    public void encode(@NotNull YeelightCommand command) {
+        command.encodeTo(this);
+        put(LINE_END);
+    }
+
+    /**
+     * Start command by writing its id, method and opening params array.
+     * This should be followed by params and {@link #endCommand()}.
+     */
+    public void beginCommand(int id, @NotNull YeelightMethod method) {
+        put(ID_PREFIX);
+        putInt(id);
+        put(METHOD_TEMPLATES[method.ordinal()]);
+        paramCount = 0;
+    }
+
+    /**
+     * Start command with method name that is not in {@link YeelightMethod}.
+     * This should be followed by params and {@link #endCommand()}.
+     */
+    public void beginCommand(int id, @NotNull String methodName) {
+        put(ID_PREFIX);
+        putInt(id);
+        put(METHOD_PREFIX);
+        putString(methodName);
+        put(PARAMS_PREFIX);
+        paramCount = 0;
+    }
+
+    /** Close params array and command started with beginCommand. */
+    public void endCommand() {
+        put(COMMAND_END);
+    }
+
+    /** Append int param. */
+    public void param(int value) {
+        separateParam();
+        putInt(value);
+    }
+
+    /** Append long param. */
+    public void param(long value) {
+        separateParam();
+        putLong(value);
+    }
+
+    /** Append boolean param. */
+    public void param(boolean value) {
+        separateParam();
+        put(value ? TRUE : FALSE);
+    }
+
+    /** Append string param, escaping it as needed. */
+    public void param(@Nullable String value) {
+        separateParam();
+        if (value == null) put(NULL);
+        else putString(value);
+    }
+
+    /**
+     * Append param of any type. {@link YeelightCommand.EncodedParam} encodes itself, other
+     * types are written the same way as org.json would write them.
+     */
+    public void param(@Nullable Object value) {
+        if (value == null) {
+            separateParam();
+            put(NULL);
+        } else if (value instanceof YeelightCommand.EncodedParam) {
+            ((YeelightCommand.EncodedParam) value).encodeTo(this);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            param(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            param((long) (Long) value);
+        } else if (value instanceof String) {
+            param((String) value);
+        } else if (value instanceof Boolean) {
+            param((boolean) (Boolean) value);
+        } else if (value instanceof YeelightCommand.CustomParam) {
+            // unknown custom param can only add itself to json array
+            JSONArray array = new JSONArray();
+            ((YeelightCommand.CustomParam) value).addToJSONArray(array);
+            if (array.length() > 0) {
+                String json = array.toString();
+                rawParams(bytes(json.substring(1, json.length() - 1)));
+            }
+        } else {
+            separateParam();
+            put(bytes(valueToString(value)));
+        }
+    }
+
+    /**
+     * Append pre-encoded params. This can hold multiple comma separated JSON values.
+     */
+    public void rawParams(@NotNull byte[] encoded) {
+        separateParam();
+        put(encoded);
+    }
+
+    /** Append raw bytes. */
+    public void put(@NotNull byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /** Number of encoded bytes. */
+    public int size() {
+        return count;
+    }
+
+    /** Drop encoded content, keeping the buffer for reuse. */
+    public void reset() {
+        count = 0;
+        paramCount = 0;
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /** Write all encoded bytes into the stream. This does not flush it. */
+    public void writeTo(@NotNull OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+
+    /** Wrap encoded bytes. Returned buffer is only valid until next modification. */
+    @NotNull
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, count);
+    }
+
+    /** Copy of encoded bytes. */
+    @NotNull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /** Encoded bytes as string, used for logging. */
+    @NotNull
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, UTF_8);
+    }
+
+    private void separateParam() {
+        if (paramCount++ > 0) {
+            ensureCapacity(1);
+            buffer[count++] = ',';
+        }
+    }
+
+    private void putInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            put(bytes(Integer.toString(value)));
+            return;
+        }
+        ensureCapacity(11);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) digits++;
+        int i = count + digits;
+        count = i;
+        do {
+            buffer[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+    }
+
+    private void putLong(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            putInt((int) value);
+        } else {
+            put(bytes(Long.toString(value)));
+        }
+    }
+
+    /** Write quoted and escaped string as UTF-8. */
+    private void putString(@NotNull String s) {
+        int length = s.length();
+        // worst case of 6 bytes per escaped char
+        ensureCapacity(length * 6 + 2);
+        buffer[count++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer[count++] = '\\';
+                buffer[count++] = (byte) c;
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n': buffer[count++] = '\\'; buffer[count++] = 'n'; break;
+                    case '\r': buffer[count++] = '\\'; buffer[count++] = 'r'; break;
+                    case '\t': buffer[count++] = '\\'; buffer[count++] = 't'; break;
+                    default:
+                        buffer[count++] = '\\';
+                        buffer[count++] = 'u';
+                        buffer[count++] = '0';
+                        buffer[count++] = '0';
+                        buffer[count++] = HEX[c >> 4];
+                        buffer[count++] = HEX[c & 0xF];
+                }
+            } else if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[count++] = (byte) (0xF0 | (cp >> 18));
+                buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer[count++] = '"';
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = count + extra;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+
+    /** Convert value the same way org.json does for values put into arrays. */
+    @NotNull
+    private static String valueToString(@NotNull Object value) {
+        if (value instanceof JSONString) {
+            String s = ((JSONString) value).toJSONString();
+            if (s != null) return s;
+        }
+        if (value instanceof Number) {
+            try {
+                return JSONObject.numberToString((Number) value);
+            } catch (JSONException e) {
+                // non finite number
+                return JSONObject.quote(value.toString());
+            }
+        }
+        if (value instanceof JSONObject || value instanceof JSONArray) {
+            return value.toString();
+        }
+        return JSONObject.quote(value.toString());
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull String s) {
+        return s.getBytes(UTF_8);
+    }
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Basic definition of connection with Yeelight device.<br>
@@ -20,6 +21,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public abstract class YeelightConnection {
     private final static String TAG = "YeeDeviceConn";
+    /** Default time to wait for the socket of the device to connect. */
+    public final static long DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    /** Default time to wait for reply to idle probe. */
+    public final static long DEFAULT_IDLE_PROBE_TIMEOUT_MS = 3000;
+    /** Default time commands wait for a reply, so commands whose reply was lost don't stay in flight. */
+    public final static long DEFAULT_REPLY_TIMEOUT_MS = 10000;
 
     public final long deviceId;
     @NotNull
@@ -28,7 +35,21 @@ public abstract class YeelightConnection {
     /**
      * Incrementable ID of next message.
      */
-    private int messageId = 1;
+    private final AtomicInteger messageId = new AtomicInteger(1);
+    /** Reply timeout of commands that don't set their own, 0 if there's no timeout. */
+    private volatile long defaultReplyTimeoutMs = DEFAULT_REPLY_TIMEOUT_MS;
+    /** Time to wait for the socket to connect, 0 if there's no timeout. */
+    private volatile long connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    /** Time without received data after which device is probed, 0 if it's never probed. */
+    private volatile long idleProbeIntervalMs = 0;
+    private volatile long idleProbeTimeoutMs = DEFAULT_IDLE_PROBE_TIMEOUT_MS;
+    /** Limits rate of sent commands, null if commands are not limited. */
+    @Nullable
+    private volatile YeelightRateGovernor rateGovernor;
+    /** Round trip time of commands sent thru this connection. */
+    private final YeelightRttEstimator rttEstimator = new YeelightRttEstimator();
+    /** {@link System#nanoTime()} when last command other than heartbeat was written. */
+    private volatile long lastUsedNanos = System.nanoTime();
 
     /**
      * Parses all listener callbacks for this connection.
@@ -124,6 +145,21 @@ public abstract class YeelightConnection {
      */
     public abstract void disconnect() throws IOException;
 
+    /**
+     * Disconnect gracefully: stop accepting commands, flush queued ones and wait up to given timeout
+     * for replies to commands that were sent, then disconnect. See
+     * {@link YeelightSocket#drain(long, DrainListener)}.<br>
+     * Default implementation disconnects right away and reports nothing as abandoned, which suits
+     * connections whose device doesn't reply.
+     *
+     * @param timeoutMs max time to wait for replies, 0 disconnects right away
+     * @param listener  notified once connection is closed, or null
+     */
+    public void drain(long timeoutMs, @Nullable DrainListener listener) {
+        tryDisconnect();
+        if (listener != null) listener.onDrained(deviceId, 0, 0);
+    }
+
     /**
      * Called after connection closes.
      */
@@ -233,10 +269,126 @@ public abstract class YeelightConnection {
     }
 
     /**
-     * Incremental message ID.
+     * Incremental message ID. This is safe to call from multiple threads, ids are always positive.
+     */
+    public int nextMessageId() {
+        int id;
+        do {
+            id = messageId.getAndIncrement() & Integer.MAX_VALUE;
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Set how long commands sent thru this connection wait for a reply before they fail with
+     * {@link YeelightReply#ERROR_TIMEOUT}. Commands can override it with
+     * {@link YeelightCommand#setReplyTimeout(long)}. Default is {@link #DEFAULT_REPLY_TIMEOUT_MS}.<br>
+     * Without a timeout commands whose reply was lost stay in flight until the socket closes, so
+     * drains wait for their deadline and striped connections keep counting them.
+     *
+     * @param timeoutMs timeout or 0 to wait without timeout
+     */
+    @NotNull
+    public YeelightConnection setDefaultReplyTimeout(long timeoutMs) {
+        if (timeoutMs < 0) throw new IllegalArgumentException("timeout can't be negative: " + timeoutMs);
+        defaultReplyTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    /** Default reply timeout, 0 if there's no timeout. */
+    public long getDefaultReplyTimeout() {
+        return defaultReplyTimeoutMs;
+    }
+
+    /**
+     * Set how long connecting waits for the device before it fails with
+     * {@link java.net.SocketTimeoutException}. Applied to connects started after this call.
+     *
+     * @param timeoutMs timeout or 0 to wait until the system gives up
+     */
+    @NotNull
+    public YeelightConnection setConnectTimeout(long timeoutMs) {
+        if (timeoutMs < 0 || timeoutMs > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid connect timeout: " + timeoutMs);
+        connectTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    /** Connect timeout, 0 if there's no timeout. */
+    public long getConnectTimeout() {
+        return connectTimeoutMs;
+    }
+
+    /**
+     * Detect devices that disappeared without closing the socket. When nothing is received from
+     * the device for given interval it's sent cheap property request, if nothing is received until
+     * its timeout the connection is closed with {@link YeelightHalfOpenException}. Applied to
+     * sockets opened after this call. By default devices are not probed and such connection stays
+     * open until system keepalive notices it, which can take hours.
+     *
+     * @param intervalMs time without received data before probe is sent, or 0 to disable probing
+     * @param timeoutMs  time to wait for any data after probe was sent
+     */
+    @NotNull
+    public YeelightConnection setIdleProbe(long intervalMs, long timeoutMs) {
+        if (intervalMs < 0 || intervalMs > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid idle probe interval: " + intervalMs);
+        if (timeoutMs <= 0) throw new IllegalArgumentException("timeout must be positive: " + timeoutMs);
+        idleProbeIntervalMs = intervalMs;
+        idleProbeTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    /** Time without received data before device is probed, 0 if it's not probed. */
+    public long getIdleProbeInterval() {
+        return idleProbeIntervalMs;
+    }
+
+    /** Time to wait for data after idle probe was sent. */
+    public long getIdleProbeTimeout() {
+        return idleProbeTimeoutMs;
+    }
+
+    /**
+     * Set governor keeping commands within device command quota. Commands sent over the quota are
+     * queued instead of being rejected by the device. By default commands are not limited.
+     *
+     * @param governor governor used only by this connection, or null to send without limits
+     * @throws IllegalStateException if governor is already used by another device
+     */
+    @NotNull
+    public YeelightConnection setRateGovernor(@Nullable YeelightRateGovernor governor) {
+        if (governor != null) governor.attach(this);
+        rateGovernor = governor;
+        return this;
+    }
+
+    /** Governor limiting rate of commands or null. */
+    @Nullable
+    public YeelightRateGovernor getRateGovernor() {
+        return rateGovernor;
+    }
+
+    /**
+     * Round trip time of commands sent thru this connection. It's updated by every reply, connections
+     * that don't receive replies never update it.
+     */
+    @NotNull
+    public YeelightRttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * {@link System#nanoTime()} when last command was written to the device, or when this connection
+     * was created if nothing was written yet. Heartbeats don't count as use.
      */
-    public final int nextMessageId() {
-        return messageId++;
+    public long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    /** Record that command was written to the device. */
+    void onCommandWritten(@NotNull YeelightCommand command, long nowNanos) {
+        if (!command.isHeartbeat) lastUsedNanos = nowNanos;
     }
 
     /**
@@ -252,6 +404,8 @@ public abstract class YeelightConnection {
      */
     public final void release() {
         isReleased.set(true);
+        YeelightRateGovernor governor = rateGovernor;
+        if (governor != null) governor.cancelQueued(new IllegalStateException("connection released " + deviceId));
         if (!isConnected())
             onRelease();
     }
@@ -381,6 +535,21 @@ public abstract class YeelightConnection {
         void onYeelightDeviceDisconnected(long deviceID, @Nullable Throwable error);
     }
 
+    /**
+     * Receives result of {@link #drain(long, DrainListener)}.
+     */
+    public interface DrainListener {
+        /**
+         * Connection finished draining and is closed.
+         * <p><i>NOTE: This is called from async thread.</i></p>
+         *
+         * @param completed amount of commands that got a reply or failed before connection closed
+         * @param abandoned amount of commands failed because connection closed before they were
+         *                  answered or sent
+         */
+        void onDrained(long deviceId, int completed, int abandoned);
+    }
+
     /**
      * Empty {@link Listener} for selective overriding.
      */
@@ -1,24 +1,59 @@
 package com.github.ppaszkiewicz.yeelight.core.connection;
 
+import com.github.ppaszkiewicz.yeelight.core.YLog;
 import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
+import com.github.ppaszkiewicz.yeelight.core.utils.LongConcurrentMap;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightProp;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Provider that keeps references to created connections.
+ * Provider that keeps references to created connections.<br>
+ * With a {@link Policy} set the pool also keeps connections of devices passed to
+ * {@link #warmUp(Collection)} open, sends heartbeats to idle connections and evicts connections that
+ * were not used or whose device was gone for too long. Policy runs on {@link YeelightTimer}.<br><br>
+ *
+ * Looking up existing connection doesn't lock the pool, connections are kept in a
+ * {@link LongConcurrentMap} by device id.
  */
 public abstract class YeelightConnectionPool<T extends YeelightConnection> implements YeelightConnectionProvider<T> {
+    private final static String TAG = "YeelightConnectionPool";
     /**
-     * Pool of connections created by this provider.
+     * Pool of connections created by this provider. Written only while holding the pool lock.
      */
-    private final HashMap<Long, T> mOngoingConnections = new HashMap<>();
+    private final LongConcurrentMap<T> mOngoingConnections = new LongConcurrentMap<>();
+    /**
+     * Policy state of each pooled connection. Guarded by this.
+     */
+    private final HashMap<Long, Entry> mEntries = new HashMap<>();
 
     /**
      * Extension that can modify each newly instantiated connection.
      */
     private Extension extension;
+    @Nullable
+    private Policy policy;
+    private final Housekeeping housekeeping = new Housekeeping();
+    /** Set once pool is released or drained, housekeeping is not scheduled anymore. Guarded by this. */
+    private boolean isReleased = false;
+
+    // metrics, guarded by this
+    private long warmUpConnects = 0;
+    private long heartbeatsSent = 0;
+    private long heartbeatFailures = 0;
+    private long idleEvictions = 0;
+    private long goneEvictions = 0;
 
     /**
      * Obtain connection from pool or create new one if needed.<br>
@@ -26,16 +61,22 @@ public abstract class YeelightConnectionPool<T extends YeelightConnection> imple
      */
     @NotNull
     @Override
-    public synchronized T getConnection(@NotNull YeelightDevice device) {
+    public T getConnection(@NotNull YeelightDevice device) {
         T conn = mOngoingConnections.get(device.getId());
         if (conn == null) {
-            conn = instantiateConnection(device);
-            if (extension != null) extension.onInstantiateConnection(conn);
-            mOngoingConnections.put(device.getId(), conn);
-        } else {
-            // replace target device of this connection
-            conn.setDevice(device);
+            synchronized (this) {
+                conn = mOngoingConnections.get(device.getId());
+                if (conn == null) {
+                    conn = instantiateConnection(device);
+                    if (extension != null) extension.onInstantiateConnection(conn);
+                    mEntries.put(device.getId(), new Entry());
+                    mOngoingConnections.put(device.getId(), conn);
+                    return conn;
+                }
+            }
         }
+        // replace target device of this connection
+        if (conn.getDevice() != device) conn.setDevice(device);
         return conn;
     }
 
@@ -45,24 +86,75 @@ public abstract class YeelightConnectionPool<T extends YeelightConnection> imple
     protected abstract T instantiateConnection(@NotNull YeelightDevice device);
 
     /**
-     * Force close and release all connections. Clears connection pool.
+     * Force close and release all connections. Clears connection pool. Commands waiting for replies
+     * are lost, see {@link #drain(long, YeelightPoolDrain.Listener)}. Policy housekeeping stops for good.
      */
     @Override
     public synchronized void release() {
-        YeelightConnection[] conns = new YeelightConnection[mOngoingConnections.size()];
-        mOngoingConnections.values().toArray(conns);
-        for (YeelightConnection conn : conns) {
+        isReleased = true;
+        housekeeping.cancel();
+        for (YeelightConnection conn : mOngoingConnections.snapshot()) {
             conn.release();
             conn.tryDisconnect();
         }
     }
 
     /**
-     * Get a soft-copy of current connections.
+     * Gracefully close and release all connections. Unlike {@link #release()} commands that were
+     * already sent or queued are given time to reach the devices: connections stop accepting new
+     * commands, flush queued ones and wait up to given timeout for replies before closing.
+     *
+     * @param timeoutMs max time each connection waits for replies, 0 closes right away
+     * @param listener  notified once all connections are closed, or null
+     * @return drain reporting amount of commands completed and abandoned
+     */
+    @NotNull
+    public YeelightPoolDrain drain(long timeoutMs, @Nullable YeelightPoolDrain.Listener listener) {
+        if (timeoutMs < 0) throw new IllegalArgumentException("drain timeout must not be negative: " + timeoutMs);
+        List<T> connections = new ArrayList<>();
+        synchronized (this) {
+            isReleased = true;
+            housekeeping.cancel();
+            for (T conn : mOngoingConnections.snapshot()) {
+                connections.add(conn);
+            }
+        }
+        YeelightPoolDrain drain = new YeelightPoolDrain(connections.size(), listener);
+        for (T conn : connections) {
+            drain.drain(conn, timeoutMs);
+        }
+        drain.start();
+        return drain;
+    }
+
+    /**
+     * Get a soft-copy of current connections. {@link #getConnectionSnapshot()} avoids copying.
      */
     @NotNull
-    public synchronized HashMap<Long, T> getConnections() {
-        return new HashMap<>(mOngoingConnections);
+    public HashMap<Long, T> getConnections() {
+        final HashMap<Long, T> copy = new HashMap<>();
+        mOngoingConnections.snapshot().forEach(new LongConcurrentMap.Visitor<T>() {
+            @Override
+            public void visit(long key, @NotNull T value) {
+                copy.put(key, value);
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * Current connections. Snapshot is not affected by later changes of the pool and iterating it
+     * doesn't copy or lock.
+     */
+    @NotNull
+    public LongConcurrentMap.Snapshot<T> getConnectionSnapshot() {
+        return mOngoingConnections.snapshot();
+    }
+
+    /** Pooled connection of given device or null, without creating it. */
+    @Nullable
+    public T getExistingConnection(long deviceId) {
+        return mOngoingConnections.get(deviceId);
     }
 
     /**
@@ -73,6 +165,235 @@ public abstract class YeelightConnectionPool<T extends YeelightConnection> imple
         return this;
     }
 
+    /**
+     * Set policy for warming up, heartbeats and eviction of pooled connections, or null to keep
+     * connections until the pool is released.
+     */
+    @NotNull
+    public synchronized YeelightConnectionPool<T> setPolicy(@Nullable Policy policy) {
+        this.policy = policy;
+        if (policy == null || isReleased) {
+            housekeeping.cancel();
+        } else {
+            YeelightTimer.getDefault().schedule(housekeeping, policy.checkIntervalMs);
+        }
+        return this;
+    }
+
+    /** Current policy or null. */
+    @Nullable
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Connect given devices now so their first command does not wait for connection. Policy keeps
+     * reconnecting them and never evicts them.
+     */
+    public void warmUp(@NotNull Collection<? extends YeelightDevice> devices) {
+        List<T> toConnect = new ArrayList<>(devices.size());
+        synchronized (this) {
+            for (YeelightDevice device : devices) {
+                T conn = getConnection(device);
+                mEntries.get(device.getId()).pinned = device;
+                if (!conn.isConnected() && !conn.isConnecting()) {
+                    toConnect.add(conn);
+                    warmUpConnects++;
+                }
+            }
+        }
+        for (T conn : toConnect) {
+            connectQuietly(conn);
+        }
+    }
+
+    /**
+     * Connect given devices in parallel with at most given amount of connects in progress at once,
+     * so connecting a large fleet doesn't open all sockets at the same moment.
+     *
+     * @param maxConcurrent max amount of connects in progress
+     * @param listener      receives result of each device, or null
+     * @return fleet connect reporting per device results and connect latency
+     */
+    @NotNull
+    public YeelightFleetConnect connectAll(@NotNull Collection<? extends YeelightDevice> devices, int maxConcurrent,
+                                           @Nullable YeelightFleetConnect.Listener listener) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("max concurrent must be positive: " + maxConcurrent);
+        List<T> connections = new ArrayList<>(devices.size());
+        List<YeelightFleetConnect.Tracker> trackers = new ArrayList<>(devices.size());
+        HashSet<Long> seen = new HashSet<>();
+        synchronized (this) {
+            for (YeelightDevice device : devices) {
+                if (!seen.add(device.getId())) continue;
+                T conn = getConnection(device);
+                Entry entry = mEntries.get(device.getId());
+                if (entry.tracker == null) {
+                    entry.tracker = new YeelightFleetConnect.Tracker();
+                    conn.addConnectionListenerInterceptor(entry.tracker);
+                }
+                connections.add(conn);
+                trackers.add(entry.tracker);
+            }
+        }
+        YeelightFleetConnect fleet = new YeelightFleetConnect(connections, trackers, maxConcurrent, listener);
+        fleet.start();
+        return fleet;
+    }
+
+    /**
+     * Stop keeping connections of devices passed to {@link #warmUp(Collection)}, they can be
+     * evicted from now on.
+     */
+    public synchronized void clearWarmUp() {
+        for (Entry e : mEntries.values()) {
+            e.pinned = null;
+        }
+    }
+
+    /**
+     * Remove connection from the pool, release and disconnect it.
+     *
+     * @return false if there was no such connection
+     */
+    public boolean evict(long deviceId) {
+        T conn;
+        synchronized (this) {
+            conn = mOngoingConnections.remove(deviceId);
+            mEntries.remove(deviceId);
+        }
+        if (conn == null) return false;
+        YeelightDevice device = conn.getDevice();
+        // device should obtain new connection if it's used again
+        if (device != null && device.getExistingConnection() == conn) device.setDeviceConnection(null);
+        conn.release();
+        conn.tryDisconnect();
+        return true;
+    }
+
+    /** Current occupancy and policy counters of this pool. */
+    @NotNull
+    public synchronized Metrics getMetrics() {
+        int connected = 0, connecting = 0, pinned = 0;
+        for (Map.Entry<Long, Entry> e : mEntries.entrySet()) {
+            T conn = mOngoingConnections.get(e.getKey());
+            if (conn == null) continue;
+            if (conn.isConnected()) connected++;
+            else if (conn.isConnecting()) connecting++;
+            if (e.getValue().pinned != null) pinned++;
+        }
+        return new Metrics(mOngoingConnections.size(), connected, connecting, pinned, warmUpConnects,
+                heartbeatsSent, heartbeatFailures, idleEvictions, goneEvictions);
+    }
+
+    /** Apply policy to all connections. Runs on timer thread. */
+    private void runHousekeeping() {
+        Policy p;
+        List<T> toConnect = new ArrayList<>();
+        List<T> toHeartbeat = new ArrayList<>();
+        List<Long> idle = new ArrayList<>();
+        List<Long> gone = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            p = policy;
+            if (p == null || isReleased) return;
+            for (Map.Entry<Long, Entry> e : mEntries.entrySet()) {
+                T conn = mOngoingConnections.get(e.getKey());
+                if (conn == null) continue;
+                Entry entry = e.getValue();
+                boolean isConnected = conn.isConnected();
+                if (entry.pinned != null) {
+                    entry.goneSinceNanos = 0;
+                    if (!isConnected && !conn.isConnecting() && !conn.isReleased()) {
+                        toConnect.add(conn);
+                        warmUpConnects++;
+                    }
+                } else if (isConnected && conn.getDevice() != null) {
+                    entry.goneSinceNanos = 0;
+                    if (p.idleTtlNanos > 0 && now - conn.getLastUsedNanos() > p.idleTtlNanos) {
+                        idle.add(e.getKey());
+                        continue;
+                    }
+                } else if (!conn.isConnecting()) {
+                    // device object was dropped or connection is down
+                    if (entry.goneSinceNanos == 0) entry.goneSinceNanos = now;
+                    if (p.goneGraceNanos > 0 && now - entry.goneSinceNanos > p.goneGraceNanos) {
+                        gone.add(e.getKey());
+                    }
+                    continue;
+                }
+                if (isConnected && p.heartbeatIntervalNanos > 0
+                        && now - Math.max(conn.getLastUsedNanos(), entry.lastHeartbeatNanos) > p.heartbeatIntervalNanos) {
+                    entry.lastHeartbeatNanos = now;
+                    toHeartbeat.add(conn);
+                    heartbeatsSent++;
+                }
+            }
+            idleEvictions += idle.size();
+            goneEvictions += gone.size();
+        }
+        for (Long id : idle) {
+            YLog.d(TAG, "evicting idle connection " + id);
+            evict(id);
+        }
+        for (Long id : gone) {
+            YLog.d(TAG, "evicting connection of gone device " + id);
+            evict(id);
+        }
+        for (T conn : toConnect) {
+            connectQuietly(conn);
+        }
+        for (T conn : toHeartbeat) {
+            sendHeartbeat(conn, p);
+        }
+        synchronized (this) {
+            // pool could have been released while this was running
+            if (policy != null && !isReleased) YeelightTimer.getDefault().schedule(housekeeping, policy.checkIntervalMs);
+        }
+    }
+
+    /**
+     * Send cheap property request. Connection that doesn't reply to it is closed, so it's reconnected
+     * if it's warmed up or evicted later otherwise.
+     */
+    private void sendHeartbeat(@NotNull final T conn, @NotNull Policy p) {
+        YeelightCommand heartbeat = new YeelightCommand(conn.nextMessageId(), YeelightMethod.get_prop, null, YeelightProp.power);
+        heartbeat.isHeartbeat = true;
+        heartbeat.setReplyTimeout(p.heartbeatTimeoutMs);
+        heartbeat.onReply(new YeelightCommand.ErrorListener() {
+            @Override
+            public void onReply(@NotNull YeelightReply reply) {
+                if (reply.isTimeout()) onHeartbeatFailed(conn, new TimeoutException("no heartbeat reply"));
+            }
+
+            @Override
+            public void onFailure(@NotNull YeelightCommand command, @NotNull Throwable error) {
+                onHeartbeatFailed(conn, error);
+            }
+        });
+        try {
+            conn.send(heartbeat);
+        } catch (RuntimeException e) {
+            // connection was released meanwhile
+            onHeartbeatFailed(conn, e);
+        }
+    }
+
+    private void onHeartbeatFailed(@NotNull T conn, @NotNull Throwable error) {
+        synchronized (this) {
+            heartbeatFailures++;
+        }
+        YLog.e(TAG, "heartbeat failed " + conn.deviceId + ": " + error.getMessage());
+        if (conn.isConnected()) conn.tryDisconnect();
+    }
+
+    private static void connectQuietly(@NotNull YeelightConnection conn) {
+        try {
+            conn.connect();
+        } catch (RuntimeException e) {
+            YLog.e(TAG, "cannot connect " + conn.deviceId + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Extension that can be added into {@link YeelightConnectionPool} to modify each newly instantiated connection.
      */
@@ -82,4 +403,133 @@ public abstract class YeelightConnectionPool<T extends YeelightConnection> imple
          */
         void onInstantiateConnection(@NotNull YeelightConnection connection);
     }
-}
\ No newline at end of file
+
+    /**
+     * Heartbeat and eviction settings of the pool. All features are disabled by default.
+     */
+    public static final class Policy {
+        /** Default interval of checking the connections. */
+        public final static long DEFAULT_CHECK_INTERVAL_MS = 1000;
+        /** Default time to wait for heartbeat reply. */
+        public final static long DEFAULT_HEARTBEAT_TIMEOUT_MS = 5000;
+        private long checkIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+        private long heartbeatIntervalNanos = 0;
+        private long heartbeatTimeoutMs = DEFAULT_HEARTBEAT_TIMEOUT_MS;
+        private long idleTtlNanos = 0;
+        private long goneGraceNanos = 0;
+
+        /** Set how often the pool checks its connections. */
+        @NotNull
+        public Policy setCheckInterval(long intervalMs) {
+            if (intervalMs <= 0) throw new IllegalArgumentException("interval must be positive: " + intervalMs);
+            checkIntervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * Send heartbeat to connected devices that were not used for given time.
+         *
+         * @param intervalMs interval or 0 to disable heartbeats
+         * @param timeoutMs  time to wait for the reply before connection is closed
+         */
+        @NotNull
+        public Policy setHeartbeat(long intervalMs, long timeoutMs) {
+            if (intervalMs < 0) throw new IllegalArgumentException("interval can't be negative: " + intervalMs);
+            if (timeoutMs <= 0) throw new IllegalArgumentException("timeout must be positive: " + timeoutMs);
+            heartbeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+            heartbeatTimeoutMs = timeoutMs;
+            return this;
+        }
+
+        /**
+         * Evict connections that were not used for given time. Heartbeats don't count as use.
+         *
+         * @param ttlMs time or 0 to keep idle connections
+         */
+        @NotNull
+        public Policy setIdleTtl(long ttlMs) {
+            if (ttlMs < 0) throw new IllegalArgumentException("ttl can't be negative: " + ttlMs);
+            idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+            return this;
+        }
+
+        /**
+         * Evict connections that were disconnected, or whose device object was garbage collected,
+         * for given time.
+         *
+         * @param graceMs time or 0 to keep such connections
+         */
+        @NotNull
+        public Policy setGoneGracePeriod(long graceMs) {
+            if (graceMs < 0) throw new IllegalArgumentException("grace period can't be negative: " + graceMs);
+            goneGraceNanos = TimeUnit.MILLISECONDS.toNanos(graceMs);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Policy[check " + checkIntervalMs + "ms, heartbeat " + TimeUnit.NANOSECONDS.toMillis(heartbeatIntervalNanos)
+                    + "ms, idle ttl " + TimeUnit.NANOSECONDS.toMillis(idleTtlNanos)
+                    + "ms, gone grace " + TimeUnit.NANOSECONDS.toMillis(goneGraceNanos) + "ms]";
+        }
+    }
+
+    /**
+     * Snapshot of pool occupancy and counters since the pool was created.
+     */
+    public static final class Metrics {
+        /** Amount of pooled connections. */
+        public final int size;
+        public final int connected;
+        public final int connecting;
+        /** Connections kept open by {@link #warmUp(Collection)}. */
+        public final int warmedUp;
+        /** Connects started by warm up, including reconnects. */
+        public final long warmUpConnects;
+        public final long heartbeatsSent;
+        public final long heartbeatFailures;
+        public final long idleEvictions;
+        public final long goneEvictions;
+
+        Metrics(int size, int connected, int connecting, int warmedUp, long warmUpConnects, long heartbeatsSent,
+                long heartbeatFailures, long idleEvictions, long goneEvictions) {
+            this.size = size;
+            this.connected = connected;
+            this.connecting = connecting;
+            this.warmedUp = warmedUp;
+            this.warmUpConnects = warmUpConnects;
+            this.heartbeatsSent = heartbeatsSent;
+            this.heartbeatFailures = heartbeatFailures;
+            this.idleEvictions = idleEvictions;
+            this.goneEvictions = goneEvictions;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics[size " + size + ", connected " + connected + ", connecting " + connecting
+                    + ", warmed up " + warmedUp + ", warm up connects " + warmUpConnects
+                    + ", heartbeats " + heartbeatsSent + " (" + heartbeatFailures + " failed)"
+                    + ", evicted idle " + idleEvictions + ", evicted gone " + goneEvictions + "]";
+        }
+    }
+
+    /** Policy state of a single pooled connection. Guarded by the pool. */
+    private static final class Entry {
+        /** Device kept connected by warm up, strongly referenced so it can't be gone. */
+        @Nullable
+        YeelightDevice pinned;
+        long lastHeartbeatNanos;
+        /** When device was first seen gone, 0 if it's not gone. */
+        long goneSinceNanos;
+        /** Added to the connection by first {@link #connectAll(Collection, int, YeelightFleetConnect.Listener)}. */
+        @Nullable
+        YeelightFleetConnect.Tracker tracker;
+    }
+
+    private final class Housekeeping extends YeelightTimer.Timeout {
+        @Override
+        public void run() {
+            runHousekeeping();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connects many devices in parallel, with at most given amount of connects in progress at once, and
+ * measures how long each connect took. Created by
+ * {@link YeelightConnectionPool#connectAll(java.util.Collection, int, Listener)}.<br>
+ * Connects are asynchronous so no thread is blocked while waiting for devices. Each connect is
+ * limited by {@link YeelightConnection#getConnectTimeout() connect timeout} of its connection.<br><br>
+ *
+ * Listener is invoked from socket threads or from the timer thread.
+ */
+public final class YeelightFleetConnect {
+    private final static String TAG = "YeelightFleetConnect";
+    /** Extra time given to a connect over its connect timeout before it's considered lost. */
+    private final static long GUARD_MARGIN_MS = 1000;
+
+    /** Receives results of fleet connect. */
+    public interface Listener {
+        /** Connect of a single device finished. */
+        void onResult(@NotNull Result result);
+
+        /** All devices finished connecting. */
+        void onComplete(@NotNull YeelightFleetConnect fleet);
+    }
+
+    private final int maxConcurrent;
+    @Nullable
+    private final Listener listener;
+    private final int total;
+    private final long startNanos = System.nanoTime();
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    // fields below are guarded by this
+    private final ArrayDeque<Target> queue;
+    private final List<Result> results;
+    private int running = 0;
+    private boolean isDispatching = false;
+    private boolean isCancelled = false;
+    private int connected = 0;
+    private int failed = 0;
+    private long latencySumNanos = 0;
+    private long maxLatencyNanos = 0;
+    private long finishedNanos = 0;
+
+    YeelightFleetConnect(@NotNull List<? extends YeelightConnection> connections,
+                         @NotNull List<Tracker> trackers, int maxConcurrent, @Nullable Listener listener) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("max concurrent must be positive: " + maxConcurrent);
+        this.maxConcurrent = maxConcurrent;
+        this.listener = listener;
+        this.total = connections.size();
+        queue = new ArrayDeque<>(total);
+        results = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            queue.add(new Target(connections.get(i), trackers.get(i)));
+        }
+    }
+
+    /** Start connecting, called once by the pool. */
+    void start() {
+        if (total == 0) {
+            finish();
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * Start queued connects while there's room. Connects that finish right away complete while this
+     * loops instead of recursing into it.
+     */
+    private void dispatch() {
+        synchronized (this) {
+            if (isDispatching) return;
+            isDispatching = true;
+        }
+        while (true) {
+            Target t;
+            synchronized (this) {
+                if (isCancelled || running >= maxConcurrent || (t = queue.poll()) == null) {
+                    isDispatching = false;
+                    return;
+                }
+                running++;
+            }
+            t.start();
+        }
+    }
+
+    /**
+     * Drop connects that did not start yet, they finish with {@link CancellationException}. Connects in
+     * progress are not interrupted.
+     */
+    public void cancel() {
+        List<Target> dropped;
+        synchronized (this) {
+            if (isCancelled) return;
+            isCancelled = true;
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+        }
+        CancellationException e = new CancellationException("fleet connect cancelled");
+        for (Target t : dropped) {
+            onTargetDone(t, e, 0);
+        }
+    }
+
+    private void onTargetDone(@NotNull Target target, @Nullable Throwable error, long latencyNanos) {
+        Result result = new Result(target.connection.deviceId, error == null, latencyNanos, error);
+        boolean isFinished;
+        synchronized (this) {
+            if (target.isStarted) running--;
+            results.add(result);
+            if (error == null) {
+                connected++;
+                latencySumNanos += latencyNanos;
+                maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+            } else {
+                failed++;
+            }
+            isFinished = results.size() == total;
+        }
+        if (listener != null) listener.onResult(result);
+        if (isFinished) {
+            finish();
+        } else {
+            dispatch();
+        }
+    }
+
+    private void finish() {
+        synchronized (this) {
+            finishedNanos = System.nanoTime();
+        }
+        YLog.d(TAG, toString());
+        doneLatch.countDown();
+        if (listener != null) listener.onComplete(this);
+    }
+
+    /** Wait until all devices finish connecting. */
+    public void await() throws InterruptedException {
+        doneLatch.await();
+    }
+
+    /**
+     * Wait until all devices finish connecting.
+     *
+     * @return false if wait timed out
+     */
+    public boolean await(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return doneLatch.await(timeout, unit);
+    }
+
+    /** True if all devices finished connecting. */
+    public boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+
+    /** Amount of devices in this fleet connect. */
+    public int getTotalCount() {
+        return total;
+    }
+
+    public synchronized int getConnectedCount() {
+        return connected;
+    }
+
+    /** Amount of devices that failed to connect, including cancelled ones. */
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    /** Amount of connects in progress. */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /** Results of finished devices, in order they finished. */
+    @NotNull
+    public synchronized List<Result> getResults() {
+        return new ArrayList<>(results);
+    }
+
+    /** Average connect latency of connected devices, 0 if none connected. */
+    public synchronized long getAverageLatencyNanos() {
+        return connected == 0 ? 0 : latencySumNanos / connected;
+    }
+
+    /** Longest connect latency of connected devices. */
+    public synchronized long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /** Time since start until all devices finished, or until now if they're still connecting. */
+    public synchronized long getElapsedNanos() {
+        return (finishedNanos != 0 ? finishedNanos : System.nanoTime()) - startNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YeelightFleetConnect[" + connected + " connected, " + failed + " failed of " + total
+                + ", running " + running + "/" + maxConcurrent
+                + ", avg " + TimeUnit.NANOSECONDS.toMillis(getAverageLatencyNanos())
+                + "ms, max " + TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos)
+                + "ms, elapsed " + TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()) + "ms]";
+    }
+
+    /**
+     * Connect result of a single device.
+     */
+    public static final class Result {
+        public final long deviceId;
+        public final boolean isConnected;
+        /** Time from starting the connect until device connected, 0 if it was connected already. */
+        public final long latencyNanos;
+        /** Cause of failure, null if device connected. */
+        @Nullable
+        public final Throwable error;
+
+        Result(long deviceId, boolean isConnected, long latencyNanos, @Nullable Throwable error) {
+            this.deviceId = deviceId;
+            this.isConnected = isConnected;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return "Result[" + deviceId + (isConnected
+                    ? " connected in " + TimeUnit.NANOSECONDS.toMicros(latencyNanos) + "us]"
+                    : " failed: " + error + "]");
+        }
+    }
+
+    /**
+     * Forwards connect callbacks of a connection to fleet connects waiting for it. Pool adds single
+     * tracker to each of its connections.
+     */
+    static final class Tracker extends YeelightConnection.ListenerInterceptor {
+        private final CopyOnWriteArrayList<Target> targets = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onYeelightDeviceConnected(long deviceId) {
+            for (Target t : targets) {
+                t.complete(null);
+            }
+        }
+
+        @Override
+        public void onYeelightDeviceConnectionError(long deviceId, @NotNull Throwable exception, @Nullable YeelightCommand failedCommand) {
+            // errors of commands don't end the connect
+            if (failedCommand != null) return;
+            for (Target t : targets) {
+                t.complete(exception);
+            }
+        }
+    }
+
+    /** Connect of a single device. */
+    private final class Target extends YeelightTimer.Timeout {
+        @NotNull
+        final YeelightConnection connection;
+        @NotNull
+        private final Tracker tracker;
+        private final AtomicBoolean isCompleted = new AtomicBoolean(false);
+        /** Raised when connect started, only modified while holding the fleet lock. */
+        boolean isStarted = false;
+        private long connectStartNanos;
+
+        Target(@NotNull YeelightConnection connection, @NotNull Tracker tracker) {
+            this.connection = connection;
+            this.tracker = tracker;
+        }
+
+        void start() {
+            synchronized (YeelightFleetConnect.this) {
+                isStarted = true;
+            }
+            if (connection.isReleased()) {
+                complete(new IllegalStateException("connection released " + connection.deviceId));
+                return;
+            }
+            if (connection.isConnected()) {
+                complete(null);
+                return;
+            }
+            connectStartNanos = System.nanoTime();
+            // register before connecting so callback can't be missed
+            tracker.targets.add(this);
+            long timeoutMs = connection.getConnectTimeout();
+            // guards against connects that end without callback, like ones cancelled by disconnect
+            if (timeoutMs > 0) YeelightTimer.getDefault().schedule(this, timeoutMs + GUARD_MARGIN_MS);
+            try {
+                connection.connect();
+            } catch (RuntimeException e) {
+                complete(e);
+            }
+        }
+
+        void complete(@Nullable Throwable error) {
+            if (!isCompleted.compareAndSet(false, true)) return;
+            tracker.targets.remove(this);
+            cancel();
+            long latency = error == null && connectStartNanos != 0 ? System.nanoTime() - connectStartNanos : 0;
+            onTargetDone(this, error, latency);
+        }
+
+        /** Connect did not report back in time. Runs on timer thread. */
+        @Override
+        public void run() {
+            if (connection.isConnected()) {
+                complete(null);
+            } else {
+                complete(new SocketTimeoutException("connect timed out " + connection.deviceId));
+            }
+        }
+    }
+}
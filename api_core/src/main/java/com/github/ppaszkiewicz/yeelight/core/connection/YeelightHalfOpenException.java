@@ -0,0 +1,29 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import java.io.IOException;
+
+/**
+ * Connection was closed because device stopped responding while socket still looked connected,
+ * for example after it lost power. See {@link YeelightConnection#setIdleProbe(long, long)}.
+ */
+public class YeelightHalfOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long deviceId;
+    private final long silentMs;
+
+    public YeelightHalfOpenException(long deviceId, long silentMs) {
+        super("device " + deviceId + " did not respond for " + silentMs + "ms");
+        this.deviceId = deviceId;
+        this.silentMs = silentMs;
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    /** How long nothing was received from the device before connection was closed. */
+    public long getSilentMs() {
+        return silentMs;
+    }
+}
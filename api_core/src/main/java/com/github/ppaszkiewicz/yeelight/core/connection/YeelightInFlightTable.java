@@ -0,0 +1,213 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Commands that were sent and wait for a reply, indexed by their id.<br>
+ * This is an open addressed hash table of primitive int keys so matching a reply does not depend on
+ * the order replies arrive in. Reply of one command never removes other commands; commands that don't
+ * receive a reply are removed by their reply timeout ({@link YeelightConnection#DEFAULT_REPLY_TIMEOUT_MS}
+ * unless changed), or when socket closes if they wait without one.<br><br>
+ *
+ * All methods are synchronized so sending and reading threads can use it at the same time. Visitors
+ * are always called without holding the lock.
+ */
+public final class YeelightInFlightTable {
+    private static final int DEFAULT_CAPACITY = 16;
+    // states of slots
+    private static final byte EMPTY = 0;
+    private static final byte IN_FLIGHT = 1;
+    /** Entry was removed, slot is kept so probing continues past it. */
+    private static final byte REMOVED = 2;
+
+    /** Receives commands removed from the table when it's cleared. */
+    public interface Visitor {
+        void visit(@NotNull YeelightCommand command);
+    }
+
+    private byte[] states;
+    private int[] keys;
+    private YeelightCommand[] commands;
+    private int mask;
+    /** Amount of in flight entries. */
+    private int size = 0;
+    /** Amount of slots that are not empty (in flight or removed). */
+    private int used = 0;
+
+    public YeelightInFlightTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize expected max amount of commands in flight
+     */
+    public YeelightInFlightTable(int expectedSize) {
+        allocate(tableSizeFor(Math.max(expectedSize, 2) * 2));
+    }
+
+    /**
+     * Store command as sent.
+     *
+     * @return previous command with the same id that was replaced or null
+     */
+    @Nullable
+    public synchronized YeelightCommand put(@NotNull YeelightCommand command) {
+        int slot = find(command.id);
+        if (slot >= 0) {
+            // id reused while previous command is still in flight
+            YeelightCommand replaced = commands[slot];
+            commands[slot] = command;
+            return replaced;
+        }
+        if ((used + 1) * 4 > states.length * 3) {
+            // rehash, growing only if removed slots are not the reason table is full
+            rehash(size * 2 >= states.length / 2 ? states.length * 2 : states.length);
+        }
+        slot = hash(command.id) & mask;
+        while (states[slot] == IN_FLIGHT) {
+            slot = (slot + 1) & mask;
+        }
+        if (states[slot] == EMPTY) used++;
+        insert(slot, command);
+        return null;
+    }
+
+    /**
+     * Remove command with given id that received its reply.
+     *
+     * @return removed command or null if there's no command with given id
+     */
+    @Nullable
+    public synchronized YeelightCommand remove(int id) {
+        int slot = find(id);
+        if (slot < 0) return null;
+        YeelightCommand c = commands[slot];
+        removeSlot(slot);
+        return c;
+    }
+
+    /**
+     * Remove command with given id only if it's the expected command.
+     *
+     * @return true if command was removed
+     */
+    public synchronized boolean remove(int id, @NotNull YeelightCommand expected) {
+        int slot = find(id);
+        if (slot < 0 || commands[slot] != expected) return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Command with given id that is in flight or null.
+     */
+    @Nullable
+    public synchronized YeelightCommand get(int id) {
+        int slot = find(id);
+        return slot < 0 ? null : commands[slot];
+    }
+
+    /** Amount of commands in flight. */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Remove all commands.
+     *
+     * @param visitor optional visitor receiving removed commands
+     * @return amount of removed commands
+     */
+    public int clear(@Nullable Visitor visitor) {
+        YeelightCommand[] removed;
+        synchronized (this) {
+            if (size == 0) return 0;
+            removed = new YeelightCommand[size];
+            int n = 0;
+            for (int i = 0; i < states.length; i++) {
+                if (states[i] == IN_FLIGHT) removed[n++] = commands[i];
+            }
+            Arrays.fill(states, EMPTY);
+            Arrays.fill(commands, null);
+            size = 0;
+            used = 0;
+        }
+        if (visitor != null) {
+            for (YeelightCommand c : removed) {
+                visitor.visit(c);
+            }
+        }
+        return removed.length;
+    }
+
+    private void insert(int slot, @NotNull YeelightCommand command) {
+        states[slot] = IN_FLIGHT;
+        keys[slot] = command.id;
+        commands[slot] = command;
+        size++;
+    }
+
+    /** Slot of in flight entry with given key or -1. */
+    private int find(int id) {
+        int slot = hash(id) & mask;
+        while (true) {
+            byte state = states[slot];
+            if (state == EMPTY) return -1;
+            if (state == IN_FLIGHT && keys[slot] == id) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void removeSlot(int slot) {
+        states[slot] = REMOVED;
+        commands[slot] = null;
+        size--;
+        // if next slot is empty no probe passes this one, so it can become empty too
+        if (states[(slot + 1) & mask] == EMPTY) {
+            while (states[slot] == REMOVED) {
+                states[slot] = EMPTY;
+                used--;
+                slot = (slot - 1) & mask;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        byte[] oldStates = states;
+        int[] oldKeys = keys;
+        YeelightCommand[] oldCommands = commands;
+        allocate(capacity);
+        size = 0;
+        used = 0;
+        for (int i = 0; i < oldStates.length; i++) {
+            if (oldStates[i] != IN_FLIGHT) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (states[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            insert(slot, oldCommands[i]);
+            used++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        states = new byte[capacity];
+        keys = new int[capacity];
+        commands = new YeelightCommand[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int id) {
+        // ids are mostly sequential, spread them anyway in case they're not
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = Integer.highestOneBit(n - 1) << 1;
+        return Math.max(size, DEFAULT_CAPACITY);
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Splits bytes received from the device into lines terminated with <code>\r\n</code> (or <code>\n</code>)
+ * without decoding or copying them.<br>
+ * Lines are handed over as a view of internal buffer that is only valid during the callback.
+ * Buffer is obtained from {@link YeelightBufferPool} and must be returned with {@link #release()}.
+ */
+public final class YeelightLineFramer {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Default max length of a single line. */
+    public static final int DEFAULT_MAX_LINE_LENGTH = YeelightBufferPool.DEFAULT_BUFFER_SIZE - 2;
+
+    /** Receives framed lines. */
+    public interface LineHandler {
+        /**
+         * Line was received. Its content is between position and limit of the buffer (without line end).
+         * Buffer must not be retained after this returns.
+         */
+        void onLine(@NotNull ByteBuffer line);
+    }
+
+    private final int maxLineLength;
+    @NotNull
+    private final YeelightBufferPool pool;
+    /** Buffer in fill mode: received bytes are between 0 and position. */
+    private ByteBuffer buffer;
+    /** Index up to which buffer was already scanned for line end. */
+    private int scanned = 0;
+
+    /**
+     * @param maxLineLength max length of a line without line end, longer lines fail with {@link ProtocolException}
+     * @param pool          pool to obtain buffer from
+     */
+    public YeelightLineFramer(int maxLineLength, @NotNull YeelightBufferPool pool) {
+        this.maxLineLength = maxLineLength;
+        this.pool = pool;
+    }
+
+    /**
+     * Decode line into string.
+     */
+    @NotNull
+    public static String toString(@NotNull ByteBuffer line) {
+        if (line.hasArray()) {
+            return new String(line.array(), line.arrayOffset() + line.position(), line.remaining(), UTF_8);
+        }
+        byte[] bytes = new byte[line.remaining()];
+        line.duplicate().get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Read available bytes from the stream. This blocks until any bytes are received.
+     * Framer must use heap buffers.
+     *
+     * @return amount of bytes read or -1 if stream is finished
+     */
+    public int readFrom(@NotNull InputStream in) throws IOException {
+        ByteBuffer b = buffer();
+        int read = in.read(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        if (read > 0) b.position(b.position() + read);
+        return read;
+    }
+
+    /**
+     * Read available bytes from the channel.
+     *
+     * @return amount of bytes read or -1 if channel is finished
+     */
+    public int readFrom(@NotNull ReadableByteChannel channel) throws IOException {
+        return channel.read(buffer());
+    }
+
+    /**
+     * Pass all complete lines to the handler, keeping incomplete line for next read.
+     *
+     * @throws ProtocolException if line is longer than max line length
+     */
+    public void processLines(@NotNull LineHandler handler) throws ProtocolException {
+        ByteBuffer b = buffer();
+        int end = b.position();
+        int lineStart = 0;
+        for (int i = scanned; i < end; i++) {
+            if (b.get(i) == '\n') {
+                int lineEnd = (i > lineStart && b.get(i - 1) == '\r') ? i - 1 : i;
+                if (lineEnd - lineStart > maxLineLength) {
+                    throw new ProtocolException("reply longer than " + maxLineLength + " bytes");
+                }
+                if (lineEnd > lineStart) {
+                    b.limit(lineEnd).position(lineStart);
+                    try {
+                        handler.onLine(b);
+                    } finally {
+                        b.limit(b.capacity()).position(end);
+                    }
+                }
+                lineStart = i + 1;
+            }
+        }
+        int remaining = end - lineStart;
+        if (remaining > maxLineLength + 1) {
+            throw new ProtocolException("reply longer than " + maxLineLength + " bytes");
+        }
+        if (lineStart > 0) {
+            // move incomplete line to the front
+            b.limit(end).position(lineStart);
+            b.compact();
+        }
+        scanned = remaining;
+    }
+
+    /**
+     * Return buffer to the pool and drop any incomplete line. Framer can be reused afterwards.
+     */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        scanned = 0;
+    }
+
+    @NotNull
+    private ByteBuffer buffer() {
+        if (buffer == null) {
+            // fit max line with its line end
+            buffer = pool.acquire(maxLineLength + 2);
+            scanned = 0;
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses how long {@link YeelightTimerAutoConnection} stays open after last command, shared by all
+ * connections of a pool.<br>
+ * Each connection remembers gaps between its recent commands, ignoring gaps shorter than min linger
+ * as they never cause reconnects. Linger covers given quantile of these gaps with a small margin,
+ * so a device used regularly keeps its socket between commands. If the quantile is longer than max
+ * linger, next command would reconnect anyway so socket is closed after min linger instead.<br><br>
+ *
+ * Amount of open sockets is capped: when a connection opens over the cap, least recently used open
+ * connection is closed.
+ */
+public final class YeelightLingerPolicy {
+    private final static String TAG = "YeelightLingerPolicy";
+    public final static long DEFAULT_MIN_LINGER_MS = 250;
+    public final static long DEFAULT_MAX_LINGER_MS = 15000;
+    /** Linger used until connection has enough gaps to learn from. */
+    public final static long DEFAULT_INITIAL_LINGER_MS = 3000;
+    public final static double DEFAULT_QUANTILE = 0.9;
+    public final static int DEFAULT_MAX_OPEN_SOCKETS = 64;
+    /** Gaps needed before they are used. */
+    private final static int MIN_SAMPLES = 3;
+
+    private final int maxOpenSockets;
+    private final long minLingerMs;
+    private final long maxLingerMs;
+    private volatile long initialLingerMs = DEFAULT_INITIAL_LINGER_MS;
+    private volatile double quantile = DEFAULT_QUANTILE;
+
+    /** Open connections, least recently used first. Guarded by this. */
+    private final LinkedHashSet<YeelightTimerAutoConnection> open = new LinkedHashSet<>();
+    // stats, guarded by this
+    private long connects = 0;
+    private long reconnects = 0;
+    private long idleCloses = 0;
+    private long capCloses = 0;
+    private long lingerSumMs = 0;
+    private long lingerCount = 0;
+
+    public YeelightLingerPolicy() {
+        this(DEFAULT_MAX_OPEN_SOCKETS);
+    }
+
+    /**
+     * @param maxOpenSockets max amount of sockets open at once
+     */
+    public YeelightLingerPolicy(int maxOpenSockets) {
+        this(maxOpenSockets, DEFAULT_MIN_LINGER_MS, DEFAULT_MAX_LINGER_MS);
+    }
+
+    /**
+     * @param maxOpenSockets max amount of sockets open at once
+     * @param minLingerMs    linger of connections that would reconnect anyway
+     * @param maxLingerMs    longest linger
+     */
+    public YeelightLingerPolicy(int maxOpenSockets, long minLingerMs, long maxLingerMs) {
+        if (maxOpenSockets < 1) throw new IllegalArgumentException("max open sockets must be positive: " + maxOpenSockets);
+        if (minLingerMs <= 0 || maxLingerMs < minLingerMs)
+            throw new IllegalArgumentException("invalid linger range: " + minLingerMs + " - " + maxLingerMs);
+        this.maxOpenSockets = maxOpenSockets;
+        this.minLingerMs = minLingerMs;
+        this.maxLingerMs = maxLingerMs;
+    }
+
+    /** Set linger used until connection learns its gaps. */
+    @NotNull
+    public YeelightLingerPolicy setInitialLinger(long lingerMs) {
+        if (lingerMs <= 0) throw new IllegalArgumentException("linger must be positive: " + lingerMs);
+        initialLingerMs = lingerMs;
+        return this;
+    }
+
+    /** Set fraction of gaps between commands linger should cover, for example 0.9. */
+    @NotNull
+    public YeelightLingerPolicy setQuantile(double quantile) {
+        if (quantile <= 0 || quantile > 1) throw new IllegalArgumentException("quantile must be in (0, 1]: " + quantile);
+        this.quantile = quantile;
+        return this;
+    }
+
+    /** Linger for connection with given history of gaps. */
+    long lingerFor(@NotNull History history) {
+        long linger;
+        long gap = history.quantileMs(quantile);
+        if (gap < 0) {
+            linger = initialLingerMs;
+        } else {
+            // margin covers jitter of timer and of the caller
+            long covering = gap + gap / 4 + YeelightTimer.DEFAULT_TICK_MS;
+            linger = covering <= maxLingerMs ? Math.max(covering, minLingerMs) : minLingerMs;
+        }
+        synchronized (this) {
+            lingerSumMs += linger;
+            lingerCount++;
+        }
+        return linger;
+    }
+
+    /** Connection is about to send a command. */
+    void onSend(@NotNull YeelightTimerAutoConnection connection, @NotNull History history, boolean isReconnect) {
+        history.record(System.nanoTime(), minLingerMs);
+        synchronized (this) {
+            if (isReconnect) reconnects++;
+            // keep least recently used first
+            if (open.remove(connection)) open.add(connection);
+        }
+    }
+
+    /** Socket of connection was opened, returns connection that should be closed to keep the cap. */
+    @Nullable
+    YeelightTimerAutoConnection onOpened(@NotNull YeelightTimerAutoConnection connection) {
+        YeelightTimerAutoConnection victim = null;
+        synchronized (this) {
+            connects++;
+            open.add(connection);
+            if (open.size() > maxOpenSockets) {
+                for (YeelightTimerAutoConnection c : open) {
+                    if (c != connection) {
+                        victim = c;
+                        break;
+                    }
+                }
+                if (victim != null) {
+                    open.remove(victim);
+                    capCloses++;
+                }
+            }
+        }
+        if (victim != null) YLog.d(TAG, "closing " + victim.deviceId + " to stay within " + maxOpenSockets + " sockets");
+        return victim;
+    }
+
+    synchronized void onClosed(@NotNull YeelightTimerAutoConnection connection) {
+        open.remove(connection);
+    }
+
+    synchronized void onIdleClose() {
+        idleCloses++;
+    }
+
+    /** Max amount of sockets open at once. */
+    public int getMaxOpenSockets() {
+        return maxOpenSockets;
+    }
+
+    /** Amount of open sockets. */
+    public synchronized int getOpenCount() {
+        return open.size();
+    }
+
+    /** Amount of sockets opened. */
+    public synchronized long getConnectCount() {
+        return connects;
+    }
+
+    /** Amount of sockets opened by a command after connection closed before. */
+    public synchronized long getReconnectCount() {
+        return reconnects;
+    }
+
+    /** Amount of sockets closed after linger. */
+    public synchronized long getIdleCloseCount() {
+        return idleCloses;
+    }
+
+    /** Amount of sockets closed early to stay within the cap. */
+    public synchronized long getCapCloseCount() {
+        return capCloses;
+    }
+
+    /** Average chosen linger in milliseconds, 0 if nothing was chosen yet. */
+    public synchronized long getAverageLingerMs() {
+        return lingerCount == 0 ? 0 : lingerSumMs / lingerCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YeelightLingerPolicy[open " + open.size() + "/" + maxOpenSockets + ", connects " + connects
+                + ", reconnects " + reconnects + ", idle closes " + idleCloses + ", cap closes " + capCloses
+                + ", avg linger " + getAverageLingerMs() + "ms]";
+    }
+
+    /**
+     * Recent gaps between commands of a single connection.
+     */
+    static final class History {
+        private final long[] gapsMs;
+        /** Sorted copy of gaps, reused to avoid allocating. */
+        private final long[] sorted;
+        private int size = 0;
+        private int next = 0;
+        private long lastNanos = 0;
+
+        History(int capacity) {
+            gapsMs = new long[capacity];
+            sorted = new long[capacity];
+        }
+
+        /** Record command sent at given time, gap since previous one is kept if it's not too short. */
+        synchronized void record(long nowNanos, long minGapMs) {
+            if (lastNanos != 0) {
+                long gap = TimeUnit.NANOSECONDS.toMillis(nowNanos - lastNanos);
+                if (gap >= minGapMs) {
+                    gapsMs[next] = gap;
+                    next = (next + 1) % gapsMs.length;
+                    if (size < gapsMs.length) size++;
+                }
+            }
+            lastNanos = nowNanos;
+        }
+
+        /** Gap that given fraction of recent gaps is shorter or equal to, -1 if there are too few gaps. */
+        synchronized long quantileMs(double quantile) {
+            if (size < MIN_SAMPLES) return -1;
+            System.arraycopy(gapsMs, 0, sorted, 0, size);
+            Arrays.sort(sorted, 0, size);
+            int index = (int) Math.ceil(quantile * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection to the device in music mode.<br>
+ * Connecting sends <code>set_music</code> thru the fallback connection and waits for the device to
+ * connect back to {@link YeelightMusicServer}. Device does not reply to commands sent in music mode
+ * and doesn't limit their rate, so commands are written directly without waiting for replies or
+ * quota. Each command is completed with locally created OK reply once it's written.<br>
+ * Commands that read state of the device (<code>get_prop</code>, <code>cron_get</code>) need a real
+ * reply, so they are always sent thru the fallback connection.<br><br>
+ *
+ * Until device connects, and after music mode ends, commands are sent thru the fallback connection.
+ * When music mode ends device gets fallback connection back and this connection is released, so
+ * it can't be reused.
+ *
+ * @see YeelightDevice#startMusicConnection()
+ */
+public class YeelightMusicConnection extends YeelightConnection {
+    private final static String TAG = "YeeDeviceMusicConn";
+    /** Default time device has to connect back after <code>set_music</code> is sent. */
+    public final static long DEFAULT_ACCEPT_TIMEOUT_MS = 5000;
+    private final static Object[] SENT_RESULT = {YeelightReply.OK};
+
+    @NotNull
+    private final YeelightConnection fallback;
+    @NotNull
+    private final YeelightMusicServer server;
+    /** Guards {@link #encoder} and writing into output stream. */
+    private final Object writeLock = new Object();
+    private final YeelightCommandEncoder encoder = new YeelightCommandEncoder();
+    private final CountDownLatch connectLatch = new CountDownLatch(1);
+    private final AcceptTimeout acceptTimeout = new AcceptTimeout();
+    private volatile long acceptTimeoutMs = DEFAULT_ACCEPT_TIMEOUT_MS;
+
+    // fields below are guarded by this
+    @Nullable
+    private Socket socket;
+    @Nullable
+    private OutputStream out;
+    private boolean isConnecting = false;
+    private boolean isClosing = false;
+
+    /**
+     * @param device   device that will connect back
+     * @param fallback connection used to start music mode and to send commands when music mode is off
+     * @param server   server device connects to
+     */
+    public YeelightMusicConnection(@NotNull YeelightDevice device, @NotNull YeelightConnection fallback,
+                                   @NotNull YeelightMusicServer server) {
+        super(device);
+        if (fallback.deviceId != deviceId)
+            throw new IllegalArgumentException("fallback connection is not for this device: " + fallback.deviceId + " != " + deviceId);
+        this.fallback = fallback;
+        this.server = server;
+    }
+
+    /** Connection used when music mode is off. */
+    @NotNull
+    public YeelightConnection getFallback() {
+        return fallback;
+    }
+
+    /** Set how long device has to connect back after music mode was requested. */
+    @NotNull
+    public YeelightMusicConnection setAcceptTimeout(long timeoutMs) {
+        if (timeoutMs <= 0) throw new IllegalArgumentException("timeout must be positive: " + timeoutMs);
+        acceptTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    /** Ids are shared with fallback connection as commands might be sent thru it. */
+    @Override
+    public int nextMessageId() {
+        return fallback.nextMessageId();
+    }
+
+    @Override
+    public void send(@NotNull YeelightCommand... commands) {
+        if (isReleased()) {
+            // music mode ended after command was created
+            fallback.send(commands);
+            return;
+        }
+        OutputStream o;
+        synchronized (this) {
+            o = out;
+        }
+        if (o == null) {
+            fallback.send(commands);
+            return;
+        }
+        commands = sendQueries(commands);
+        if (commands.length == 0) return;
+        synchronized (writeLock) {
+            try {
+                encoder.reset();
+                for (YeelightCommand comm : commands) {
+                    encoder.encode(comm);
+                }
+                if (YLog.getInstance().isEnabled) {
+                    YLog.i(TAG, "write@" + deviceId + ": " + encoder);
+                }
+                encoder.writeTo(o);
+                o.flush();
+            } catch (IOException e) {
+                YLog.e(TAG, "write@" + deviceId + ": " + e.getMessage());
+                getCallbackParser().onYeelightDeviceConnectionError(deviceId, e, commands[0]);
+                for (YeelightCommand comm : commands) {
+                    comm.completeWithFailure(e);
+                }
+                closeMusic(e);
+                return;
+            }
+        }
+        // device never replies in music mode
+        long now = System.nanoTime();
+        for (YeelightCommand comm : commands) {
+            onCommandWritten(comm, now);
+            comm.completeWithReply(new YeelightReply(deviceId, comm.id, SENT_RESULT).withRequest(comm));
+        }
+    }
+
+    /**
+     * Send commands that need a reply thru the fallback connection.
+     *
+     * @return remaining commands that can be written in music mode
+     */
+    @NotNull
+    private YeelightCommand[] sendQueries(@NotNull YeelightCommand[] commands) {
+        int queries = 0;
+        for (YeelightCommand comm : commands) {
+            if (needsReply(comm)) queries++;
+        }
+        if (queries == 0) return commands;
+        if (queries == commands.length) {
+            fallback.send(commands);
+            return new YeelightCommand[0];
+        }
+        ArrayList<YeelightCommand> toFallback = new ArrayList<>(queries);
+        ArrayList<YeelightCommand> toWrite = new ArrayList<>(commands.length - queries);
+        for (YeelightCommand comm : commands) {
+            (needsReply(comm) ? toFallback : toWrite).add(comm);
+        }
+        fallback.send(toFallback.toArray(new YeelightCommand[queries]));
+        return toWrite.toArray(new YeelightCommand[toWrite.size()]);
+    }
+
+    /** True if command is useless without the reply device doesn't send in music mode. */
+    private static boolean needsReply(@NotNull YeelightCommand comm) {
+        return comm.method == YeelightMethod.get_prop || comm.method == YeelightMethod.cron_get;
+    }
+
+    /**
+     * Request music mode and wait for the device to connect asynchronously.
+     */
+    @Override
+    public void connect() {
+        if (isReleased())
+            throw new IllegalStateException("This music connection was released already " + deviceId);
+        synchronized (this) {
+            if (socket != null || isConnecting) {
+                YLog.i(TAG, "connect: already connected or connecting " + deviceId);
+                return;
+            }
+            isConnecting = true;
+        }
+        YeelightCommand setMusic;
+        try {
+            server.register(this);
+            setMusic = new YeelightCommand(fallback.nextMessageId(), YeelightMethod.set_music, null,
+                    YeelightMethod.MusicMode.turn_on, server.getHostFor(address), server.getPort());
+        } catch (IOException e) {
+            onAcceptFailed(e);
+            return;
+        }
+        YeelightTimer.getDefault().schedule(acceptTimeout, acceptTimeoutMs);
+        setMusic.onReply(new YeelightCommand.ErrorListener() {
+            @Override
+            public void onReply(@NotNull YeelightReply reply) {
+                if (reply.isError()) onAcceptFailed(new YeelightReplyException(reply));
+            }
+
+            @Override
+            public void onFailure(@NotNull YeelightCommand command, @NotNull Throwable error) {
+                onAcceptFailed(error);
+            }
+        });
+        try {
+            fallback.send(setMusic);
+        } catch (RuntimeException e) {
+            onAcceptFailed(e);
+        }
+    }
+
+    /**
+     * Request music mode and block until device connects.
+     *
+     * @throws IOException if device did not connect in time
+     */
+    @Override
+    public void connectSync() throws Exception {
+        connect();
+        connectLatch.await(acceptTimeoutMs + YeelightTimer.DEFAULT_TICK_MS * 2, TimeUnit.MILLISECONDS);
+        if (!isConnected()) throw new IOException("device did not start music mode " + deviceId);
+    }
+
+    /**
+     * End music mode by closing the connection. Device switches back to fallback connection.
+     */
+    @Override
+    public void disconnect() throws IOException {
+        boolean wasConnecting;
+        synchronized (this) {
+            wasConnecting = isConnecting;
+            if (socket != null) isClosing = true;
+        }
+        if (wasConnecting) {
+            onAcceptFailed(new IOException("music mode cancelled " + deviceId));
+        } else {
+            closeMusic(null);
+        }
+    }
+
+    @Override
+    public synchronized boolean isConnecting() {
+        return isConnecting;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return socket != null;
+    }
+
+    @Override
+    public synchronized boolean isClosing() {
+        return isClosing;
+    }
+
+    /** Device connected to the server. Called on server thread. */
+    void onAccepted(@NotNull Socket accepted) {
+        synchronized (this) {
+            if (!isConnecting || isReleased()) {
+                YeelightMusicServer.closeQuietly(accepted);
+                return;
+            }
+            try {
+                accepted.setTcpNoDelay(true);
+                out = new BufferedOutputStream(accepted.getOutputStream());
+            } catch (IOException e) {
+                YeelightMusicServer.closeQuietly(accepted);
+                isConnecting = false;
+                failConnecting(e);
+                return;
+            }
+            isConnecting = false;
+            socket = accepted;
+        }
+        acceptTimeout.cancel();
+        YLog.d(TAG, "music mode started " + deviceId);
+        Thread reader = new Thread(new ReadLoop(accepted), "YeelightMusic " + deviceId);
+        reader.setDaemon(true);
+        reader.start();
+        getCallbackParser().onYeelightDeviceConnected(deviceId);
+        connectLatch.countDown();
+    }
+
+    /** Music mode could not be started. */
+    void onAcceptFailed(@NotNull Throwable error) {
+        synchronized (this) {
+            if (!isConnecting) return;
+            isConnecting = false;
+        }
+        failConnecting(error);
+    }
+
+    private void failConnecting(@NotNull Throwable error) {
+        YLog.e(TAG, "music mode failed " + deviceId + ": " + error.getMessage());
+        acceptTimeout.cancel();
+        server.unregister(this);
+        getCallbackParser().onYeelightDeviceConnectionError(deviceId, error, null);
+        restoreFallback();
+        connectLatch.countDown();
+    }
+
+    /**
+     * Close music connection and switch device back to the fallback connection.
+     *
+     * @param error cause of closing or null if it was requested
+     */
+    private void closeMusic(@Nullable Throwable error) {
+        Socket s;
+        synchronized (this) {
+            s = socket;
+            if (s == null) return;
+            socket = null;
+            out = null;
+            if (isClosing) error = null;
+            isClosing = false;
+        }
+        YeelightMusicServer.closeQuietly(s);
+        YLog.d(TAG, "music mode ended " + deviceId);
+        getCallbackParser().onYeelightDeviceDisconnected(deviceId, error);
+        restoreFallback();
+        onDisconnected();
+    }
+
+    /** Give device its fallback connection back, this connection can't be used anymore. */
+    private void restoreFallback() {
+        YeelightDevice d = device.get();
+        if (d != null && d.getExistingConnection() == this) d.setDeviceConnection(fallback);
+        release();
+    }
+
+    /** Fails music mode if device did not connect in time. */
+    private final class AcceptTimeout extends YeelightTimer.Timeout {
+        @Override
+        public void run() {
+            onAcceptFailed(new IOException("device did not connect back in time " + deviceId));
+        }
+    }
+
+    /** Reads the connection only to find out when device closes it. */
+    private final class ReadLoop implements Runnable {
+        @NotNull
+        private final Socket socket;
+
+        ReadLoop(@NotNull Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            Throwable error;
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[256];
+                //noinspection StatementWithEmptyBody
+                while (in.read(buffer) >= 0) {
+                    // device is not expected to send anything in music mode
+                }
+                error = new EOFException("music connection closed by the device");
+            } catch (IOException e) {
+                error = e;
+            }
+            closeMusic(error);
+        }
+    }
+}
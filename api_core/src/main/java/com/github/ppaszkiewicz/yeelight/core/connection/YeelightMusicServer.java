@@ -0,0 +1,203 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Local TCP server that devices connect back to when they enter music mode.<br>
+ * {@link YeelightMusicConnection} registers itself here before sending <code>set_music</code>, and
+ * incoming connection is matched to it by address of the device. Single server can serve any
+ * amount of devices.<br><br>
+ *
+ * Accepting runs on a single daemon thread started with {@link #start()}.
+ */
+public final class YeelightMusicServer {
+    private static final String TAG = "YeelightMusicServer";
+    private static YeelightMusicServer defaultServer;
+
+    private final int requestedPort;
+    @Nullable
+    private final String host;
+    /** Music connections waiting for device to connect, by device address. Guarded by this. */
+    private final HashMap<String, YeelightMusicConnection> pending = new HashMap<>();
+    @Nullable
+    private ServerSocket serverSocket;
+    @Nullable
+    private Thread acceptThread;
+
+    /**
+     * Server shared by all devices, listening on any free port.
+     */
+    @NotNull
+    public static synchronized YeelightMusicServer getDefault() {
+        if (defaultServer == null) defaultServer = new YeelightMusicServer(null, 0);
+        return defaultServer;
+    }
+
+    /**
+     * @param host address devices should connect to, if null it's resolved for each device as the
+     *             local address of the interface that reaches it
+     * @param port port to listen on, 0 to use any free port
+     */
+    public YeelightMusicServer(@Nullable String host, int port) {
+        this.host = host;
+        this.requestedPort = port;
+    }
+
+    /**
+     * Start listening if it's not started yet.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) return;
+        ServerSocket ss = new ServerSocket();
+        ss.setReuseAddress(true);
+        ss.bind(new InetSocketAddress(requestedPort));
+        serverSocket = ss;
+        acceptThread = new Thread(new AcceptLoop(ss), TAG);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        YLog.i(TAG, "listening on port " + ss.getLocalPort());
+    }
+
+    /** True if server is listening. */
+    public synchronized boolean isStarted() {
+        return serverSocket != null;
+    }
+
+    /**
+     * Port server listens on.
+     *
+     * @throws IllegalStateException if server is not started
+     */
+    public synchronized int getPort() {
+        if (serverSocket == null) throw new IllegalStateException("music server is not started");
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Address that device with given address should connect to.
+     */
+    @NotNull
+    public String getHostFor(@NotNull String deviceAddress) throws IOException {
+        if (host != null) return host;
+        // connecting datagram socket only picks the route, nothing is sent
+        DatagramSocket ds = new DatagramSocket();
+        try {
+            ds.connect(InetAddress.getByName(deviceAddress), 9);
+            InetAddress local = ds.getLocalAddress();
+            if (local == null || local.isAnyLocalAddress())
+                throw new IOException("no local address reaching " + deviceAddress);
+            return local.getHostAddress();
+        } finally {
+            ds.close();
+        }
+    }
+
+    /**
+     * Stop listening. Music connections that are already established are not affected, connections
+     * waiting for the device fail.
+     */
+    public void close() {
+        YeelightMusicConnection[] waiting;
+        synchronized (this) {
+            if (serverSocket == null) return;
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // ignore any exception here
+            }
+            serverSocket = null;
+            acceptThread = null;
+            waiting = pending.values().toArray(new YeelightMusicConnection[pending.size()]);
+            pending.clear();
+        }
+        for (YeelightMusicConnection c : waiting) {
+            c.onAcceptFailed(new IOException("music server closed"));
+        }
+    }
+
+    /**
+     * Wait for device of given connection to connect. Replaces connection that waited for the same
+     * device before.
+     */
+    void register(@NotNull YeelightMusicConnection connection) throws IOException {
+        YeelightMusicConnection replaced;
+        synchronized (this) {
+            start();
+            replaced = pending.put(normalize(connection.address), connection);
+        }
+        if (replaced != null && replaced != connection) {
+            replaced.onAcceptFailed(new IOException("replaced by new music connection"));
+        }
+    }
+
+    /** Stop waiting for device of given connection. */
+    synchronized void unregister(@NotNull YeelightMusicConnection connection) {
+        String key = normalize(connection.address);
+        if (pending.get(key) == connection) pending.remove(key);
+    }
+
+    private void onAccepted(@NotNull Socket socket) {
+        String address = socket.getInetAddress().getHostAddress();
+        YeelightMusicConnection connection;
+        synchronized (this) {
+            connection = pending.remove(address);
+        }
+        if (connection == null) {
+            YLog.e(TAG, "unexpected connection from " + address);
+            closeQuietly(socket);
+            return;
+        }
+        connection.onAccepted(socket);
+    }
+
+    /** Device addresses are matched as resolved IP addresses. */
+    @NotNull
+    private static String normalize(@NotNull String address) {
+        try {
+            return InetAddress.getByName(address).getHostAddress();
+        } catch (IOException e) {
+            return address;
+        }
+    }
+
+    static void closeQuietly(@Nullable Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore any exception here
+        }
+    }
+
+    private final class AcceptLoop implements Runnable {
+        @NotNull
+        private final ServerSocket serverSocket;
+
+        AcceptLoop(@NotNull ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    onAccepted(serverSocket.accept());
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) YLog.e(TAG, "accept failed: " + e.getMessage());
+                }
+            }
+            YLog.i(TAG, "stopped listening");
+        }
+    }
+}
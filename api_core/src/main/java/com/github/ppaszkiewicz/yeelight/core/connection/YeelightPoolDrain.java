@@ -0,0 +1,130 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graceful shutdown of all connections of a pool. Created by
+ * {@link YeelightConnectionPool#drain(long, Listener)}.<br>
+ * Each connection stops accepting commands, waits for replies to commands it already sent and is then
+ * closed and released. Commands still not answered at the deadline are abandoned.<br><br>
+ *
+ * Listener is invoked from socket threads or from the timer thread.
+ */
+public final class YeelightPoolDrain {
+    private final static String TAG = "YeelightPoolDrain";
+
+    /** Receives result of pool drain. */
+    public interface Listener {
+        /** All connections finished draining and are closed. */
+        void onComplete(@NotNull YeelightPoolDrain drain);
+    }
+
+    @Nullable
+    private final Listener listener;
+    private final int total;
+    private final long startNanos = System.nanoTime();
+    private final CountDownLatch doneLatch;
+    // fields below are guarded by this
+    private int drained = 0;
+    private long completed = 0;
+    private long abandoned = 0;
+    private long finishedNanos = 0;
+
+    YeelightPoolDrain(int total, @Nullable Listener listener) {
+        this.total = total;
+        this.listener = listener;
+        doneLatch = new CountDownLatch(total);
+    }
+
+    /** Drain given connection and release it once it's closed. Called by the pool. */
+    void drain(@NotNull final YeelightConnection connection, long timeoutMs) {
+        connection.drain(timeoutMs, new YeelightConnection.DrainListener() {
+            @Override
+            public void onDrained(long deviceId, int completed, int abandoned) {
+                connection.release();
+                onConnectionDrained(completed, abandoned);
+            }
+        });
+    }
+
+    /** Finish right away if pool had no connections. Called by the pool. */
+    void start() {
+        if (total == 0) finish();
+    }
+
+    private void onConnectionDrained(int completed, int abandoned) {
+        boolean isFinished;
+        synchronized (this) {
+            drained++;
+            this.completed += completed;
+            this.abandoned += abandoned;
+            isFinished = drained == total;
+        }
+        doneLatch.countDown();
+        if (isFinished) finish();
+    }
+
+    private void finish() {
+        synchronized (this) {
+            finishedNanos = System.nanoTime();
+        }
+        YLog.d(TAG, toString());
+        if (listener != null) listener.onComplete(this);
+    }
+
+    /** Wait until all connections are closed. */
+    public void await() throws InterruptedException {
+        doneLatch.await();
+    }
+
+    /**
+     * Wait until all connections are closed.
+     *
+     * @return false if wait timed out
+     */
+    public boolean await(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return doneLatch.await(timeout, unit);
+    }
+
+    /** True if all connections are closed. */
+    public boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+
+    /** Amount of connections in this drain. */
+    public int getTotalCount() {
+        return total;
+    }
+
+    /** Amount of connections that finished draining. */
+    public synchronized int getDrainedCount() {
+        return drained;
+    }
+
+    /** Amount of commands that got a reply or failed before their connection closed. */
+    public synchronized long getCompletedCount() {
+        return completed;
+    }
+
+    /** Amount of commands failed because their connection closed before they were answered or sent. */
+    public synchronized long getAbandonedCount() {
+        return abandoned;
+    }
+
+    /** Time since start until all connections closed, or until now if they're still draining. */
+    public synchronized long getElapsedNanos() {
+        return (finishedNanos != 0 ? finishedNanos : System.nanoTime()) - startNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YeelightPoolDrain[" + drained + " of " + total + " drained, " + completed + " completed, "
+                + abandoned + " abandoned, elapsed " + TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()) + "ms]";
+    }
+}
@@ -0,0 +1,260 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps commands sent thru a single connection within the device command quota.<br>
+ * This is a token bucket: each command takes a token and tokens refill at current rate, up to the
+ * burst size. Commands that don't get a token are queued and written once tokens refill, instead of
+ * being sent and rejected by the device. Queue collapses repeated writes of a setter
+ * (see {@link YeelightSendQueue}), so bursts of setters don't use up the quota.<br>
+ * Rate adapts to the device (AIMD): each quota exceeded error halves it, each successful reply
+ * increases it by a small step until it reaches the max rate again.<br><br>
+ *
+ * Set it with {@link YeelightConnection#setRateGovernor(YeelightRateGovernor)}. Single governor
+ * must not be shared between connections.
+ */
+public final class YeelightRateGovernor {
+    private static final String TAG = "YeelightRateGovernor";
+    /** Commands per minute device allows on a single connection. */
+    public static final int DEVICE_QUOTA_PER_MINUTE = 60;
+    /** Default amount of commands that can be sent at once. */
+    public static final int DEFAULT_BURST = 5;
+    /** Rate never drops below this many commands per minute. */
+    public static final double MIN_RATE_PER_MINUTE = 1;
+    /** Rate is decreased at most once in this time, so burst of quota errors counts as one. */
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    private final double maxRatePerMinute;
+    private final int burst;
+    private final double increaseStep;
+    private final double decreaseFactor;
+
+    // fields below are guarded by this
+    /** Commands waiting for a token, created when governor is set on a connection. */
+    @Nullable
+    private YeelightSendQueue queue;
+    private int queueCapacity = YeelightSendQueue.DEFAULT_CAPACITY;
+    @NotNull
+    private YeelightSendQueue.DropPolicy queueDropPolicy = YeelightSendQueue.DropPolicy.DROP_OLDEST;
+    private double ratePerMinute;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private long lastDecreaseNanos = lastRefillNanos - DECREASE_INTERVAL_NANOS;
+    /** Socket that queued commands are written to. */
+    @Nullable
+    private YeelightSocket<?> socket;
+    private long quotaErrorCount = 0;
+
+    private final DrainTimeout drainTimeout = new DrainTimeout();
+
+    /**
+     * Governor matching device quota, {@link #DEVICE_QUOTA_PER_MINUTE} with burst of {@link #DEFAULT_BURST}.
+     */
+    public YeelightRateGovernor() {
+        this(DEVICE_QUOTA_PER_MINUTE, DEFAULT_BURST);
+    }
+
+    /**
+     * @param maxRatePerMinute max commands per minute
+     * @param burst            amount of commands that can be sent at once
+     */
+    public YeelightRateGovernor(double maxRatePerMinute, int burst) {
+        this(maxRatePerMinute, burst, 1, 0.5);
+    }
+
+    /**
+     * @param maxRatePerMinute max commands per minute
+     * @param burst            amount of commands that can be sent at once
+     * @param increaseStep     commands per minute added to the rate after each successful reply
+     * @param decreaseFactor   rate is multiplied by this after quota exceeded error, between 0 and 1
+     */
+    public YeelightRateGovernor(double maxRatePerMinute, int burst, double increaseStep, double decreaseFactor) {
+        if (maxRatePerMinute < MIN_RATE_PER_MINUTE)
+            throw new IllegalArgumentException("rate must be at least " + MIN_RATE_PER_MINUTE + ": " + maxRatePerMinute);
+        if (burst < 1) throw new IllegalArgumentException("burst must be positive: " + burst);
+        if (increaseStep < 0) throw new IllegalArgumentException("increase step can't be negative: " + increaseStep);
+        if (decreaseFactor <= 0 || decreaseFactor >= 1)
+            throw new IllegalArgumentException("decrease factor must be between 0 and 1: " + decreaseFactor);
+        this.maxRatePerMinute = maxRatePerMinute;
+        this.burst = burst;
+        this.increaseStep = increaseStep;
+        this.decreaseFactor = decreaseFactor;
+        ratePerMinute = maxRatePerMinute;
+        tokens = burst;
+    }
+
+    /** Current rate in commands per minute. */
+    public synchronized double getRate() {
+        return ratePerMinute;
+    }
+
+    /** Max rate in commands per minute. */
+    public double getMaxRate() {
+        return maxRatePerMinute;
+    }
+
+    /**
+     * Limit amount of commands waiting for a token.
+     */
+    @NotNull
+    public synchronized YeelightRateGovernor setQueueLimit(int capacity, @NotNull YeelightSendQueue.DropPolicy dropPolicy) {
+        if (queue != null) queue.setLimit(capacity, dropPolicy);
+        else if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        queueCapacity = capacity;
+        queueDropPolicy = dropPolicy;
+        return this;
+    }
+
+    /** Amount of commands waiting for a token. If this stays high the device is saturated. */
+    public synchronized int getQueueDepth() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    /** Amount of waiting commands that were superseded or dropped so far. */
+    public synchronized long getDiscardedCount() {
+        return queue != null ? queue.getSupersededCount() + queue.getDroppedCount() : 0;
+    }
+
+    /**
+     * Bind this to the connection it limits.
+     *
+     * @throws IllegalStateException if this is already used by another device
+     */
+    synchronized void attach(@NotNull YeelightConnection connection) {
+        if (queue == null) {
+            queue = new YeelightSendQueue(connection.deviceId, queueCapacity, queueDropPolicy);
+        } else if (queue.deviceId != connection.deviceId) {
+            throw new IllegalStateException("rate governor can't be shared between devices");
+        }
+    }
+
+    /** Amount of quota exceeded errors received so far. */
+    public synchronized long getQuotaErrorCount() {
+        return quotaErrorCount;
+    }
+
+    /**
+     * Write commands that get a token right away and queue the rest. Called by the socket instead
+     * of writing directly.
+     */
+    void submit(@NotNull YeelightSocket<?> socket, @NotNull YeelightCommand... msg) {
+        List<YeelightReply> displaced = new ArrayList<>(0);
+        synchronized (this) {
+            if (queue == null) attach(socket.connection);
+            this.socket = socket;
+            refill(System.nanoTime());
+            int now = 0;
+            if (queue.isEmpty()) {
+                // queue keeps the order, so only take tokens if nothing is waiting
+                now = Math.min((int) tokens, msg.length);
+                tokens -= now;
+            }
+            if (now == msg.length) {
+                socket.writeDirect(msg);
+                return;
+            }
+            if (now > 0) {
+                YeelightCommand[] batch = new YeelightCommand[now];
+                System.arraycopy(msg, 0, batch, 0, now);
+                socket.writeDirect(batch);
+            }
+            for (int i = now; i < msg.length; i++) {
+                queue.offer(msg[i], displaced);
+            }
+            scheduleDrain();
+        }
+        YeelightSendQueue.deliver(displaced);
+    }
+
+    /**
+     * Adapt the rate to a reply received from the device.
+     */
+    void onReply(@NotNull YeelightReply reply) {
+        if (reply.isQuotaExceeded()) {
+            onQuotaExceeded();
+        } else if (reply.getCommand() != null && !reply.isError()) {
+            synchronized (this) {
+                ratePerMinute = Math.min(maxRatePerMinute, ratePerMinute + increaseStep);
+            }
+        }
+    }
+
+    private synchronized void onQuotaExceeded() {
+        quotaErrorCount++;
+        long now = System.nanoTime();
+        // device is over quota, don't use tokens that were refilled at old rate
+        refill(now);
+        tokens = Math.min(tokens, 0);
+        if (now - lastDecreaseNanos < DECREASE_INTERVAL_NANOS) return;
+        lastDecreaseNanos = now;
+        ratePerMinute = Math.max(MIN_RATE_PER_MINUTE, ratePerMinute * decreaseFactor);
+        YLog.e(TAG, "quota exceeded, rate lowered to " + ratePerMinute + "/min");
+        if (queue != null && !queue.isEmpty()) scheduleDrain();
+    }
+
+    /**
+     * Fail all queued commands.
+     *
+     * @return amount of failed commands
+     */
+    int cancelQueued(@NotNull Throwable error) {
+        YeelightCommand[] cancelled;
+        synchronized (this) {
+            if (queue == null) return 0;
+            cancelled = queue.drain();
+            drainTimeout.cancel();
+        }
+        for (YeelightCommand c : cancelled) {
+            c.completeWithFailure(error);
+        }
+        return cancelled.length;
+    }
+
+    /** Write queued commands that have tokens available. */
+    private synchronized void drain() {
+        if (queue == null || queue.isEmpty() || socket == null) return;
+        refill(System.nanoTime());
+        YeelightCommand[] batch = queue.poll((int) tokens);
+        if (batch.length > 0) {
+            tokens -= batch.length;
+            // lock is held so commands submitted meanwhile can't overtake these
+            socket.writeDirect(batch);
+        }
+        if (!queue.isEmpty()) scheduleDrain();
+    }
+
+    /** Schedule drain for when next token is available. */
+    private void scheduleDrain() {
+        double missing = 1 - tokens;
+        long delayMs = missing <= 0 ? 0 : (long) Math.ceil(missing * NANOS_PER_MINUTE / ratePerMinute / 1000000);
+        YeelightTimer.getDefault().schedule(drainTimeout, delayMs);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * ratePerMinute / NANOS_PER_MINUTE);
+        lastRefillNanos = now;
+    }
+
+    @NotNull
+    @Override
+    public synchronized String toString() {
+        return "YeelightRateGovernor[rate=" + ratePerMinute + "/min, max=" + maxRatePerMinute
+                + ", queue=" + getQueueDepth() + ", quotaErrors=" + quotaErrorCount + "]";
+    }
+
+    private final class DrainTimeout extends YeelightTimer.Timeout {
+        @Override
+        public void run() {
+            drain();
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconnects watched connections after they drop with an error, with exponential backoff and jitter.<br>
+ * Each device has a circuit breaker: after {@link #setFailureThreshold(int) threshold} of failed
+ * connects in a row it opens and device is left alone for the open period. After that single
+ * half-open probe connects again: if it succeeds breaker closes, otherwise it opens again for twice as
+ * long (up to max). Connections that drop before they stay up for the stable period count as failed,
+ * so flapping devices back off and trip the breaker too. Retries and probes are randomized so devices
+ * that went down together don't reconnect at once.<br><br>
+ *
+ * Use {@link #requestConnect(YeelightConnection)} instead of {@link YeelightConnection#connect()} to
+ * connect watched connections, so open breakers are respected. Supervisor can be set as
+ * {@link YeelightConnectionPool.Extension} to watch all connections of a pool. It should only be used
+ * with connections that are connected manually, like {@link YeelightBasicConnection}.
+ */
+public final class YeelightReconnectSupervisor implements YeelightConnectionPool.Extension {
+    private final static String TAG = "YeelightReconnect";
+    public final static long DEFAULT_BASE_DELAY_MS = 500;
+    public final static long DEFAULT_MAX_DELAY_MS = 30000;
+    public final static int DEFAULT_FAILURE_THRESHOLD = 5;
+    public final static long DEFAULT_OPEN_MS = 30000;
+    public final static long DEFAULT_MAX_OPEN_MS = 5 * 60000;
+    public final static long DEFAULT_STABLE_MS = 10000;
+
+    /** State of circuit breaker of a device. */
+    public enum BreakerState {
+        /** Device is reconnected normally. */
+        CLOSED,
+        /** Device failed too many times, no connects until open period passes. */
+        OPEN,
+        /** Single probe connect is in progress. */
+        HALF_OPEN
+    }
+
+    @NotNull
+    private final YeelightTimer timer;
+    private final Random random = new Random();
+    private volatile long baseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private volatile long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openMs = DEFAULT_OPEN_MS;
+    private volatile long maxOpenMs = DEFAULT_MAX_OPEN_MS;
+    private volatile long stableNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STABLE_MS);
+    /** Watched devices. Guarded by this. */
+    private final HashMap<Long, Watcher> watchers = new HashMap<>();
+    // stats, guarded by this
+    private long reconnects = 0;
+    private long trips = 0;
+    private long probes = 0;
+
+    public YeelightReconnectSupervisor() {
+        this(YeelightTimer.getDefault());
+    }
+
+    /**
+     * @param timer timer scheduling retries and probes
+     */
+    public YeelightReconnectSupervisor(@NotNull YeelightTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Set backoff of retries: n-th retry waits random time between half and full of
+     * <code>base * 2^n</code>, limited to max.
+     */
+    @NotNull
+    public YeelightReconnectSupervisor setBackoff(long baseDelayMs, long maxDelayMs) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs)
+            throw new IllegalArgumentException("invalid backoff: " + baseDelayMs + " - " + maxDelayMs);
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        return this;
+    }
+
+    /** Set amount of failed connects in a row that opens the breaker. */
+    @NotNull
+    public YeelightReconnectSupervisor setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) throw new IllegalArgumentException("threshold must be positive: " + failureThreshold);
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /**
+     * Set how long breaker stays open before half-open probe. Each failed probe doubles it up to max.
+     */
+    @NotNull
+    public YeelightReconnectSupervisor setOpenPeriod(long openMs, long maxOpenMs) {
+        if (openMs <= 0 || maxOpenMs < openMs)
+            throw new IllegalArgumentException("invalid open period: " + openMs + " - " + maxOpenMs);
+        this.openMs = openMs;
+        this.maxOpenMs = maxOpenMs;
+        return this;
+    }
+
+    /** Set how long connection has to stay up before its failures are forgotten. */
+    @NotNull
+    public YeelightReconnectSupervisor setStablePeriod(long stableMs) {
+        if (stableMs < 0) throw new IllegalArgumentException("stable period can't be negative: " + stableMs);
+        stableNanos = TimeUnit.MILLISECONDS.toNanos(stableMs);
+        return this;
+    }
+
+    @Override
+    public void onInstantiateConnection(@NotNull YeelightConnection connection) {
+        watch(connection);
+    }
+
+    /**
+     * Start reconnecting given connection when it drops.
+     */
+    public void watch(@NotNull YeelightConnection connection) {
+        Watcher w;
+        synchronized (this) {
+            Watcher old = watchers.get(connection.deviceId);
+            if (old != null && old.connection == connection) return;
+            if (old != null) old.stop();
+            w = new Watcher(connection);
+            watchers.put(connection.deviceId, w);
+        }
+        connection.addConnectionListenerInterceptor(w);
+    }
+
+    /**
+     * Stop reconnecting connection of given device.
+     */
+    public void unwatch(long deviceId) {
+        Watcher w;
+        synchronized (this) {
+            w = watchers.remove(deviceId);
+        }
+        if (w != null) w.stop();
+    }
+
+    /**
+     * Connect watched connection unless its breaker is open or retry is already scheduled. Connections
+     * that are not watched are connected right away.
+     *
+     * @return false if connect was not started because of the breaker or pending retry
+     */
+    public boolean requestConnect(@NotNull YeelightConnection connection) {
+        Watcher w;
+        synchronized (this) {
+            w = watchers.get(connection.deviceId);
+        }
+        if (w == null || w.connection != connection) {
+            connection.connect();
+            return true;
+        }
+        return w.requestConnect();
+    }
+
+    /** Breaker state of given device, {@link BreakerState#CLOSED} if it's not watched. */
+    @NotNull
+    public BreakerState getState(long deviceId) {
+        Watcher w;
+        synchronized (this) {
+            w = watchers.get(deviceId);
+        }
+        return w == null ? BreakerState.CLOSED : w.getState();
+    }
+
+    /** Failed connects and unstable connections of given device since it was last stable. */
+    public int getFailureCount(long deviceId) {
+        Watcher w;
+        synchronized (this) {
+            w = watchers.get(deviceId);
+        }
+        return w == null ? 0 : w.getFailures();
+    }
+
+    /** Amount of reconnects started by this supervisor, including probes. */
+    public synchronized long getReconnectCount() {
+        return reconnects;
+    }
+
+    /** Amount of times any breaker opened. */
+    public synchronized long getTripCount() {
+        return trips;
+    }
+
+    /** Amount of half-open probes. */
+    public synchronized long getProbeCount() {
+        return probes;
+    }
+
+    /** Amount of devices with open or half-open breaker. */
+    public synchronized int getOpenCount() {
+        int count = 0;
+        for (Watcher w : watchers.values()) {
+            if (w.getState() != BreakerState.CLOSED) count++;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YeelightReconnectSupervisor[watched " + watchers.size() + ", open " + getOpenCount()
+                + ", reconnects " + reconnects + ", trips " + trips + ", probes " + probes + "]";
+    }
+
+    private synchronized void count(boolean isProbe, boolean isTrip) {
+        if (isTrip) {
+            trips++;
+        } else {
+            reconnects++;
+            if (isProbe) probes++;
+        }
+    }
+
+    /** Random delay between half and full of given delay. */
+    private long jitter(long delayMs) {
+        long half = delayMs / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delayMs - half));
+        }
+    }
+
+    /**
+     * Supervises a single connection. Receives callbacks on socket threads and retries on timer thread.
+     */
+    private final class Watcher extends YeelightConnection.ListenerInterceptor {
+        @NotNull
+        final YeelightConnection connection;
+        private final RetryTimeout retry = new RetryTimeout();
+        /** Armed on connect, forgets failures once connection stayed up for the stable period. */
+        private final StableTimeout stable = new StableTimeout();
+        // fields below are guarded by this
+        private BreakerState state = BreakerState.CLOSED;
+        private int failures = 0;
+        private long currentOpenMs = openMs;
+        private boolean isStopped = false;
+
+        Watcher(@NotNull YeelightConnection connection) {
+            // no tag, watcher of unwatched connection stays in its stack and does nothing
+            super();
+            this.connection = connection;
+        }
+
+        synchronized BreakerState getState() {
+            return state;
+        }
+
+        synchronized int getFailures() {
+            return failures;
+        }
+
+        void stop() {
+            synchronized (this) {
+                isStopped = true;
+            }
+            retry.cancel();
+            stable.cancel();
+        }
+
+        boolean requestConnect() {
+            synchronized (this) {
+                if (isStopped || state != BreakerState.CLOSED || retry.isPending()) return false;
+            }
+            connection.connect();
+            return true;
+        }
+
+        @Override
+        public void onYeelightDeviceConnected(long deviceId) {
+            synchronized (this) {
+                if (state != BreakerState.CLOSED) YLog.d(TAG, "breaker closed " + deviceId);
+                state = BreakerState.CLOSED;
+            }
+            retry.cancel();
+            timer.schedule(stable, TimeUnit.NANOSECONDS.toMillis(stableNanos));
+        }
+
+        @Override
+        public void onYeelightDeviceConnectionError(long deviceId, @NotNull Throwable exception, @Nullable YeelightCommand failedCommand) {
+            // errors of commands end with disconnect, only failed connects are handled here
+            if (failedCommand != null) return;
+            onFailure(deviceId);
+        }
+
+        @Override
+        public void onYeelightDeviceDisconnected(long deviceId, @Nullable Throwable error) {
+            stable.cancel();
+            // disconnect without error was requested
+            if (error == null) return;
+            synchronized (this) {
+                if (isStopped || connection.isReleased() || state != BreakerState.CLOSED) return;
+            }
+            YLog.d(TAG, "connection lost " + deviceId);
+            onFailure(deviceId);
+        }
+
+        /** Schedule retry or probe after failed connect or unstable connection. */
+        private void onFailure(long deviceId) {
+            long delay;
+            boolean isTrip = false;
+            synchronized (this) {
+                if (isStopped || connection.isReleased()) return;
+                failures++;
+                if (state == BreakerState.HALF_OPEN) {
+                    // failed probe, stay away for longer
+                    currentOpenMs = Math.min(currentOpenMs * 2, maxOpenMs);
+                    state = BreakerState.OPEN;
+                    delay = jitter(currentOpenMs);
+                    isTrip = true;
+                } else if (failures >= failureThreshold) {
+                    state = BreakerState.OPEN;
+                    delay = jitter(currentOpenMs);
+                    isTrip = true;
+                } else {
+                    delay = backoff(failures - 1);
+                }
+            }
+            if (isTrip) {
+                count(false, true);
+                YLog.e(TAG, "breaker open " + deviceId + " after " + failures + " failures, probe in " + delay + "ms");
+            }
+            timer.schedule(retry, delay);
+        }
+
+        private long backoff(int attempt) {
+            long delay = baseDelayMs << Math.min(attempt, 30);
+            if (delay <= 0 || delay > maxDelayMs) delay = maxDelayMs;
+            return jitter(delay);
+        }
+
+        /** Scheduled retry or probe. Runs on timer thread. */
+        void onRetry() {
+            boolean isProbe;
+            synchronized (this) {
+                if (isStopped || connection.isReleased()) return;
+                if (connection.isConnected() || connection.isConnecting()) return;
+                isProbe = state == BreakerState.OPEN;
+                if (isProbe) state = BreakerState.HALF_OPEN;
+            }
+            count(isProbe, false);
+            if (isProbe) YLog.d(TAG, "half-open probe " + connection.deviceId);
+            try {
+                connection.connect();
+            } catch (RuntimeException e) {
+                // released meanwhile
+                YLog.e(TAG, "cannot reconnect " + connection.deviceId + ": " + e.getMessage());
+            }
+        }
+
+        /** Connection stayed up for the stable period. Runs on timer thread. */
+        void onStable() {
+            synchronized (this) {
+                if (isStopped || !connection.isConnected()) return;
+                failures = 0;
+                currentOpenMs = openMs;
+            }
+        }
+
+        private final class RetryTimeout extends YeelightTimer.Timeout {
+            @Override
+            public void run() {
+                onRetry();
+            }
+        }
+
+        private final class StableTimeout extends YeelightTimer.Timeout {
+            @Override
+            public void run() {
+                onStable();
+            }
+        }
+    }
+}
@@ -20,6 +20,16 @@ public class YeelightReply {
      * Result is simply OK, no props received.
      */
     public final static String OK = "ok";
+    /**
+     * Code of error reply created locally when device did not reply in time.
+     */
+    public final static int ERROR_TIMEOUT = -10001;
+    /** Code of error reply created locally when command was replaced by newer one before it was sent. */
+    public final static int ERROR_SUPERSEDED = -10002;
+    /** Code of error reply created locally when command was dropped because send queue was full. */
+    public final static int ERROR_DROPPED = -10003;
+    /** Part of error message sent by the device when connection exceeded its command quota. */
+    public final static String ERROR_QUOTA_MESSAGE = "quota";
     /** ID of the device that received this reply. */
     public final long deviceId;
     /** ID of the reply. */
@@ -151,6 +161,28 @@ public class YeelightReply {
         return message != null;
     }
 
+    /**
+     * True if device rejected the command because connection exceeded its command quota.
+     *
+     * @see YeelightRateGovernor
+     */
+    public boolean isQuotaExceeded(){
+        return isError() && message.contains(ERROR_QUOTA_MESSAGE);
+    }
+
+    /**
+     * True if this is an error created because command was not sent: it was superseded by newer
+     * command or dropped from full send queue.
+     */
+    public boolean isNotSent(){
+        return isError() && (code == ERROR_SUPERSEDED || code == ERROR_DROPPED);
+    }
+
+    /** True if this is an error created because device did not reply in time. */
+    public boolean isTimeout(){
+        return isError() && code == ERROR_TIMEOUT;
+    }
+
     @Override
     public String toString() {
         return "YeelightReply["+deviceId+", "+id+", "+getMethod()+"]";
@@ -0,0 +1,23 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Device replied with an error, or did not reply in time (see {@link YeelightReply#isTimeout()}).
+ */
+public class YeelightReplyException extends Exception {
+    private static final long serialVersionUID = 1L;
+    @NotNull
+    private final YeelightReply reply;
+
+    public YeelightReplyException(@NotNull YeelightReply reply) {
+        super("device " + reply.deviceId + " replied with error " + reply.code + ": " + reply.message);
+        this.reply = reply;
+    }
+
+    /** Error reply. */
+    @NotNull
+    public YeelightReply getReply() {
+        return reply;
+    }
+}
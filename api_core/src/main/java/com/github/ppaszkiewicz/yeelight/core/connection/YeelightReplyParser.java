@@ -12,7 +12,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Queue;
+import java.nio.ByteBuffer;
 
 /**
  * Parser converting raw messages from device into {@link YeelightReply} objects.
@@ -27,14 +27,52 @@ public abstract class YeelightReplyParser {
     }
 
     /**
-     * Create item from JSON reply. This matches id of reply in JSON with command queue.
+     * Create item from JSON reply. This matches id of reply in JSON with commands in flight.
      *
      * @param json     json string received from the device
-     * @param comQueue queue of commands that were SENT to device - this is used to match IDs with replies
+     * @param inFlight commands that were SENT to device - matched command must be removed from it
+     *                 once its reply is built, so command whose reply failed to parse still times out
      * @return parsed reply or null on any error
      */
     @Nullable
-    public abstract YeelightReply parse(@NotNull String json, @NotNull Queue<YeelightCommand> comQueue);
+    public abstract YeelightReply parse(@NotNull String json, @NotNull YeelightInFlightTable inFlight);
+
+    /**
+     * Create item from a single line of raw bytes received from the device. By default this decodes
+     * the line and calls {@link #parse(String, YeelightInFlightTable)}, implementations can override
+     * it to parse bytes directly.
+     *
+     * @param line     line without line end, between position and limit of the buffer. It must not be
+     *                 retained after this call.
+     * @param inFlight commands that were SENT to device - matched command must be removed from it
+     *                 once its reply is built, so command whose reply failed to parse still times out
+     * @return parsed reply or null on any error
+     */
+    @Nullable
+    public YeelightReply parse(@NotNull ByteBuffer line, @NotNull YeelightInFlightTable inFlight) {
+        return parse(YeelightLineFramer.toString(line), inFlight);
+    }
+
+    /**
+     * Find command that received a reply with given id without removing it. Returns instantly if
+     * ID == NO_ID.
+     */
+    @Nullable
+    protected static YeelightCommand peekSent(@NotNull YeelightInFlightTable inFlight, int id) {
+        if (id == YeelightReply.NO_ID) return null;
+        return inFlight.get(id);
+    }
+
+    /**
+     * Remove command found by {@link #peekSent(YeelightInFlightTable, int)} after its reply was built.
+     *
+     * @return the command, or null if it left the table meanwhile (timed out)
+     */
+    @Nullable
+    protected static YeelightCommand claimSent(@NotNull YeelightInFlightTable inFlight, @Nullable YeelightCommand command) {
+        if (command == null) return null;
+        return inFlight.remove(command.id, command) ? command : null;
+    }
 
     public static class DefaultImpl extends YeelightReplyParser {
         public final long deviceId;
@@ -44,7 +82,7 @@ public abstract class YeelightReplyParser {
 
         @Nullable
         @Override
-        public YeelightReply parse(@NotNull String json, @NotNull Queue<YeelightCommand> comQueue) {
+        public YeelightReply parse(@NotNull String json, @NotNull YeelightInFlightTable inFlight) {
             try {
                 JSONObject reply = new JSONObject(json);
                 if (reply.has("id")) {
@@ -54,7 +92,7 @@ public abstract class YeelightReplyParser {
                         if (replyId == YeelightReply.NO_ID) {
                             return parseReply(replyId, result).withRequest(null);
                         }
-                        YeelightCommand m = findInQueue(comQueue, replyId);
+                        YeelightCommand m = peekSent(inFlight, replyId);
                         if (m == null) {
                             // did not find this request in request commands, default parsing
                             return parseReply(replyId, result).withRequest(null);
@@ -69,10 +107,11 @@ public abstract class YeelightReplyParser {
                             } else
                                 r = parseReply(replyId, result);
                             // inject request into reply
-                            return r.withRequest(m);
+                            return r.withRequest(claimSent(inFlight, m));
                         }
                     } else if (reply.has("error")) {
-                        return parseError(replyId, reply).withRequest(findInQueue(comQueue, replyId));
+                        YeelightReply error = parseError(replyId, reply);
+                        return error.withRequest(claimSent(inFlight, peekSent(inFlight, replyId)));
                     }
                 } else {
                     // messages without ID field are device updates
@@ -88,19 +127,6 @@ public abstract class YeelightReplyParser {
         }
 
 
-        // keep polling the queue until given ID is found. Returns instantly if ID == NO_ID.
-        public YeelightCommand findInQueue(@NotNull Queue<YeelightCommand> comQueue, int id) {
-            if (id == YeelightReply.NO_ID) return null;
-            YeelightCommand m;
-            while (!comQueue.isEmpty()) {
-                m = comQueue.poll();
-                if (m.id == id) {
-                    return m;
-                }
-            }
-            return null;
-        }
-
         // for a simple reply, for example  {"id":1, "result":["ok"]}
         public YeelightReply parseReply(int replyId, @NotNull JSONArray result) throws JSONException {
             // result array is usually a single ["ok"]
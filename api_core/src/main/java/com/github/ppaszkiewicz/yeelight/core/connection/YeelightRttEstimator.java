@@ -0,0 +1,61 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round trip time of a connection, measured between writing a command and receiving its
+ * reply. Samples are averaged the same way as TCP does it: exponentially weighted moving average
+ * with gain 1/8 and mean deviation with gain 1/4.
+ */
+public final class YeelightRttEstimator {
+    private long smoothedNanos = 0;
+    private long variationNanos = 0;
+    private long sampleCount = 0;
+
+    /** Add round trip time of a single command. */
+    public synchronized void onSample(long rttNanos) {
+        if (rttNanos < 0) return;
+        if (sampleCount == 0) {
+            smoothedNanos = rttNanos;
+            variationNanos = rttNanos / 2;
+        } else {
+            long delta = rttNanos - smoothedNanos;
+            smoothedNanos += delta / 8;
+            variationNanos += (Math.abs(delta) - variationNanos) / 4;
+        }
+        sampleCount++;
+    }
+
+    /** Smoothed round trip time in nanoseconds, 0 if there were no samples yet. */
+    public synchronized long getSmoothedNanos() {
+        return smoothedNanos;
+    }
+
+    /** Mean deviation of round trip time in nanoseconds. */
+    public synchronized long getVariationNanos() {
+        return variationNanos;
+    }
+
+    /** Amount of samples received so far. */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /** True if there was at least one sample. */
+    public synchronized boolean hasSamples() {
+        return sampleCount > 0;
+    }
+
+    /** Forget all samples, for example after reconnecting. */
+    public synchronized void reset() {
+        smoothedNanos = 0;
+        variationNanos = 0;
+        sampleCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "YeelightRttEstimator[" + TimeUnit.NANOSECONDS.toMicros(smoothedNanos) / 1000.0 + "ms +- "
+                + TimeUnit.NANOSECONDS.toMicros(variationNanos) / 1000.0 + "ms, samples " + sampleCount + "]";
+    }
+}
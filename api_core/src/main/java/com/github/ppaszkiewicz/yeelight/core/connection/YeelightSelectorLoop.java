@@ -0,0 +1,201 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread event loop multiplexing non-blocking channels of many {@link YeelightSocketSelectorImpl}.<br>
+ * All selection key changes are posted as tasks so they are only performed on loop thread.<br><br>
+ *
+ * Note that all connection callbacks are invoked from loop thread, so they should return quickly.
+ */
+public final class YeelightSelectorLoop {
+    private static final String TAG = "YeelightSelectorLoop";
+
+    @NotNull
+    private final String name;
+    /** Tasks to run on loop thread before next select. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private Thread loopThread;
+    private volatile boolean isShutdown = false;
+
+    public YeelightSelectorLoop(@NotNull String name) {
+        this.name = name;
+    }
+
+    /**
+     * True if called from thread running this loop.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Run task on loop thread. Loop thread is started if it's not running yet.
+     */
+    public void execute(@NotNull Runnable task) {
+        if (isShutdown)
+            throw new IllegalStateException("Selector loop " + name + " is shut down.");
+        tasks.add(task);
+        ensureStarted().wakeup();
+    }
+
+    /**
+     * Stop the loop thread. All registered channels are closed and this loop cannot be used anymore.
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+        if (selector != null) selector.wakeup();
+    }
+
+    /** Selector of this loop. Should only be used from within loop thread. */
+    @NotNull
+    Selector selector() {
+        return selector;
+    }
+
+    @NotNull
+    private synchronized Selector ensureStarted() {
+        if (selector == null) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open selector for " + name, e);
+            }
+            loopThread = new Thread(new LoopRunnable(), name);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+        return selector;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                YLog.e(TAG, name + ": task failed: " + e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            YeelightSocketSelectorImpl<?> socket = (YeelightSocketSelectorImpl<?>) key.attachment();
+            try {
+                socket.onSelected(key);
+            } catch (CancelledKeyException e) {
+                // closed during processing, ignore
+            }
+        }
+    }
+
+    /** Close all channels that are still registered. Called once loop is shut down. */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            YeelightSocketSelectorImpl<?> socket = (YeelightSocketSelectorImpl<?>) key.attachment();
+            socket.closeChannel(null);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private final class LoopRunnable implements Runnable {
+        @Override
+        public void run() {
+            YLog.d(TAG, name + " started");
+            while (!isShutdown) {
+                try {
+                    runTasks();
+                    selector.select();
+                    processSelectedKeys();
+                } catch (Exception e) {
+                    YLog.e(TAG, name + ": unexpected exception: " + e);
+                }
+            }
+            runTasks();
+            closeAll();
+            YLog.d(TAG, name + " finished");
+        }
+    }
+
+    /**
+     * Fixed group of loops that channels are spread across. Each device is always served by the same loop.
+     */
+    public static final class Group {
+        private static int defaultLoopCount = 1;
+        private static Group defaultGroup;
+
+        @NotNull
+        private final YeelightSelectorLoop[] loops;
+
+        /**
+         * Shared group used by sockets that did not specify one.
+         */
+        @NotNull
+        public static synchronized Group getDefault() {
+            if (defaultGroup == null) {
+                defaultGroup = new Group(defaultLoopCount);
+            }
+            return defaultGroup;
+        }
+
+        /**
+         * Change amount of loops in default group. Must be called before default group is used.
+         */
+        public static synchronized void setDefaultLoopCount(int loopCount) {
+            if (defaultGroup != null)
+                throw new IllegalStateException("Default selector group was already created.");
+            if (loopCount < 1)
+                throw new IllegalArgumentException("Loop count must be positive: " + loopCount);
+            defaultLoopCount = loopCount;
+        }
+
+        /**
+         * @param loopCount number of loop threads, for example number of cores
+         */
+        public Group(int loopCount) {
+            if (loopCount < 1)
+                throw new IllegalArgumentException("Loop count must be positive: " + loopCount);
+            loops = new YeelightSelectorLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new YeelightSelectorLoop("YeelightSelectorLoop " + i);
+            }
+        }
+
+        /**
+         * Loop that should serve given device.
+         */
+        @NotNull
+        public YeelightSelectorLoop next(long deviceId) {
+            int hash = (int) (deviceId ^ (deviceId >>> 32));
+            return loops[(hash & Integer.MAX_VALUE) % loops.length];
+        }
+
+        /**
+         * Shut down all loops of this group.
+         */
+        public void shutdown() {
+            for (YeelightSelectorLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Bounded queue of commands waiting to be sent, that collapses repeated writes of a setter.<br>
+ * Commands are always sent in the order they were queued. Command with
+ * {@link YeelightMethod#isIdempotent idempotent} method supersedes command with the same method only if
+ * it's the last one in the queue, so superseding never moves a write before or after commands of other
+ * methods (for example <code>set_scene</code> and <code>set_bright</code> both change brightness).<br>
+ * When queue is full one command is dropped according to {@link DropPolicy}.<br><br>
+ *
+ * Superseded and dropped commands are completed with local error replies
+ * ({@link YeelightReply#ERROR_SUPERSEDED}, {@link YeelightReply#ERROR_DROPPED}). Those are collected by
+ * {@link #offer} so callers can deliver them after releasing their locks.<br>
+ * This is not thread safe.
+ */
+public final class YeelightSendQueue {
+    /** Default max amount of waiting commands. */
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final YeelightCommand[] EMPTY = {};
+
+    /** What to drop when queue is full. */
+    public enum DropPolicy {
+        /** Drop command that waits the longest, new one is queued. */
+        DROP_OLDEST,
+        /** Drop the new command, queue is not modified. */
+        DROP_NEWEST
+    }
+
+    /** Device commands are sent to. */
+    public final long deviceId;
+    private int capacity;
+    @NotNull
+    private DropPolicy dropPolicy;
+    // doubly linked list of waiting commands
+    @Nullable
+    private Node head;
+    @Nullable
+    private Node tail;
+    private int size = 0;
+    private long supersededCount = 0;
+    private long droppedCount = 0;
+
+    public YeelightSendQueue(long deviceId) {
+        this(deviceId, DEFAULT_CAPACITY, DropPolicy.DROP_OLDEST);
+    }
+
+    public YeelightSendQueue(long deviceId, int capacity, @NotNull DropPolicy dropPolicy) {
+        this.deviceId = deviceId;
+        setLimit(capacity, dropPolicy);
+    }
+
+    /**
+     * Change max amount of waiting commands and what to drop when it's exceeded. Commands over new
+     * capacity are not dropped until next offer.
+     */
+    public void setLimit(int capacity, @NotNull DropPolicy dropPolicy) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.dropPolicy = dropPolicy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @NotNull
+    public DropPolicy getDropPolicy() {
+        return dropPolicy;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Amount of commands replaced by newer ones so far. */
+    public long getSupersededCount() {
+        return supersededCount;
+    }
+
+    /** Amount of commands dropped because queue was full so far. */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Queue command.
+     *
+     * @param displaced receives error replies of commands that were superseded or dropped
+     */
+    public void offer(@NotNull YeelightCommand command, @NotNull List<YeelightReply> displaced) {
+        int slot = coalescingSlot(command);
+        if (slot >= 0 && tail != null && tail.slot == slot) {
+            // only the last command is superseded, so order of commands is kept
+            Node old = tail;
+            unlink(old);
+            supersededCount++;
+            displaced.add(errorReply(old.command, YeelightReply.ERROR_SUPERSEDED,
+                    "superseded by command " + command.id));
+        } else {
+            while (size >= capacity) {
+                droppedCount++;
+                if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                    displaced.add(errorReply(command, YeelightReply.ERROR_DROPPED, "send queue is full"));
+                    return;
+                }
+                YeelightCommand dropped = head.command;
+                unlink(head);
+                displaced.add(errorReply(dropped, YeelightReply.ERROR_DROPPED, "send queue is full"));
+            }
+        }
+        Node n = new Node(command, slot);
+        n.prev = tail;
+        if (tail != null) tail.next = n;
+        else head = n;
+        tail = n;
+        size++;
+    }
+
+    /** Remove and return command that waits the longest, or null if queue is empty. */
+    @Nullable
+    public YeelightCommand poll() {
+        Node n = head;
+        if (n == null) return null;
+        unlink(n);
+        return n.command;
+    }
+
+    /** Remove and return all commands in order. */
+    @NotNull
+    public YeelightCommand[] drain() {
+        return poll(size);
+    }
+
+    /** Remove and return up to given amount of commands in order. */
+    @NotNull
+    public YeelightCommand[] poll(int count) {
+        count = Math.min(count, size);
+        if (count <= 0) return EMPTY;
+        YeelightCommand[] commands = new YeelightCommand[count];
+        for (int i = 0; i < count; i++) {
+            commands[i] = poll();
+        }
+        return commands;
+    }
+
+    /**
+     * Complete superseded or dropped commands with their replies. Call this without holding locks,
+     * as command listeners might send new commands.
+     */
+    public static void deliver(@NotNull List<YeelightReply> displaced) {
+        for (int i = 0; i < displaced.size(); i++) {
+            YeelightReply r = displaced.get(i);
+            YeelightCommand c = r.getCommand();
+            if (c != null) c.completeWithReply(r);
+        }
+    }
+
+    private void unlink(@NotNull Node n) {
+        if (n.prev != null) n.prev.next = n.next;
+        else head = n.next;
+        if (n.next != null) n.next.prev = n.prev;
+        else tail = n.prev;
+        n.prev = null;
+        n.next = null;
+        size--;
+    }
+
+    @NotNull
+    private YeelightReply errorReply(@NotNull YeelightCommand command, int code, @NotNull String message) {
+        return new YeelightReply(deviceId, command.id, code, message).withRequest(command);
+    }
+
+    /** Method ordinal of command that can be superseded, or -1. */
+    private static int coalescingSlot(@NotNull YeelightCommand command) {
+        YeelightMethod m = command.method;
+        return m != null && m.isIdempotent ? m.ordinal() : -1;
+    }
+
+    private static final class Node {
+        @NotNull
+        final YeelightCommand command;
+        final int slot;
+        Node prev;
+        Node next;
+
+        Node(@NotNull YeelightCommand command, int slot) {
+            this.command = command;
+            this.slot = slot;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer of a single socket. Commands can be submitted from any thread, they're queued and
+ * drained in submission order on threads of provided executor. At most one drain runs at a time
+ * so writes never overtake each other.<br>
+ * Everything queued when drain starts is passed to the sink as a single batch, optionally waiting
+ * for a short coalescing window so bursts of commands are sent together.
+ */
+final class YeelightSerialWriter implements Runnable {
+    /** Receives commands drained from the queue. */
+    interface Sink {
+        /** Write batch of commands. This is called on executor thread. */
+        void write(@NotNull YeelightCommand[] commands);
+
+        /** Writing the batch threw unexpectedly, fail its commands. This is called on executor thread. */
+        void fail(@NotNull YeelightCommand[] commands, @NotNull RuntimeException error);
+
+        /** Writer became idle, {@link YeelightSerialWriter#isIdle()} is true now. This is called on executor thread. */
+        void onIdle();
+    }
+
+    @NotNull
+    private final Executor executor;
+    @NotNull
+    private final Sink sink;
+    /** Multiple producers, single consumer (drain). */
+    private final Queue<YeelightCommand[]> queue = new ConcurrentLinkedQueue<>();
+    /** Raised while drain is scheduled or running. */
+    private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+    /** Commands of current batch, only used by draining thread. */
+    private final ArrayList<YeelightCommand> batch = new ArrayList<>();
+    /** How long to wait for more commands before draining. 0 drains immediately. */
+    private volatile long coalesceWindowNanos = 0;
+    /** When last batch was written, only used by draining thread. */
+    private long lastWriteNanos = 0;
+
+    YeelightSerialWriter(@NotNull Executor executor, @NotNull Sink sink) {
+        this.executor = executor;
+        this.sink = sink;
+    }
+
+    /**
+     * Queue commands for writing.
+     */
+    void submit(@NotNull YeelightCommand[] commands) {
+        queue.add(commands);
+        schedule();
+    }
+
+    /**
+     * Set how long drain waits for more commands before writing them as single batch. Only drains
+     * following a recent write are delayed so single interactive commands are not. By default
+     * this is 0 and commands are written as soon as possible.
+     */
+    void setCoalesceWindow(long windowMs) {
+        coalesceWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    }
+
+    /** True if nothing is queued or being written. */
+    boolean isIdle() {
+        return !isScheduled.get() && queue.isEmpty();
+    }
+
+    /** Drop all commands that were not written yet. */
+    void clear() {
+        queue.clear();
+    }
+
+    private void schedule() {
+        if (isScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                isScheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            long window = coalesceWindowNanos;
+            if (window > 0) {
+                // burst in progress: give following commands a chance to join this batch
+                long sinceLastWrite = System.nanoTime() - lastWriteNanos;
+                if (sinceLastWrite < window) {
+                    LockSupport.parkNanos(window - sinceLastWrite);
+                }
+            }
+            YeelightCommand[] commands;
+            while ((commands = queue.poll()) != null) {
+                for (YeelightCommand command : commands) {
+                    batch.add(command);
+                }
+            }
+            if (!batch.isEmpty()) {
+                YeelightCommand[] toWrite = batch.toArray(new YeelightCommand[batch.size()]);
+                batch.clear();
+                try {
+                    sink.write(toWrite);
+                } catch (RuntimeException e) {
+                    // broken command or listener must not stop the writer
+                    sink.fail(toWrite, e);
+                }
+                lastWriteNanos = System.nanoTime();
+            }
+        } finally {
+            batch.clear();
+            isScheduled.set(false);
+            // commands could have been added after last poll but before flag was lowered
+            if (!queue.isEmpty()) {
+                schedule();
+            } else {
+                sink.onIdle();
+            }
+        }
+    }
+}
@@ -1,73 +1,146 @@
 package com.github.ppaszkiewicz.yeelight.core.connection;
 
 import com.github.ppaszkiewicz.yeelight.core.YLog;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightProp;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Wraps socket with in/output.<br>
  *
- * Abstract base implementing blocking calls and methods for building async callbacks.
+ * Abstract base implementing blocking calls and methods for building async callbacks.<br><br>
+ *
+ * Lifecycle is a {@link State} changed with compare-and-set, so writing to an open socket doesn't
+ * lock. Transitions from or to {@link State#CONNECTING} are made while holding the socket lock, together
+ * with queueing or draining commands waiting for connection, so no command can be left behind in the
+ * queue when connecting finishes or fails.<br>
+ * {@link #drain(long, YeelightConnection.DrainListener)} closes the socket gracefully through
+ * {@link State#DRAINING}.
  */
 public abstract class YeelightSocket<T extends YeelightConnection> {
     private static final String TAG = "YeelightSocket";
-    //array to reflect when using toArray on queue
-    private final static YeelightCommand[] COMM_MESSAGE_ARRAY_TYPE = {};
 
     @NotNull
     protected final T connection;
+    /** Raised if socket is opened asynchronously. Guarded by this. */
     private boolean isAsync = false;
     private Socket socket;
     private BufferedOutputStream out;
-    private BufferedReader reader;
+    private InputStream in;
     private YeelightReplyParser replyParser;
+    /** Max length of a single line received from the device. */
+    private int maxLineLength = YeelightLineFramer.DEFAULT_MAX_LINE_LENGTH;
+    /** Passes received lines to {@link #onLineReceived(ByteBuffer)}. */
+    protected final YeelightLineFramer.LineHandler lineHandler = new LineHandler();
+    /**
+     * Guards {@link #out} and {@link #encoder}. This is not a monitor so virtual thread blocked in
+     * write does not pin its carrier thread.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /** Reusable buffer all commands are encoded into before writing. */
+    private final YeelightCommandEncoder encoder = new YeelightCommandEncoder();
     @NotNull
-    protected final AtomicBoolean isOpening = new AtomicBoolean(false);
-    @NotNull
-    protected final AtomicBoolean isClosing = new AtomicBoolean(false);
+    private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+    @Nullable
+    private volatile StateListener stateListener;
     /**
-     * Commands to be sent when connection is established.
+     * Commands to be sent when connection is established. Guarded by this.
      */
-    private final Queue<YeelightCommand> commWaiting = new LinkedList<>();
+    private final YeelightSendQueue commWaiting;
     /**
-     * Recently sent commands, read to match a response.
+     * Sent commands waiting for a response, matched by their id. This is written by sending thread and
+     * read by reading thread.
      */
-    private final Queue<YeelightCommand> commQueue = new LinkedList<>();
+    private final YeelightInFlightTable inFlight = new YeelightInFlightTable();
+    /** {@link System#nanoTime()} when last line was received or socket was opened. */
+    private volatile long lastReceivedNanos;
+    /** Raised while idle probe waits for a reply. */
+    private final AtomicBoolean isProbing = new AtomicBoolean(false);
+    /** Error blocking socket was closed with by {@link #closeWithError(IOException)}. */
+    @Nullable
+    private volatile IOException closeError;
+    /** Drain in progress, new commands are rejected while this is set. Set while holding the lock. */
+    @Nullable
+    private volatile Drain drain;
 
     /**
      * Constructor - this has to be bound to a single connection.
      */
     public YeelightSocket(@NotNull T connection) {
         this.connection = connection;
+        commWaiting = new YeelightSendQueue(connection.deviceId);
         replyParser = YeelightReplyParser.obtain(connection.deviceId);
     }
 
+    /** Current state of the socket. */
+    @NotNull
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * Set listener notified about every state change, or null. It's invoked on the thread making the
+     * transition, possibly while holding the socket lock, so it must not block or write.
+     */
+    public YeelightSocket<T> setStateListener(@Nullable StateListener stateListener) {
+        this.stateListener = stateListener;
+        return this;
+    }
+
     /** True if there was an open request but connection is not established yet. */
     public boolean isConnecting() {
-        return isOpening.get();
+        return state.get() == State.CONNECTING;
     }
 
     /**
-     * Whether this socket is connected to device.
+     * Whether this socket is connected to device, including while it's draining or closing.
      */
     public boolean isConnected() {
-        return socket != null && socket.isConnected();
+        State s = state.get();
+        return s == State.OPEN || s == State.DRAINING || s == State.CLOSING;
+    }
+
+    /** True if drain was requested and socket is not closed yet. */
+    public boolean isDraining() {
+        return drain != null;
     }
 
     /** True if close was requested but socket is not closed yet. */
-    public boolean isClosing() {return isClosing.get(); }
+    public boolean isClosing() {
+        return state.get() == State.CLOSING;
+    }
+
+    /**
+     * Change state if it's expected one and notify the listener.
+     *
+     * @return false if state was different
+     */
+    private boolean transition(@NotNull State from, @NotNull State to) {
+        if (!state.compareAndSet(from, to)) return false;
+        StateListener l = stateListener;
+        if (l != null) l.onStateChanged(this, from, to);
+        return true;
+    }
 
     /**
      * Must return true if async is running.
@@ -80,6 +153,24 @@ public abstract class YeelightSocket<T extends YeelightConnection> {
      */
     protected abstract void writeAsync(@NotNull YeelightCommand... msg);
 
+    /**
+     * True if some commands passed to {@link #writeAsync(YeelightCommand...)} did not reach
+     * {@link #writeImpl(YeelightCommand...)} yet. Implementations that write on another thread must
+     * override this so drain waits for them.
+     */
+    protected boolean hasUnsentCommands() {
+        return false;
+    }
+
+    /**
+     * Implementations that override {@link #hasUnsentCommands()} must call this once it becomes
+     * false, as reply to last written command could have arrived while it was still true.
+     */
+    protected final void onWriterIdle() {
+        Drain d = drain;
+        if (d != null) d.check();
+    }
+
     /**
      * Create and start listening for data from device asynchronously. Implementation must call
      * {@link #startBlockingConnection()}.
@@ -109,74 +200,241 @@ public abstract class YeelightSocket<T extends YeelightConnection> {
         return this;
     }
 
+    /**
+     * Change max length of a single reply line. If device sends longer line connection is closed
+     * with an error. Applied to sockets opened after this call.
+     */
+    public YeelightSocket<T> setMaxLineLength(int maxLineLength) {
+        if (maxLineLength < 1)
+            throw new IllegalArgumentException("Max line length must be positive: " + maxLineLength);
+        this.maxLineLength = maxLineLength;
+        return this;
+    }
+
+    /** Max length of a single reply line. */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * Limit amount of commands waiting for connection to be established. Repeated writes of a setter
+     * are collapsed, see {@link YeelightSendQueue}.
+     */
+    public synchronized YeelightSocket<T> setWaitingLimit(int capacity, @NotNull YeelightSendQueue.DropPolicy dropPolicy) {
+        commWaiting.setLimit(capacity, dropPolicy);
+        return this;
+    }
+
+    /** Commands that were sent and wait for a reply. */
+    @NotNull
+    protected final YeelightInFlightTable getInFlight() {
+        return inFlight;
+    }
+
+    /** Timer running reply timeouts. */
+    @NotNull
+    protected YeelightTimer getTimer() {
+        return YeelightTimer.getDefault();
+    }
+
+    /**
+     * Create framer splitting bytes received from the device into lines.
+     *
+     * @param direct true if framer should use direct buffers (for channels)
+     */
+    @NotNull
+    protected YeelightLineFramer createLineFramer(boolean direct) {
+        return new YeelightLineFramer(maxLineLength,
+                direct ? YeelightBufferPool.getDefaultDirect() : YeelightBufferPool.getDefault());
+    }
+
     /**
      * Send commands asynchronously and flush afterwards. If any command fails to send, others won't be sent.
+     * Commands that cannot be sent are failed, see {@link YeelightCommand.ErrorListener}.<br>
+     * If connection has a {@link YeelightRateGovernor} commands might be queued by it first.<br>
+     * Commands are failed while socket is draining.
      */
-    public synchronized void write(@NotNull YeelightCommand... msg) {
-        if(isAsyncRunning()){
-            if(isConnected()){
+    public void write(@NotNull YeelightCommand... msg) {
+        if (drain != null) {
+            YLog.e(TAG, "write@" + connection.deviceId + ": cannot write because socket is draining.");
+            IOException error = new IOException("connection is draining " + connection.deviceId);
+            for (YeelightCommand comm : msg) {
+                comm.completeWithFailure(error);
+            }
+            return;
+        }
+        YeelightRateGovernor governor = connection.getRateGovernor();
+        if (governor != null) {
+            governor.submit(this, msg);
+        } else {
+            writeDirect(msg);
+        }
+    }
+
+    /**
+     * Write commands bypassing the rate governor. This still writes while socket is draining, so
+     * commands queued by the governor are flushed.
+     */
+    final void writeDirect(@NotNull YeelightCommand... msg) {
+        // waiting commands are written before socket becomes open, so open socket needs no lock
+        if (state.get() == State.OPEN) {
+            writeAsync(msg);
+            return;
+        }
+        List<YeelightReply> displaced;
+        synchronized (this) {
+            State s = state.get();
+            if (s == State.OPEN || s == State.DRAINING) {
                 writeAsync(msg);
-            }else{
+                return;
+            }
+            if (s == State.CONNECTING && isAsync) {
                 //async was requested but not connected yet, store command for when it connects
-                commWaiting.addAll(Arrays.asList(msg));
+                displaced = new ArrayList<>(0);
+                for (YeelightCommand comm : msg) {
+                    commWaiting.offer(comm, displaced);
+                }
+            } else {
+                displaced = null;
             }
-        }else
-            YLog.e(TAG, "write@"+connection.deviceId+": cannot write because device is not connected.");
+        }
+        if (displaced != null) {
+            YeelightSendQueue.deliver(displaced);
+            return;
+        }
+        // listeners are notified without holding the lock, they might write again
+        YLog.e(TAG, "write@" + connection.deviceId + ": cannot write because device is not connected.");
+        IOException error = new IOException("device is not connected " + connection.deviceId);
+        for (YeelightCommand comm : msg) {
+            comm.completeWithFailure(error);
+        }
     }
 
     /**
-     * This must be called from {@link #writeAsync(YeelightCommand...)}.
+     * This must be called from {@link #writeAsync(YeelightCommand...)}.<br>
+     * All commands are encoded into a single buffer and sent with one write and flush.
      */
     protected void writeImpl(@NotNull YeelightCommand... msg) {
-        YeelightCommand lastSentCommand = null;    // stored for error throw
+        if (msg.length == 0) return;
+        writeLock.lock();
         try {
+            encoder.reset();
             for (YeelightCommand comm : msg) {
-                String json = comm.toJSON() + "\r\n";
-                YLog.i(TAG, "write@" + connection.deviceId + ": " + json);
-                commQueue.add(comm);
-                lastSentCommand = comm;
-                out.write(json.getBytes());
-                out.flush();
+                encoder.encode(comm);
+                onCommandSent(comm);
+            }
+            if (YLog.getInstance().isEnabled) {
+                YLog.i(TAG, "write@" + connection.deviceId + ": " + encoder);
             }
+            encoder.writeTo(out);
+            out.flush();
         } catch (NullPointerException | IOException ioE) {
             // null pointer can trigger when "out" is null (disconnected)
-            YLog.e(TAG, "write@"+ connection.deviceId +": "+ ioE.getMessage());
-            //callback error
-            connection.getCallbackParser().onYeelightDeviceConnectionError(connection.deviceId, ioE, lastSentCommand);
+            YLog.e(TAG, "write@" + connection.deviceId + ": " + ioE.getMessage());
+            //callback error, whole batch failed so report first command
+            connection.getCallbackParser().onYeelightDeviceConnectionError(connection.deviceId, ioE, msg[0]);
             // todo: make connection invalid/release it?
+            for (YeelightCommand comm : msg) {
+                onCommandFailed(comm, ioE);
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
     /**
-     * Internal method that sends all messages that were passed to {@link #write(YeelightCommand...)}
-     * before async thread started. Socket must be validated if it's open before being called.
-     **/
-    private synchronized void sendWaiting() {
-        writeImpl(commWaiting.toArray(COMM_MESSAGE_ARRAY_TYPE));
-        commWaiting.clear();
+     * Drop command that was not sent after all and fail it. Implementations that override
+     * {@link #writeImpl(YeelightCommand...)} must call this for commands that failed to send.
+     */
+    protected final void onCommandFailed(@NotNull YeelightCommand comm, @NotNull Throwable error) {
+        inFlight.remove(comm.id, comm);
+        cancelReplyTimeout(comm);
+        comm.completeWithFailure(error);
+        Drain d = drain;
+        if (d != null) d.onCommandDone(comm, state.get() == State.CLOSING);
+    }
+
+    /**
+     * Fail command that was not sent because socket is closing. Unlike
+     * {@link #onCommandFailed(YeelightCommand, Throwable)} it's counted as abandoned by a drain.
+     */
+    protected final void onCommandLost(@NotNull YeelightCommand comm, @NotNull Throwable error) {
+        inFlight.remove(comm.id, comm);
+        cancelReplyTimeout(comm);
+        comm.completeWithFailure(error);
+        Drain d = drain;
+        if (d != null) d.onCommandDone(comm, true);
+    }
+
+    /** Command got its reply or timed out while it was in flight. */
+    private void onCommandDone(@NotNull YeelightCommand comm) {
+        Drain d = drain;
+        if (d != null) d.onCommandDone(comm, false);
     }
 
     /**
-     * Called in edge case where connection was closed before it had time to open.
+     * Store command as sent so its reply can be matched. Implementations that override
+     * {@link #writeImpl(YeelightCommand...)} must call this before command is put on the wire.
      */
-    private synchronized void clearWaiting() {
-        if (commWaiting.size() > 0) {
-            YLog.e(TAG, commWaiting.size() + " commands lost for " + connection.deviceId);
-            commWaiting.clear();
+    protected final void onCommandSent(@NotNull YeelightCommand comm) {
+        long now = System.nanoTime();
+        comm.sentAtNanos = now;
+        connection.onCommandWritten(comm, now);
+        YeelightCommand replaced = inFlight.put(comm);
+        if (replaced != null) {
+            YLog.e(TAG, "write@" + connection.deviceId + ": id " + comm.id + " reused, no reply for " + replaced);
+            cancelReplyTimeout(replaced);
+        }
+        long timeout = comm.getReplyTimeout();
+        if (timeout == YeelightCommand.TIMEOUT_DEFAULT) timeout = connection.getDefaultReplyTimeout();
+        if (timeout > 0) {
+            ReplyTimeout replyTimeout = new ReplyTimeout(comm);
+            comm.replyTimeout = replyTimeout;
+            getTimer().schedule(replyTimeout, timeout);
+        }
+    }
+
+    private static void cancelReplyTimeout(@NotNull YeelightCommand comm) {
+        YeelightTimer.Timeout t = comm.replyTimeout;
+        if (t != null) {
+            t.cancel();
+            comm.replyTimeout = null;
         }
     }
 
+    /**
+     * Opening failed or was cancelled. Moves socket to {@link State#CLOSED} and fails commands that
+     * were waiting for the connection.
+     */
+    protected final void onOpenFailed() {
+        YeelightCommand[] lost;
+        Drain d;
+        synchronized (this) {
+            State s = state.get();
+            if (s == State.CONNECTING || s == State.CLOSING) transition(s, State.CLOSED);
+            d = drain;
+            drain = null;
+            lost = commWaiting.drain();
+        }
+        IOException error = new IOException("connection closed before command was sent " + connection.deviceId);
+        if (lost.length > 0) {
+            YLog.e(TAG, lost.length + " commands lost for " + connection.deviceId);
+            for (YeelightCommand comm : lost) {
+                comm.completeWithFailure(error);
+            }
+        }
+        if (d != null) d.finish(lost.length + cancelGovernorQueue(error));
+    }
+
     /**
      * Open socket asynchronously.
      */
-    public synchronized void openAsync() {
-        if (!isOpening.compareAndSet(false, true)) {
+    public void openAsync() {
+        if (!beginOpening(true)) {
             YLog.i(TAG, "openAsync: already in process of opening... " + connection.deviceId);
             return;
         }
         YLog.i(TAG, "openAsync: opening OK... " + connection.deviceId);
-        isAsync = true;
-        isClosing.set(false);
         startListeningOnAsync();
     }
 
@@ -184,78 +442,165 @@ public abstract class YeelightSocket<T extends YeelightConnection> {
     /**
      * Opens the socket and starts listening on current thread - should not be called from main thread.
      */
-    public synchronized void open() throws Exception {
-        if (!isOpening.compareAndSet(false, true)) {
+    public void open() throws Exception {
+        if (!beginOpening(false)) {
             YLog.i(TAG, "open: already in process of opening... " + connection.deviceId);
             return;
         }
         YLog.i(TAG, "open: opening OK... " + connection.deviceId);
-        isAsync = false;
-        isClosing.set(false);
         startBlockingConnection();
     }
 
+    /** Move idle or closed socket to {@link State#CONNECTING}. */
+    private synchronized boolean beginOpening(boolean async) {
+        State s = state.get();
+        if (s != State.IDLE && s != State.CLOSED) return false;
+        isAsync = async;
+        return transition(s, State.CONNECTING);
+    }
+
     /**
      * Prepares socket, input/otput streams and begins {@link #loopRead()}.
      */
     protected void startBlockingConnection() throws Exception {
         // conditions that should prevent socket from opening
-        if (!isOpening.get()) {
-            YLog.e(TAG, "Closed before async started " + connection.deviceId);
-            clearWaiting();
-            return;
-        }
-        if (connection.isReleased()) {
-            YLog.e(TAG, "Released before async started " + connection.deviceId);
-            clearWaiting();
-            return;
-        }
+        if (!canStartConnection()) return;
+        Socket s = new Socket();
         try {
-            socket = new Socket(connection.address, connection.port);
-            socket.setKeepAlive(true);
-            out = new BufferedOutputStream(socket.getOutputStream());
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            s.connect(new InetSocketAddress(connection.address, connection.port),
+                    (int) connection.getConnectTimeout());
+            s.setKeepAlive(true);
+            // reading times out when device is quiet so it can be probed
+            s.setSoTimeout((int) connection.getIdleProbeInterval());
+            // commands are batched before writing, so don't delay single interactive ones
+            s.setTcpNoDelay(true);
+            out = new BufferedOutputStream(s.getOutputStream());
+            in = s.getInputStream();
         } catch (Exception e) {
             // catch all exceptions (IO / security etc)
+            closeQuietly(s);
             connection.getCallbackParser().onYeelightDeviceConnectionError(connection.deviceId, e, null);
+            onOpenFailed();
             throw e;
-        }finally{
-            if (!isOpening.compareAndSet(true, false)) {
-                YLog.e(TAG, "isOpening lowered while creating socket?? " + connection.deviceId);
-            }
-            isClosing.set(false);
         }
-        connection.getCallbackParser().onYeelightDeviceConnected(connection.deviceId);
-        sendWaiting();
+        socket = s;
+        if (!onSocketOpened()) {
+            YLog.e(TAG, "closed while connecting " + connection.deviceId);
+            socket = null;
+            closeQuietly(s);
+            onOpenFailed();
+            return;
+        }
         loopRead();
     }
 
+    /**
+     * Check conditions that should prevent socket from opening. Raises error and clears waiting
+     * commands if socket should not be opened.
+     *
+     * @return true if socket can be opened
+     */
+    protected boolean canStartConnection() {
+        if (state.get() != State.CONNECTING) {
+            YLog.e(TAG, "Closed before async started " + connection.deviceId);
+            onOpenFailed();
+            return false;
+        }
+        if (connection.isReleased()) {
+            YLog.e(TAG, "Released before async started " + connection.deviceId);
+            onOpenFailed();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send all waiting commands, move to {@link State#OPEN} and notify that connection was established.
+     * Must be called once socket is ready to write.
+     *
+     * @return false if close was requested while connecting, implementation must then close the
+     * socket and call {@link #onOpenFailed()}
+     */
+    protected final boolean onSocketOpened() {
+        Drain d;
+        synchronized (this) {
+            // close can't start while lock is held, so waiting commands are not written needlessly
+            if (state.get() != State.CONNECTING) return false;
+            lastReceivedNanos = System.nanoTime();
+            isProbing.set(false);
+            writeImpl(commWaiting.drain());
+            d = drain;
+            // drain requested while connecting only waits for commands that were queued
+            transition(State.CONNECTING, d != null ? State.DRAINING : State.OPEN);
+        }
+        connection.getCallbackParser().onYeelightDeviceConnected(connection.deviceId);
+        if (d != null) d.check();
+        return true;
+    }
+
+    /**
+     * Parse a single line received from the device and dispatch the reply to listeners.
+     *
+     * @param line line without line end, between position and limit of the buffer. It must not be
+     *             retained after this call.
+     */
+    protected final void onLineReceived(@NotNull ByteBuffer line) {
+        if (YLog.getInstance().isEnabled) {
+            YLog.i(TAG, "receive@" + connection.deviceId + ":" + YeelightLineFramer.toString(line));
+        }
+        lastReceivedNanos = System.nanoTime();
+        YeelightReply yeelightReply = replyParser.parse(line, inFlight);
+        if (yeelightReply == null) {
+            YLog.e(TAG, "loopRead@" + connection.deviceId + ": failed to parse the reply: " + YeelightLineFramer.toString(line));
+        } else {
+            YeelightCommand c = yeelightReply.getCommand();
+            if (c != null) {
+                // reply timeout fired meanwhile
+                if (!c.claimAnswer()) return;
+                cancelReplyTimeout(c);
+                long sentAt = c.sentAtNanos;
+                if (sentAt != 0) connection.getRttEstimator().onSample(System.nanoTime() - sentAt);
+            }
+            dispatchReply(yeelightReply);
+            if (c != null) onCommandDone(c);
+        }
+    }
+
+    /** Pass reply to the connection and listener of its command. */
+    private void dispatchReply(@NotNull YeelightReply reply) {
+        YeelightRateGovernor governor = connection.getRateGovernor();
+        if (governor != null) governor.onReply(reply);
+        connection.getCallbackParser().onYeelightDeviceResponse(connection.deviceId, reply);
+        YeelightCommand c = reply.getCommand();
+        if (c != null) c.completeWithReply(reply);
+    }
+
     /**
      * Infinite loop for reading data from device.
      */
     private void loopRead() {
         YLog.d(TAG, "loopRead: connection established " + connection.deviceId);
         //infinite loop, must kill socket to stop
-        String line = null;
+        YeelightLineFramer framer = createLineFramer(false);
         Throwable throwable = null;
         try {
             while (isConnected() && !isInterrupted()) {
-                line = reader.readLine();
-                YLog.i(TAG, "receive@" + connection.deviceId + ":" + line);
-                YeelightReply yeelightReply = replyParser.parse(line, commQueue);
-                if (yeelightReply == null) {
-                    YLog.e(TAG, "loopRead@" + connection.deviceId + ": failed to parse the reply: " + line);
-                } else {
-                    connection.getCallbackParser().onYeelightDeviceResponse(connection.deviceId, yeelightReply);
-                    YeelightCommand c = yeelightReply.getCommand();
-                    if(c != null && c.listener != null){
-                        c.listener.onReply(yeelightReply);
-                    }
+                int read;
+                try {
+                    read = framer.readFrom(in);
+                } catch (SocketTimeoutException idle) {
+                    // nothing was read, device is quiet
+                    onReadIdle();
+                    continue;
                 }
+                if (read < 0) throw new EOFException("stream closed by the device");
+                framer.processLines(lineHandler);
             }
         } catch (SocketException sEx) {
             // socket exception is expected if socket closing was requested
-            if(!isClosing.get()) {
+            if (closeError != null) {
+                throwable = closeError;
+            } else if (state.get() != State.CLOSING) {
                 throwable = sEx;
             }
         } catch (Exception e) {
@@ -266,31 +611,318 @@ public abstract class YeelightSocket<T extends YeelightConnection> {
             } catch (Exception ex) {
                 // ignore any exception here
             }
+        } finally {
+            framer.release();
         }
-        // clear any commands that failed to receive a reply
-        if (commQueue.size() > 0) {
-            YLog.e(TAG, "loopRead@" + connection.deviceId + ": commands lost due to socket closing: " + commQueue.size());
-            commQueue.clear();
-        }
-        connection.getCallbackParser().onYeelightDeviceDisconnected(connection.deviceId, throwable);
         //finished, clear thread.
         socket = null;
+        closeError = null;
+        onSocketClosed(throwable);
+    }
+
+    /**
+     * Clean up after socket was closed: drop commands waiting for reply and notify the connection.
+     * Must be called exactly once for each opened socket.
+     *
+     * @param throwable if not null then socket was closed exceptionally
+     */
+    protected final void onSocketClosed(@Nullable Throwable throwable) {
+        // clear any commands that failed to receive a reply
+        final IOException error = new IOException("connection closed before reply " + connection.deviceId, throwable);
+        final int[] lostCommands = new int[1];
+        int lost = inFlight.clear(new YeelightInFlightTable.Visitor() {
+            @Override
+            public void visit(@NotNull YeelightCommand command) {
+                cancelReplyTimeout(command);
+                command.completeWithFailure(error);
+                if (!command.isHeartbeat) lostCommands[0]++;
+            }
+        });
+        if (lost > 0) {
+            YLog.e(TAG, "loopRead@" + connection.deviceId + ": commands lost due to socket closing: " + lost);
+        }
+        // loop is finished before socket becomes closed, socket can be opened again right after that
         onLoopReadFinished(throwable);
         YLog.i(TAG, "loopRead@ " + connection.deviceId + " finished");
-        isClosing.set(false);
+        Drain d;
+        synchronized (this) {
+            // drain can't start on a closed socket, so it's never left behind
+            d = drain;
+            drain = null;
+            // closed before callbacks so listeners can open it again
+            State s = state.get();
+            while (s != State.CLOSED && !transition(s, State.CLOSED)) s = state.get();
+        }
+        if (d != null) d.finish(lostCommands[0] + cancelGovernorQueue(error));
+        connection.getCallbackParser().onYeelightDeviceDisconnected(connection.deviceId, throwable);
         connection.onDisconnected();
     }
 
     /**
-     * Close the socket, finishing async thread.
+     * Close the socket, finishing async thread. Closing socket that is connecting cancels it.
+     */
+    public void close() throws IOException {
+        while (true) {
+            State s = state.get();
+            if (s == State.OPEN || s == State.DRAINING) {
+                if (!transition(s, State.CLOSING)) continue;
+            } else if (s == State.CONNECTING) {
+                synchronized (this) {
+                    if (!transition(State.CONNECTING, State.CLOSING)) continue;
+                }
+            } else {
+                return;
+            }
+            YLog.d(TAG, "close: " + connection.deviceId + " was " + s);
+            closeTransport();
+            return;
+        }
+    }
+
+    /**
+     * Close the socket gracefully: fail new commands, write commands queued by the rate governor or
+     * waiting for connection, wait for replies to sent commands and then close. Commands that are
+     * still not answered after the timeout are failed when socket closes.<br>
+     * Listener is invoked once socket is closed, from socket or timer thread. If socket is still
+     * connecting at the deadline it's invoked when connect is cancelled, which might take up to the
+     * connect timeout. If socket is not connected listener is invoked right away.
+     *
+     * @param timeoutMs max time to wait for replies, 0 closes right away
+     * @param listener  receives amount of commands that completed and that were abandoned, or null
+     */
+    public void drain(long timeoutMs, @Nullable YeelightConnection.DrainListener listener) {
+        if (timeoutMs < 0) throw new IllegalArgumentException("drain timeout must not be negative: " + timeoutMs);
+        Drain d;
+        boolean isStarted = false;
+        synchronized (this) {
+            d = drain;
+            State s = state.get();
+            if (d == null && (s == State.OPEN || s == State.CONNECTING)) {
+                d = new Drain();
+                drain = d;
+                isStarted = true;
+                // open socket might be closing meanwhile, its drain finishes when it's closed
+                if (s == State.OPEN) transition(State.OPEN, State.DRAINING);
+            }
+            if (d != null && listener != null) d.listeners.add(listener);
+        }
+        if (d == null) {
+            if (listener != null) listener.onDrained(connection.deviceId, 0, 0);
+            return;
+        }
+        if (!isStarted) return;
+        YLog.d(TAG, "drain: " + connection.deviceId + " timeout " + timeoutMs + "ms");
+        if (timeoutMs == 0) {
+            d.closeNow();
+            return;
+        }
+        getTimer().schedule(d, timeoutMs);
+        d.check();
+    }
+
+    /**
+     * Fail commands queued by the rate governor.
+     *
+     * @return amount of failed commands
+     */
+    private int cancelGovernorQueue(@NotNull Throwable error) {
+        YeelightRateGovernor governor = connection.getRateGovernor();
+        return governor != null ? governor.cancelQueued(error) : 0;
+    }
+
+    /**
+     * Close the underlying socket after state moved to {@link State#CLOSING}, reading should finish
+     * and call {@link #onSocketClosed(Throwable)}. Socket that is still connecting might not exist yet.
+     */
+    protected void closeTransport() throws IOException {
+        Socket s = socket;
+        if (s != null) s.close();
+    }
+
+    /**
+     * Close the socket because of given error, which is reported to the connection as cause of
+     * disconnect.
+     */
+    protected void closeWithError(@NotNull IOException error) {
+        Socket s = socket;
+        State current = state.get();
+        if (s != null && (current == State.OPEN || current == State.DRAINING)) {
+            YLog.d(TAG, "close: " + connection.deviceId + " error: " + error.getMessage());
+            closeError = error;
+            closeQuietly(s);
+        }
+    }
+
+    private static void closeQuietly(@NotNull Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // ignore any exception here
+        }
+    }
+
+    /** {@link System#nanoTime()} when last line was received from the device or socket was opened. */
+    public long getLastReceivedNanos() {
+        return lastReceivedNanos;
+    }
+
+    /**
+     * Nothing was received from the device for {@link YeelightConnection#getIdleProbeInterval()}.
+     * Sends a probe unless one is pending already. Implementations must call this when reading is
+     * idle.
+     */
+    protected final void onReadIdle() {
+        if (connection.getIdleProbeInterval() <= 0 || !isConnected()) return;
+        if (!isProbing.compareAndSet(false, true)) return;
+        final long probeSentNanos = System.nanoTime();
+        YeelightCommand probe = new YeelightCommand(connection.nextMessageId(), YeelightMethod.get_prop, null, YeelightProp.power);
+        probe.isHeartbeat = true;
+        probe.setReplyTimeout(connection.getIdleProbeTimeout());
+        probe.onReply(new YeelightCommand.ErrorListener() {
+            @Override
+            public void onReply(@NotNull YeelightReply reply) {
+                isProbing.set(false);
+                // any line received after the probe means device is still there
+                long last = lastReceivedNanos;
+                if (!reply.isTimeout() || last - probeSentNanos > 0) return;
+                long silentMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+                YLog.e(TAG, "probe@" + connection.deviceId + ": no reply, closing half-open connection");
+                closeWithError(new YeelightHalfOpenException(connection.deviceId, silentMs));
+            }
+
+            @Override
+            public void onFailure(@NotNull YeelightCommand command, @NotNull Throwable error) {
+                // socket closed or write failed, either way it's handled by the socket
+                isProbing.set(false);
+            }
+        });
+        YLog.d(TAG, "probe@" + connection.deviceId + ": idle, probing");
+        writeDirect(probe);
+    }
+
+    /** Lifecycle of a socket. Socket can be opened again once it's closed. */
+    public enum State {
+        /** Socket was never opened. */
+        IDLE,
+        /** Socket is being opened, commands are queued until it's open. */
+        CONNECTING,
+        /** Socket is open, commands are written right away. */
+        OPEN,
+        /** Socket is open but new commands fail, it closes once sent commands are answered. */
+        DRAINING,
+        /** Close was requested, socket is not closed yet. Commands fail. */
+        CLOSING,
+        /** Socket was closed or failed to open. */
+        CLOSED
+    }
+
+    /** Observes state changes of a socket. */
+    public interface StateListener {
+        void onStateChanged(@NotNull YeelightSocket<?> socket, @NotNull State from, @NotNull State to);
+    }
+
+    /**
+     * Creates socket implementations for connections. Used by connections and pools to choose
+     * socket implementation without subclassing.
      */
-    public synchronized void close() throws IOException {
-        if (socket != null && isAsyncRunning()) {
-            YLog.d(TAG, "close: " + connection.deviceId + " isActive: " + isConnected());
-            isClosing.set(true);
-            socket.close();
+    public interface Factory {
+        /**
+         * Create new socket bound to given connection.
+         */
+        @NotNull
+        <T extends YeelightConnection> YeelightSocket<T> create(@NotNull T connection);
+    }
+
+    /**
+     * Fails command that did not receive a reply in time. Runs on timer thread.
+     */
+    private final class ReplyTimeout extends YeelightTimer.Timeout {
+        @NotNull
+        private final YeelightCommand command;
+
+        ReplyTimeout(@NotNull YeelightCommand command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            command.replyTimeout = null;
+            inFlight.remove(command.id, command);
+            // reply could have arrived meanwhile
+            if (!command.claimAnswer()) return;
+            YLog.e(TAG, "reply timeout@" + connection.deviceId + ": " + command);
+            dispatchReply(new YeelightReply(connection.deviceId, command.id,
+                    YeelightReply.ERROR_TIMEOUT, "no reply from the device in time").withRequest(command));
+            onCommandDone(command);
+        }
+    }
+
+    /**
+     * Drain of this socket. Closes the socket once nothing is waiting for a reply, or after the
+     * deadline which runs on timer thread.
+     */
+    private final class Drain extends YeelightTimer.Timeout {
+        final List<YeelightConnection.DrainListener> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger abandoned = new AtomicInteger();
+        private final AtomicBoolean isCloseRequested = new AtomicBoolean(false);
+        private final AtomicBoolean isFinished = new AtomicBoolean(false);
+
+        /**
+         * @param isAbandoned true if command failed because socket is closing
+         */
+        void onCommandDone(@NotNull YeelightCommand comm, boolean isAbandoned) {
+            if (!comm.isHeartbeat) (isAbandoned ? abandoned : completed).incrementAndGet();
+            if (!isAbandoned) check();
+        }
+
+        /** Close if socket is draining and nothing is left to write or answer. */
+        void check() {
+            if (state.get() != State.DRAINING) return;
+            YeelightRateGovernor governor = connection.getRateGovernor();
+            // governor writes while holding its lock, so its queue is checked before sent commands
+            if (governor != null && governor.getQueueDepth() > 0) return;
+            // commands leave the writer once they're in flight
+            if (hasUnsentCommands() || inFlight.size() > 0) return;
+            YLog.d(TAG, "drain: " + connection.deviceId + " drained");
+            closeNow();
+        }
+
+        /** Deadline passed. */
+        @Override
+        public void run() {
+            YLog.e(TAG, "drain: " + connection.deviceId + " timed out");
+            closeNow();
+        }
+
+        void closeNow() {
+            if (!isCloseRequested.compareAndSet(false, true)) return;
+            cancel();
+            try {
+                close();
+            } catch (IOException e) {
+                YLog.e(TAG, "drain: " + connection.deviceId + " close failed: " + e.getMessage());
+            }
+        }
+
+        /** Socket closed, called once by the thread that closed it. */
+        void finish(int lost) {
+            if (!isFinished.compareAndSet(false, true)) return;
+            cancel();
+            int done = completed.get();
+            int dropped = abandoned.get() + lost;
+            YLog.i(TAG, "drain: " + connection.deviceId + " closed, " + done + " completed, " + dropped + " abandoned");
+            for (YeelightConnection.DrainListener l : listeners) {
+                l.onDrained(connection.deviceId, done, dropped);
+            }
+        }
+    }
+
+    /** Passes received lines to {@link #onLineReceived(ByteBuffer)}. */
+    private final class LineHandler implements YeelightLineFramer.LineHandler {
+        @Override
+        public void onLine(@NotNull ByteBuffer line) {
+            onLineReceived(line);
         }
-        // cancel opening the socket if it's in progress
-        isOpening.set(false);
     }
 }
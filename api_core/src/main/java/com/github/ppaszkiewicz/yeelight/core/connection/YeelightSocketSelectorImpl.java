@@ -0,0 +1,494 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * YeelightSocket using non-blocking channel served by shared {@link YeelightSelectorLoop}, so
+ * amount of threads does not grow with amount of connected devices.<br><br>
+ *
+ * Note that all connection callbacks are invoked from the loop thread.
+ */
+public class YeelightSocketSelectorImpl<T extends YeelightConnection> extends YeelightSocket<T> {
+    private static final String TAG = "YeelightSocketSelector";
+    /** Max amount of pending batches written with single gathering write. */
+    private static final int MAX_GATHER_BUFFERS = 16;
+
+    /** Factory creating selector sockets served by default {@link YeelightSelectorLoop.Group}. */
+    @NotNull
+    public final static YeelightSocket.Factory FACTORY = factory(null);
+
+    /**
+     * Factory creating selector sockets served by given group.
+     *
+     * @param group group of loops to use, if null default group is used
+     */
+    @NotNull
+    public static YeelightSocket.Factory factory(@Nullable final YeelightSelectorLoop.Group group) {
+        return new YeelightSocket.Factory() {
+            @NotNull
+            @Override
+            public <C extends YeelightConnection> YeelightSocket<C> create(@NotNull C connection) {
+                YeelightSelectorLoop.Group g = group != null ? group : YeelightSelectorLoop.Group.getDefault();
+                return new YeelightSocketSelectorImpl<>(connection, g.next(connection.deviceId));
+            }
+        };
+    }
+
+    @NotNull
+    private final YeelightSelectorLoop loop;
+    /** Encoded commands waiting for the channel to become writable. */
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    /** Reusable buffer commands are encoded into. */
+    private final YeelightCommandEncoder encoder = new YeelightCommandEncoder();
+    /** Buffers passed to single gathering write, only used on loop thread. */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    /** Raised if flush task was posted to the loop and did not start yet. */
+    private final AtomicBoolean isFlushScheduled = new AtomicBoolean(false);
+    private final Runnable connectTask = new ConnectTask();
+    private final Runnable flushTask = new FlushTask();
+    private final Runnable closeTask = new CloseTask();
+    private final Runnable connectTimeoutTask = new ConnectTimeoutTask();
+    /** Fails connect that takes longer than connect timeout of the connection. */
+    private final ConnectTimeout connectTimeout = new ConnectTimeout();
+    private final Runnable idleCheckTask = new IdleCheckTask();
+    /** Checks if device was quiet for idle probe interval, channels have no read timeout. */
+    private final IdleTimeout idleTimeout = new IdleTimeout();
+
+    // fields below are only modified on loop thread
+    private YeelightLineFramer framer;
+    private SocketChannel channel;
+    private SelectionKey key;
+    /** {@link System#nanoTime()} when pending connect times out, 0 if there's no timeout. */
+    private long connectDeadlineNanos;
+
+    private volatile boolean isAsyncRunning = false;
+    private volatile boolean isChannelConnected = false;
+    /** Latch of {@link #open()} call waiting for connection. */
+    @Nullable
+    private OpenWaiter openWaiter;
+
+    /**
+     * Socket served by loop of default {@link YeelightSelectorLoop.Group}.
+     */
+    public YeelightSocketSelectorImpl(@NotNull T connection) {
+        this(connection, YeelightSelectorLoop.Group.getDefault().next(connection.deviceId));
+    }
+
+    public YeelightSocketSelectorImpl(@NotNull T connection, @NotNull YeelightSelectorLoop loop) {
+        super(connection);
+        this.loop = loop;
+    }
+
+    @Override
+    protected boolean isAsyncRunning() {
+        return isAsyncRunning;
+    }
+
+    @Override
+    protected void writeAsync(@NotNull YeelightCommand... msg) {
+        // this does not block so it can run on the calling thread
+        writeImpl(msg);
+    }
+
+    /**
+     * Encodes all commands into a single buffer and posts it to the loop. Open socket is written
+     * without the socket lock, so only encoding is guarded, by the encoder itself.
+     */
+    @Override
+    protected void writeImpl(@NotNull YeelightCommand... msg) {
+        if (msg.length == 0) return;
+        synchronized (encoder) {
+            encoder.reset();
+            for (YeelightCommand comm : msg) {
+                encoder.encode(comm);
+                onCommandSent(comm);
+            }
+            if (YLog.getInstance().isEnabled) {
+                YLog.i(TAG, "write@" + connection.deviceId + ": " + encoder);
+            }
+            // queued in the same order commands were encoded
+            pendingWrites.add(new PendingWrite(msg, ByteBuffer.wrap(encoder.toByteArray())));
+        }
+        if (isFlushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    @Override
+    protected void startListeningOnAsync() {
+        isAsyncRunning = true;
+        loop.execute(connectTask);
+    }
+
+    @Override
+    protected void onLoopReadFinished(@Nullable Throwable throwable) {
+        isAsyncRunning = false;
+    }
+
+    @Override
+    protected boolean isInterrupted() {
+        return false;
+    }
+
+    /**
+     * Opens the socket and blocks until connection is established. Unlike blocking implementations
+     * this returns once connected, reading continues on the loop thread.
+     */
+    @Override
+    public void open() throws Exception {
+        OpenWaiter waiter;
+        synchronized (this) {
+            if (isConnected()) return;
+            waiter = openWaiter;
+            if (waiter == null) {
+                waiter = new OpenWaiter();
+                openWaiter = waiter;
+            }
+        }
+        openAsync();
+        waiter.await();
+    }
+
+    @Override
+    protected void closeTransport() {
+        // channel might not be opened yet, closing on the loop handles that
+        loop.execute(closeTask);
+    }
+
+    @Override
+    protected void closeWithError(@NotNull final IOException error) {
+        if (!isAsyncRunning) return;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!isChannelConnected) return;
+                YLog.d(TAG, "close: " + connection.deviceId + " error: " + error.getMessage());
+                closeChannel(error);
+            }
+        });
+    }
+
+    private synchronized void releaseOpenWaiter(@Nullable Exception error) {
+        if (openWaiter != null) {
+            openWaiter.release(error);
+            openWaiter = null;
+        }
+    }
+
+    /**
+     * Handle selected key. Called on loop thread.
+     */
+    void onSelected(@NotNull SelectionKey key) {
+        if (!key.isValid()) return;
+        if (key.isConnectable()) {
+            finishConnect();
+            return;
+        }
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    /** Start connecting the channel. Called on loop thread. */
+    private void connect() {
+        if (!canStartConnection()) {
+            isAsyncRunning = false;
+            releaseOpenWaiter(new IOException("Connection cancelled " + connection.deviceId));
+            return;
+        }
+        try {
+            SocketChannel ch = SocketChannel.open();
+            channel = ch;
+            ch.configureBlocking(false);
+            ch.socket().setKeepAlive(true);
+            // commands are batched before writing, so don't delay single interactive ones
+            ch.socket().setTcpNoDelay(true);
+            key = ch.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            if (ch.connect(new InetSocketAddress(connection.address, connection.port))) {
+                onChannelConnected();
+            } else {
+                long timeoutMs = connection.getConnectTimeout();
+                if (timeoutMs > 0) {
+                    connectDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                    YeelightTimer.getDefault().schedule(connectTimeout, timeoutMs);
+                }
+            }
+        } catch (Exception e) {
+            onConnectFailed(e);
+        }
+    }
+
+    private void finishConnect() {
+        try {
+            if (channel.finishConnect()) {
+                onChannelConnected();
+            }
+        } catch (Exception e) {
+            onConnectFailed(e);
+        }
+    }
+
+    /** Fail the connect if it's still pending after its deadline. Called on loop thread. */
+    private void checkConnectTimeout() {
+        if (channel == null || isChannelConnected || connectDeadlineNanos == 0) return;
+        // timer fires at tick granularity, connect may have been restarted meanwhile
+        if (System.nanoTime() - connectDeadlineNanos < 0) return;
+        onConnectFailed(new SocketTimeoutException("connect timed out " + connection.deviceId));
+    }
+
+    private void onChannelConnected() {
+        stopConnectTimeout();
+        key.interestOps(SelectionKey.OP_READ);
+        framer = createLineFramer(true);
+        isChannelConnected = true;
+        if (!onSocketOpened()) {
+            YLog.e(TAG, "closed while connecting " + connection.deviceId);
+            releaseChannel();
+            isAsyncRunning = false;
+            onOpenFailed();
+            releaseOpenWaiter(new IOException("Connection closed while connecting " + connection.deviceId));
+            return;
+        }
+        YLog.d(TAG, "connection established " + connection.deviceId);
+        releaseOpenWaiter(null);
+        long intervalMs = connection.getIdleProbeInterval();
+        if (intervalMs > 0) YeelightTimer.getDefault().schedule(idleTimeout, intervalMs);
+    }
+
+    /** Probe the device if nothing was received for idle interval. Called on loop thread. */
+    private void checkIdle() {
+        long intervalMs = connection.getIdleProbeInterval();
+        if (!isChannelConnected || intervalMs <= 0) return;
+        long quietMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - getLastReceivedNanos());
+        if (quietMs >= intervalMs) {
+            onReadIdle();
+            YeelightTimer.getDefault().schedule(idleTimeout, intervalMs);
+        } else {
+            YeelightTimer.getDefault().schedule(idleTimeout, intervalMs - quietMs);
+        }
+    }
+
+    private void onConnectFailed(@NotNull Exception e) {
+        stopConnectTimeout();
+        connection.getCallbackParser().onYeelightDeviceConnectionError(connection.deviceId, e, null);
+        releaseChannel();
+        isAsyncRunning = false;
+        onOpenFailed();
+        releaseOpenWaiter(e);
+    }
+
+    private void read() {
+        try {
+            if (framer.readFrom(channel) < 0) {
+                closeChannel(new EOFException("stream closed by the device"));
+                return;
+            }
+            framer.processLines(lineHandler);
+        } catch (IOException e) {
+            closeChannel(e);
+            return;
+        }
+        if (channel != null && isInterrupted()) {
+            closeChannel(null);
+        }
+    }
+
+    private void flush() {
+        if (channel == null || !isChannelConnected) {
+            // written after channel was closed
+            failPendingWrites(new IOException("connection closed before command was sent " + connection.deviceId));
+            return;
+        }
+        while (!pendingWrites.isEmpty()) {
+            // gather pending batches so they're written with a single call
+            int count = 0;
+            for (PendingWrite pw : pendingWrites) {
+                if (count == MAX_GATHER_BUFFERS) break;
+                gatherBuffers[count++] = pw.buffer;
+            }
+            boolean isComplete;
+            try {
+                channel.write(gatherBuffers, 0, count);
+                isComplete = !gatherBuffers[count - 1].hasRemaining();
+            } catch (IOException e) {
+                PendingWrite failed = pendingWrites.peek();
+                YLog.e(TAG, "write@" + connection.deviceId + ": " + e.getMessage());
+                connection.getCallbackParser().onYeelightDeviceConnectionError(connection.deviceId, e,
+                        failed != null ? failed.commands[0] : null);
+                closeChannel(e);
+                return;
+            } finally {
+                for (int i = 0; i < count; i++) gatherBuffers[i] = null;
+            }
+            PendingWrite pw;
+            while ((pw = pendingWrites.peek()) != null && !pw.buffer.hasRemaining()) {
+                pendingWrites.poll();
+            }
+            if (!isComplete) {
+                // socket buffer is full, wait until it's writable
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Close the channel and notify the connection. Called on loop thread.
+     *
+     * @param throwable cause of closing, ignored if closing was requested
+     */
+    void closeChannel(@Nullable Throwable throwable) {
+        if (channel == null) return;
+        boolean wasConnected = isChannelConnected;
+        releaseChannel();
+        failPendingWrites(new IOException("connection closed before command was sent " + connection.deviceId, throwable));
+        if (getState() == State.CLOSING) throwable = null;
+        if (wasConnected) {
+            onSocketClosed(throwable);
+        } else {
+            // closed while connecting
+            isAsyncRunning = false;
+            onOpenFailed();
+            releaseOpenWaiter(new IOException("Connection closed while connecting " + connection.deviceId));
+        }
+    }
+
+    private void stopConnectTimeout() {
+        if (connectDeadlineNanos == 0) return;
+        connectDeadlineNanos = 0;
+        connectTimeout.cancel();
+    }
+
+    /** Fail commands that were not written. Called on loop thread. */
+    private void failPendingWrites(@NotNull IOException error) {
+        if (pendingWrites.isEmpty()) return;
+        YLog.e(TAG, "close@" + connection.deviceId + ": unsent commands lost: " + pendingWrites.size());
+        PendingWrite pw;
+        while ((pw = pendingWrites.poll()) != null) {
+            for (YeelightCommand comm : pw.commands) {
+                onCommandLost(comm, error);
+            }
+        }
+    }
+
+    private void releaseChannel() {
+        stopConnectTimeout();
+        idleTimeout.cancel();
+        isChannelConnected = false;
+        if (key != null) key.cancel();
+        key = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore any exception here
+            }
+        }
+        channel = null;
+        if (framer != null) {
+            framer.release();
+            framer = null;
+        }
+    }
+
+    /** Encoded batch of commands. */
+    private static final class PendingWrite {
+        @NotNull
+        final YeelightCommand[] commands;
+        @NotNull
+        final ByteBuffer buffer;
+
+        PendingWrite(@NotNull YeelightCommand[] commands, @NotNull ByteBuffer buffer) {
+            this.commands = commands;
+            this.buffer = buffer;
+        }
+    }
+
+    /** Blocks {@link #open()} until connection is established or fails. */
+    private static final class OpenWaiter {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private Exception error;
+
+        void release(@Nullable Exception error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        void await() throws Exception {
+            latch.await();
+            if (error != null) throw error;
+        }
+    }
+
+    private final class ConnectTask implements Runnable {
+        @Override
+        public void run() {
+            connect();
+        }
+    }
+
+    private final class FlushTask implements Runnable {
+        @Override
+        public void run() {
+            isFlushScheduled.set(false);
+            flush();
+        }
+    }
+
+    private final class ConnectTimeoutTask implements Runnable {
+        @Override
+        public void run() {
+            checkConnectTimeout();
+        }
+    }
+
+    /** Runs on timer thread, moves the check to the loop thread. */
+    private final class ConnectTimeout extends YeelightTimer.Timeout {
+        @Override
+        public void run() {
+            loop.execute(connectTimeoutTask);
+        }
+    }
+
+    private final class IdleCheckTask implements Runnable {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    }
+
+    /** Runs on timer thread, moves the check to the loop thread. */
+    private final class IdleTimeout extends YeelightTimer.Timeout {
+        @Override
+        public void run() {
+            loop.execute(idleCheckTask);
+        }
+    }
+
+    private final class CloseTask implements Runnable {
+        @Override
+        public void run() {
+            closeChannel(null);
+        }
+    }
+}
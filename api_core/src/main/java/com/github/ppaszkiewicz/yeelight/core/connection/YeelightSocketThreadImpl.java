@@ -1,25 +1,106 @@
 package com.github.ppaszkiewicz.yeelight.core.connection;
 
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /** YeelightSocket that opens new threads for async listening. */
 public class YeelightSocketThreadImpl<T extends YeelightConnection> extends YeelightSocket<T> {
     private static final String TAG = "YeelightSocketThread";
     private final static ThreadGroup YEELIGHT_THREAD_GROUP = new ThreadGroup("YeelightThreadGroup");
+    /** How long idle send threads are kept alive. */
+    private final static long SEND_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static Executor defaultWriteExecutor;
+
+    /** Factory creating thread sockets. */
+    @NotNull
+    public final static YeelightSocket.Factory FACTORY = factory(null, null);
+
+    /**
+     * Factory creating thread sockets.
+     *
+     * @param threadFactory factory of reading threads, if null default threads are created
+     * @param writeExecutor executor draining send queues, if null {@link #getDefaultWriteExecutor()} is used
+     */
+    @NotNull
+    public static YeelightSocket.Factory factory(@Nullable final ThreadFactory threadFactory, @Nullable final Executor writeExecutor) {
+        return new YeelightSocket.Factory() {
+            @NotNull
+            @Override
+            public <C extends YeelightConnection> YeelightSocket<C> create(@NotNull C connection) {
+                return new YeelightSocketThreadImpl<>(connection, threadFactory, writeExecutor);
+            }
+        };
+    }
+
+    /**
+     * Shared executor sending commands of all thread sockets. Threads are reused and
+     * released after being idle for a while.
+     */
+    @NotNull
+    public static synchronized Executor getDefaultWriteExecutor() {
+        if (defaultWriteExecutor == null) {
+            defaultWriteExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    SEND_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new SendThreadFactory());
+        }
+        return defaultWriteExecutor;
+    }
+
+    /**
+     * Replace shared executor used by sockets that are created without explicit one.
+     * This does not affect existing sockets.
+     */
+    public static synchronized void setDefaultWriteExecutor(@NotNull Executor executor) {
+        defaultWriteExecutor = executor;
+    }
 
     /**
      * Runnable running the socket in async connection.
      */
     private final Runnable asyncRunnable = new AsyncRunnable();
-    private Runnable sendRunnable;
+    /** Sends commands in order on reused threads. */
+    @NotNull
+    private final YeelightSerialWriter writer;
+    @Nullable
+    private final ThreadFactory threadFactory;
 
     // thread holding the runnable
     private Thread socketThread;
-    private Thread sendThread;
 
     public YeelightSocketThreadImpl(T connection) {
+        this(connection, null, null);
+    }
+
+    /**
+     * @param threadFactory factory of reading thread, if null default thread is created
+     * @param writeExecutor executor draining send queue, if null {@link #getDefaultWriteExecutor()} is used
+     */
+    public YeelightSocketThreadImpl(T connection, @Nullable ThreadFactory threadFactory, @Nullable Executor writeExecutor) {
         super(connection);
+        this.threadFactory = threadFactory;
+        writer = new YeelightSerialWriter(
+                writeExecutor != null ? writeExecutor : getDefaultWriteExecutor(),
+                new WriterSink());
+    }
+
+    /**
+     * Set how long sending waits for more commands so they can be written with a single
+     * flush (similar to Nagle's algorithm). Only commands sent shortly after previous write are delayed.
+     * By default this is 0 and every command is sent as soon as possible, commands that queue up
+     * while previous ones are written are still batched.
+     */
+    public YeelightSocketThreadImpl<T> setWriteCoalesceWindow(long windowMs) {
+        writer.setCoalesceWindow(windowMs);
+        return this;
     }
 
     @Override
@@ -29,14 +110,23 @@ public class YeelightSocketThreadImpl<T extends YeelightConnection> extends Yeel
 
     @Override
     protected void writeAsync(@NotNull YeelightCommand... msg) {
-        sendRunnable = new AsyncSendRunnable(msg);
-        sendThread =  new Thread(YEELIGHT_THREAD_GROUP, sendRunnable, "YeelightSendThread " + connection.deviceId);
-        sendThread.start();
+        writer.submit(msg);
+    }
+
+    @Override
+    protected boolean hasUnsentCommands() {
+        return !writer.isIdle();
     }
 
     @Override
     protected void startListeningOnAsync() {
-        socketThread = new Thread(YEELIGHT_THREAD_GROUP, asyncRunnable, "YeelightThread " + connection.deviceId);
+        String name = "YeelightThread " + connection.deviceId;
+        if (threadFactory != null) {
+            socketThread = threadFactory.newThread(asyncRunnable);
+            socketThread.setName(name);
+        } else {
+            socketThread = new Thread(YEELIGHT_THREAD_GROUP, asyncRunnable, name);
+        }
         socketThread.start();
     }
 
@@ -68,21 +158,39 @@ public class YeelightSocketThreadImpl<T extends YeelightConnection> extends Yeel
     }
 
     /**
-     * Runnable that sends data on async thread.
+     * Writes commands drained by the writer.
      */
-    private final class AsyncSendRunnable implements Runnable {
-        private final YeelightCommand[] commands;
+    private final class WriterSink implements YeelightSerialWriter.Sink {
+        @Override
+        public void write(@NotNull YeelightCommand[] commands) {
+            writeImpl(commands);
+        }
 
-        private AsyncSendRunnable(YeelightCommand[] commands) {
-            this.commands = commands;
+        @Override
+        public void fail(@NotNull YeelightCommand[] commands, @NotNull RuntimeException error) {
+            YLog.e(TAG, "write@" + connection.deviceId + ": " + error);
+            for (YeelightCommand comm : commands) {
+                onCommandFailed(comm, error);
+            }
         }
 
         @Override
-        public void run() {
-            writeImpl(commands);
-            if(sendThread == Thread.currentThread())
-                sendThread = null;
+        public void onIdle() {
+            onWriterIdle();
         }
     }
 
+    /**
+     * Creates daemon send threads in yeelight thread group.
+     */
+    private static final class SendThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable r) {
+            Thread t = new Thread(YEELIGHT_THREAD_GROUP, r, "YeelightSendThread " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
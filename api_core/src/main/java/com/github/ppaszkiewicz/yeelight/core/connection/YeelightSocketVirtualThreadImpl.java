@@ -0,0 +1,121 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * YeelightSocket that runs blocking read loop and writer on virtual threads (JDK 21+), so holding
+ * many connections does not cost a platform thread each.<br>
+ * Availability is detected at runtime, if virtual threads are not supported this behaves exactly
+ * like {@link YeelightSocketThreadImpl}.<br><br>
+ *
+ * Writes take a lock instead of a monitor so they don't pin carrier threads. Commands that waited for
+ * the connection are still written while holding socket monitor once it opens, so on JDK 21 - 23
+ * the reading thread stays pinned for that single write.
+ */
+public class YeelightSocketVirtualThreadImpl<T extends YeelightConnection> extends YeelightSocketThreadImpl<T> {
+    private static final String TAG = "YeelightSocketVirtual";
+    /** Factory of virtual threads or null if they're not supported. */
+    @Nullable
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+    /** Executor starting new virtual thread for each task or null if they're not supported. */
+    @Nullable
+    private static final Executor VIRTUAL_THREAD_EXECUTOR = VIRTUAL_THREAD_FACTORY != null
+            ? new VirtualThreadExecutor(VIRTUAL_THREAD_FACTORY) : null;
+
+    /** Factory creating virtual thread sockets. */
+    @NotNull
+    public final static YeelightSocket.Factory FACTORY = new YeelightSocket.Factory() {
+        @NotNull
+        @Override
+        public <C extends YeelightConnection> YeelightSocket<C> create(@NotNull C connection) {
+            return new YeelightSocketVirtualThreadImpl<>(connection);
+        }
+    };
+
+    /**
+     * True if virtual threads are available in current runtime. If not, sockets fall back to
+     * platform threads.
+     */
+    public static boolean isSupported() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    public YeelightSocketVirtualThreadImpl(T connection) {
+        super(connection, VIRTUAL_THREAD_FACTORY, VIRTUAL_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Obtain virtual thread factory using reflection so this compiles and runs on older runtimes.
+     */
+    @Nullable
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            // any failure (missing method, preview disabled etc.) means no support
+            YLog.d(TAG, "virtual threads are not available, using platform threads");
+            return null;
+        }
+    }
+
+    /** Connection pool of {@link YeelightBasicConnection} using virtual thread sockets. */
+    public static class BasicPoolProvider extends YeelightBasicConnection.PoolProvider {
+        public BasicPoolProvider() {
+            super(FACTORY);
+        }
+    }
+
+    /** Connection pool of {@link YeelightTimerAutoConnection} using virtual thread sockets. */
+    public static class AutoPoolProvider extends YeelightTimerAutoConnection.PoolProvider {
+        public AutoPoolProvider() {
+            this(YeelightTimerAutoConnection.DEFAULT_IDLE_TIMEOUT_MS);
+        }
+
+        /** @param idleTimeoutMs time connections stay open after last command */
+        public AutoPoolProvider(long idleTimeoutMs) {
+            super(FACTORY, idleTimeoutMs);
+        }
+
+        /** @param lingerPolicy policy shared by all created connections */
+        public AutoPoolProvider(@NotNull YeelightLingerPolicy lingerPolicy) {
+            super(FACTORY, lingerPolicy);
+        }
+    }
+
+    /** Connection pool of {@link YeelightStripedConnection} using virtual thread sockets. */
+    public static class StripedPoolProvider extends YeelightStripedConnection.PoolProvider {
+        public StripedPoolProvider() {
+            this(YeelightStripedConnection.DEFAULT_STRIPES);
+        }
+
+        /** @param stripeCount amount of sockets of each connection, at least 2 */
+        public StripedPoolProvider(int stripeCount) {
+            super(stripeCount, FACTORY);
+        }
+    }
+
+    /** Starts each task on a new virtual thread. */
+    private static final class VirtualThreadExecutor implements Executor {
+        @NotNull
+        private final ThreadFactory factory;
+
+        private VirtualThreadExecutor(@NotNull ThreadFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public void execute(@NotNull Runnable command) {
+            factory.newThread(command).start();
+        }
+    }
+}
@@ -0,0 +1,595 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.PropHashMap;
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightCron;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightProp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reply parser that tokenizes raw bytes of a reply directly into {@link YeelightReply} without
+ * building intermediate JSON objects.<br>
+ * It recognizes same messages as {@link YeelightReplyParser.DefaultImpl}, with one difference:
+ * nested objects and arrays in results of generic replies are returned as their raw JSON strings.<br><br>
+ *
+ * Parser keeps state while parsing so a single instance must not be used by multiple threads at once,
+ * this is satisfied by sockets that parse everything on their reading thread.
+ * Set it with {@link YeelightSocket#setReplyParser(YeelightReplyParser)}.
+ */
+public class YeelightStreamingReplyParser extends YeelightReplyParser {
+    private static final String TAG = "YDStreamingParser";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] KEY_ID = bytes("id");
+    private static final byte[] KEY_RESULT = bytes("result");
+    private static final byte[] KEY_ERROR = bytes("error");
+    private static final byte[] KEY_METHOD = bytes("method");
+    private static final byte[] KEY_PARAMS = bytes("params");
+    private static final byte[] KEY_CODE = bytes("code");
+    private static final byte[] KEY_MESSAGE = bytes("message");
+    private static final byte[] KEY_TYPE = bytes("type");
+    private static final byte[] KEY_DELAY = bytes("delay");
+    private static final byte[] KEY_MIX = bytes("mix");
+    private static final byte[] VALUE_PROPS = bytes("props");
+    private static final byte[] VALUE_OK = bytes(YeelightReply.OK);
+    private static final YeelightProp[] PROPS = YeelightProp.values();
+    /** Names of all props, indexed by ordinal. */
+    private static final byte[][] PROP_NAMES = new byte[PROPS.length][];
+
+    static {
+        for (int i = 0; i < PROPS.length; i++) {
+            PROP_NAMES[i] = bytes(PROPS[i].name());
+        }
+    }
+
+    /** Thrown on malformed input, shared since its stack trace is never used. */
+    private static final MalformedReplyException MALFORMED = new MalformedReplyException();
+
+    public final long deviceId;
+
+    // state of current parse
+    private ByteBuffer buf;
+    private int pos;
+    private int end;
+    /** Start and end of last parsed key or string value. */
+    private int tokenStart, tokenEnd;
+    /** Raised if last string token contained escape sequences. */
+    private boolean tokenEscaped;
+    /** Scratch array for copying strings out of direct buffers. */
+    private byte[] scratch = new byte[64];
+    /** Holds values of generic result arrays, copied out when array ends. */
+    private Object[] values = new Object[4];
+
+    protected YeelightStreamingReplyParser(long deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Obtain streaming parser that will return given deviceId.
+     */
+    @NotNull
+    public static YeelightStreamingReplyParser obtain(long deviceId) {
+        return new YeelightStreamingReplyParser(deviceId);
+    }
+
+    @Nullable
+    @Override
+    public YeelightReply parse(@NotNull String json, @NotNull YeelightInFlightTable inFlight) {
+        return parse(ByteBuffer.wrap(json.getBytes(UTF_8)), inFlight);
+    }
+
+    @Nullable
+    @Override
+    public YeelightReply parse(@NotNull ByteBuffer line, @NotNull YeelightInFlightTable inFlight) {
+        buf = line;
+        pos = line.position();
+        end = line.limit();
+        try {
+            return parseMessage(inFlight);
+        } catch (MalformedReplyException | IllegalArgumentException e) {
+            YLog.e(TAG, "failed to parse: " + YeelightLineFramer.toString(line));
+            return null;
+        } finally {
+            buf = null;
+        }
+    }
+
+    /**
+     * Scan top level object remembering where values of interesting keys start, then parse
+     * them once id of the reply is known.
+     */
+    @Nullable
+    private YeelightReply parseMessage(@NotNull YeelightInFlightTable inFlight) {
+        boolean hasId = false;
+        int id = YeelightReply.NO_ID;
+        int resultAt = -1, errorAt = -1, paramsAt = -1;
+        boolean isProps = false;
+
+        if (!open('{', '}')) return null;
+        do {
+            readKey();
+            if (keyIs(KEY_ID)) {
+                hasId = true;
+                id = readIntOr(YeelightReply.NO_ID);
+            } else if (keyIs(KEY_RESULT)) {
+                resultAt = pos;
+                skipValue();
+            } else if (keyIs(KEY_ERROR)) {
+                errorAt = pos;
+                skipValue();
+            } else if (keyIs(KEY_METHOD)) {
+                isProps = peek() == '"' && readStringIs(VALUE_PROPS);
+                if (!isProps) skipValue();
+            } else if (keyIs(KEY_PARAMS)) {
+                paramsAt = pos;
+                skipValue();
+            } else {
+                skipValue();
+            }
+        } while (next('}'));
+
+        if (hasId) {
+            if (resultAt >= 0) {
+                YeelightCommand m = peekSent(inFlight, id);
+                pos = resultAt;
+                YeelightReply r;
+                // special case for two methods, they need to bounce values from request
+                if (m != null && m.method == YeelightMethod.get_prop) {
+                    r = parseGetPropResult(id, m.params);
+                } else if (m != null && m.method == YeelightMethod.cron_get) {
+                    r = parseCronGetResult(id);
+                } else {
+                    r = parseResult(id);
+                }
+                // removed only once reply is built, so command of malformed reply still times out
+                return r.withRequest(claimSent(inFlight, m));
+            } else if (errorAt >= 0) {
+                pos = errorAt;
+                YeelightReply error = parseError(id);
+                return error.withRequest(claimSent(inFlight, peekSent(inFlight, id)));
+            }
+            return null;
+        }
+        // messages without ID field are device updates
+        if (isProps && paramsAt >= 0) {
+            pos = paramsAt;
+            return new YeelightReply(deviceId, parseProps()).withRequest(null);
+        }
+        return null;
+    }
+
+    // for a simple reply, for example  {"id":1, "result":["ok"]}
+    @NotNull
+    private YeelightReply parseResult(int replyId) {
+        int count = 0;
+        if (open('[', ']')) {
+            do {
+                if (count == values.length) values = Arrays.copyOf(values, count * 2);
+                values[count++] = readValue();
+            } while (next(']'));
+        }
+        Object[] o = Arrays.copyOf(values, count);
+        Arrays.fill(values, 0, count, null);
+        return new YeelightReply(deviceId, replyId, o);
+    }
+
+    // for getProp exclusively, reply object order must match the request
+    @NotNull
+    private YeelightReply parseGetPropResult(int replyId, @Nullable Object[] requestedProps) {
+        PropHashMap p = new PropHashMap();
+        int i = 0;
+        if (open('[', ']')) {
+            do {
+                if (requestedProps != null && i < requestedProps.length
+                        && requestedProps[i] instanceof YeelightProp) {    //ignore invalid params
+                    putProp(p, (YeelightProp) requestedProps[i]);
+                } else {
+                    skipValue();
+                }
+                i++;
+            } while (next(']'));
+        }
+        return new YeelightReply(deviceId, replyId, p);
+    }
+
+    // parse getCron from reply
+    @NotNull
+    private YeelightReply parseCronGetResult(int replyId) {
+        if (!open('[', ']')) {
+            return new YeelightReply(deviceId, replyId, YeelightCron.NONE);
+        }
+        int type = 0, delay = 0, mix = 0;
+        if (open('{', '}')) {
+            do {
+                readKey();
+                if (keyIs(KEY_TYPE)) type = readIntOr(0);
+                else if (keyIs(KEY_DELAY)) delay = readIntOr(0);
+                else if (keyIs(KEY_MIX)) mix = readIntOr(0);
+                else skipValue();
+            } while (next('}'));
+        }
+        return new YeelightReply(deviceId, replyId, YeelightCron.from(type, delay, mix));
+    }
+
+    // error result
+    @NotNull
+    private YeelightReply parseError(int replyId) {
+        int code = 0;
+        String message = null;
+        if (open('{', '}')) {
+            do {
+                readKey();
+                if (keyIs(KEY_CODE)) {
+                    code = readIntOr(0);
+                } else if (keyIs(KEY_MESSAGE) && peek() == '"') {
+                    readString();
+                    message = tokenString();
+                } else {
+                    skipValue();
+                }
+            } while (next('}'));
+        }
+        if (message == null) throw MALFORMED;
+        return new YeelightReply(deviceId, replyId, code, message);
+    }
+
+    // prop update from the device, not matching any request
+    @NotNull
+    private PropHashMap parseProps() {
+        PropHashMap p = new PropHashMap();
+        if (open('{', '}')) {
+            do {
+                readKey();
+                YeelightProp prop = keyAsProp();
+                if (prop != null) putProp(p, prop);
+                else skipValue();
+            } while (next('}'));
+        }
+        return p;
+    }
+
+    /** Put next value into the map, numbers are stored without going through strings. */
+    private void putProp(@NotNull PropHashMap p, @NotNull YeelightProp prop) {
+        byte c = peek();
+        if (c == '"') {
+            readString();
+            p.put(prop, tokenString());
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            Object number = readNumber();
+            if (number instanceof Integer) p.putInt(prop, (Integer) number);
+            else p.put(prop, number.toString());
+        } else {
+            skipValue();
+        }
+    }
+
+    // ----------------------------- tokenizer -----------------------------
+
+    private byte peek() {
+        skipWhitespace();
+        if (pos >= end) throw MALFORMED;
+        return buf.get(pos);
+    }
+
+    private void expect(char c) {
+        if (peek() != c) throw MALFORMED;
+        pos++;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte c = buf.get(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') return;
+            pos++;
+        }
+    }
+
+    /**
+     * Consume opening bracket of object or array.
+     *
+     * @return true if it has any items
+     */
+    private boolean open(char open, char close) {
+        expect(open);
+        if (peek() == close) {
+            pos++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Consume separator after an item.
+     *
+     * @return true if another item follows, false if object or array was closed
+     */
+    private boolean next(char close) {
+        byte c = peek();
+        pos++;
+        if (c == ',') return true;
+        if (c == close) return false;
+        throw MALFORMED;
+    }
+
+    /** Read member key and following colon. Key is left in token. */
+    private void readKey() {
+        if (peek() != '"') throw MALFORMED;
+        readString();
+        expect(':');
+    }
+
+    private boolean keyIs(@NotNull byte[] key) {
+        if (tokenEscaped || tokenEnd - tokenStart != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(tokenStart + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    private YeelightProp keyAsProp() {
+        for (int i = 0; i < PROP_NAMES.length; i++) {
+            if (keyIs(PROP_NAMES[i])) return PROPS[i];
+        }
+        return null;
+    }
+
+    /** Read string and check if it's equal to given value. */
+    private boolean readStringIs(@NotNull byte[] value) {
+        readString();
+        return keyIs(value);
+    }
+
+    /** Read string token, its raw content (without quotes) is between token start and end. */
+    private void readString() {
+        pos++; // opening quote
+        tokenStart = pos;
+        tokenEscaped = false;
+        while (pos < end) {
+            byte c = buf.get(pos);
+            if (c == '"') {
+                tokenEnd = pos++;
+                return;
+            }
+            if (c == '\\') {
+                tokenEscaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        throw MALFORMED;
+    }
+
+    /** Decode last string token. */
+    @NotNull
+    private String tokenString() {
+        int length = tokenEnd - tokenStart;
+        if (tokenEscaped) return unescape();
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + tokenStart, length, UTF_8);
+        }
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buf.get(tokenStart + i);
+        }
+        return new String(scratch, 0, length, UTF_8);
+    }
+
+    @NotNull
+    private String unescape() {
+        int length = tokenEnd - tokenStart;
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        int n = 0;
+        for (int i = tokenStart; i < tokenEnd; i++) {
+            byte c = buf.get(i);
+            if (c != '\\') {
+                scratch[n++] = c;
+                continue;
+            }
+            c = buf.get(++i);
+            switch (c) {
+                case 'b': scratch[n++] = '\b'; break;
+                case 'f': scratch[n++] = '\f'; break;
+                case 'n': scratch[n++] = '\n'; break;
+                case 'r': scratch[n++] = '\r'; break;
+                case 't': scratch[n++] = '\t'; break;
+                case 'u':
+                    if (i + 4 >= tokenEnd) throw MALFORMED;
+                    int cp = 0;
+                    for (int k = 1; k <= 4; k++) {
+                        int digit = Character.digit(buf.get(i + k), 16);
+                        if (digit < 0) throw MALFORMED;
+                        cp = (cp << 4) | digit;
+                    }
+                    i += 4;
+                    // encode back to utf-8, escaped sequence is always longer than its encoding
+                    if (cp < 0x80) {
+                        scratch[n++] = (byte) cp;
+                    } else if (cp < 0x800) {
+                        scratch[n++] = (byte) (0xC0 | (cp >> 6));
+                        scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+                    } else {
+                        scratch[n++] = (byte) (0xE0 | (cp >> 12));
+                        scratch[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        scratch[n++] = (byte) (0x80 | (cp & 0x3F));
+                    }
+                    break;
+                default: // quote, backslash and slash
+                    scratch[n++] = c;
+            }
+        }
+        return new String(scratch, 0, n, UTF_8);
+    }
+
+    /** Read int value or return default value if it's not an int. */
+    private int readIntOr(int defaultValue) {
+        byte c = peek();
+        if (c != '-' && (c < '0' || c > '9')) {
+            skipValue();
+            return defaultValue;
+        }
+        Object number = readNumber();
+        return number instanceof Integer ? (Integer) number : defaultValue;
+    }
+
+    /**
+     * Read number as Integer, Long or Double matching what org.json would return.
+     */
+    @NotNull
+    private Object readNumber() {
+        int start = pos;
+        boolean negative = buf.get(pos) == '-';
+        if (negative) pos++;
+        long value = 0;
+        int digits = 0;
+        boolean overflow = false;
+        while (pos < end) {
+            int digit = buf.get(pos) - '0';
+            if (digit < 0 || digit > 9) break;
+            if (value < -922337203685477580L) overflow = true;
+            // accumulate negatively so Long.MIN_VALUE fits
+            value = value * 10 - digit;
+            if (value > 0) overflow = true;
+            digits++;
+            pos++;
+        }
+        if (digits == 0) throw MALFORMED;
+        if (pos < end) {
+            byte c = buf.get(pos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                // fractions are never sent by devices, don't bother parsing them by hand
+                while (pos < end && isNumberChar(buf.get(pos))) pos++;
+                return Double.valueOf(asciiString(start, pos));
+            }
+        }
+        if (overflow || (!negative && value == Long.MIN_VALUE)) {
+            return Double.valueOf(asciiString(start, pos));
+        }
+        if (!negative) value = -value;
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+        return value;
+    }
+
+    private static boolean isNumberChar(byte c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+';
+    }
+
+    @NotNull
+    private String asciiString(int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = from; i < to; i++) {
+            chars[i - from] = (char) buf.get(i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Read any value. Strings, numbers and literals are converted to their java values,
+     * objects and arrays are returned as raw JSON strings.
+     */
+    @Nullable
+    private Object readValue() {
+        byte c = peek();
+        switch (c) {
+            case '"':
+                readString();
+                // most replies are just "ok", don't allocate it
+                if (keyIs(VALUE_OK)) return YeelightReply.OK;
+                return tokenString();
+            case '{':
+            case '[': {
+                int start = pos;
+                skipValue();
+                return new String(rawBytes(start, pos), UTF_8);
+            }
+            case 't':
+                expectLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectLiteral("null");
+                return JSONObject.NULL;
+            default:
+                return readNumber();
+        }
+    }
+
+    private void expectLiteral(@NotNull String literal) {
+        if (end - pos < literal.length()) throw MALFORMED;
+        for (int i = 0; i < literal.length(); i++) {
+            if (buf.get(pos + i) != literal.charAt(i)) throw MALFORMED;
+        }
+        pos += literal.length();
+    }
+
+    @NotNull
+    private byte[] rawBytes(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buf.get(i);
+        }
+        return bytes;
+    }
+
+    /** Skip any value including nested objects and arrays. */
+    private void skipValue() {
+        byte c = peek();
+        if (c == '"') {
+            readString();
+            return;
+        }
+        if (c != '{' && c != '[') {
+            // number or literal
+            while (pos < end) {
+                c = buf.get(pos);
+                if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n')
+                    break;
+                pos++;
+            }
+            return;
+        }
+        int depth = 0;
+        while (pos < end) {
+            c = buf.get(pos);
+            if (c == '"') {
+                readString();
+                continue;
+            }
+            pos++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) return;
+            }
+        }
+        throw MALFORMED;
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull String s) {
+        return s.getBytes(UTF_8);
+    }
+
+    private static final class MalformedReplyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedReplyException() {
+            super("malformed reply");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
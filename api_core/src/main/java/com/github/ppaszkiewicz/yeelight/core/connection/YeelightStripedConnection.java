@@ -0,0 +1,438 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection that keeps several sockets ("stripes") to a single device to send more commands than
+ * quota of one connection allows, as device limits commands of each connection separately.<br>
+ * First stripe only receives property notifications, commands are spread over the others. All
+ * commands of a single method go thru the same stripe while any of them waits for a reply, so their
+ * order is kept. When method has no commands waiting it moves to the least loaded stripe. Command
+ * stops waiting once it completes in any way: with a reply, a failure or when it's superseded.<br><br>
+ *
+ * It must be manually connected and disconnected like {@link YeelightBasicConnection}. Connect and
+ * disconnect callbacks follow the notification stripe. Rate governor of this connection is not used,
+ * set governors of each stripe obtained with {@link #getStripe(int)} instead.
+ */
+public class YeelightStripedConnection extends YeelightConnection {
+    private final static String TAG = "YeeDeviceStripedConn";
+    /** Default amount of stripes: notification stripe and two command stripes. */
+    public final static int DEFAULT_STRIPES = 3;
+    /** Index of stripe receiving notifications. */
+    public final static int NOTIFICATION_STRIPE = 0;
+
+    @NotNull
+    private final Stripe[] stripes;
+    // routing state, guarded by this
+    /** Stripe and amount of commands waiting for reply of each method. */
+    private final HashMap<YeelightMethod, Route> routes = new HashMap<>();
+    /** Amount of commands waiting for reply on each stripe. */
+    private final int[] loads;
+    /** Amount of drains in progress, stripes are not reconnected while any is running. */
+    private final AtomicInteger drains = new AtomicInteger();
+    /** Completion hooks of each stripe. */
+    @NotNull
+    private final StripeHook[] hooks;
+
+    /** Connection pool of {@link YeelightStripedConnection}. */
+    public static class PoolProvider extends YeelightConnectionPool<YeelightStripedConnection> {
+        private final int stripeCount;
+        @Nullable
+        private final YeelightSocket.Factory socketFactory;
+
+        public PoolProvider() {
+            this(DEFAULT_STRIPES, null);
+        }
+
+        /**
+         * @param stripeCount   amount of sockets of each connection, at least 2
+         * @param socketFactory factory of sockets for created connections. If null Thread implementation is used.
+         */
+        public PoolProvider(int stripeCount, @Nullable YeelightSocket.Factory socketFactory) {
+            checkStripeCount(stripeCount);
+            this.stripeCount = stripeCount;
+            this.socketFactory = socketFactory;
+        }
+
+        @Override
+        protected YeelightStripedConnection instantiateConnection(@NotNull YeelightDevice device) {
+            return new YeelightStripedConnection(device, stripeCount, socketFactory);
+        }
+    }
+
+    public YeelightStripedConnection(@NotNull YeelightDevice device) {
+        this(device, DEFAULT_STRIPES, null);
+    }
+
+    /**
+     * Connection to the device that starts connecting immediately.
+     *
+     * @param stripeCount   amount of sockets, at least 2
+     * @param socketFactory factory of sockets of this connection. If null Thread implementation is used.
+     */
+    public YeelightStripedConnection(@NotNull YeelightDevice device, int stripeCount,
+                                     @Nullable YeelightSocket.Factory socketFactory) {
+        super(device);
+        checkStripeCount(stripeCount);
+        stripes = createStripes(stripeCount, socketFactory);
+        hooks = createHooks(stripeCount);
+        loads = new int[stripeCount];
+        connect();
+    }
+
+    /**
+     * @param stripeCount   amount of sockets, at least 2
+     * @param socketFactory factory of sockets of this connection. If null Thread implementation is used.
+     */
+    public YeelightStripedConnection(long deviceId, @NotNull String address, int port, int stripeCount,
+                                     @Nullable YeelightSocket.Factory socketFactory) {
+        super(deviceId, address, port);
+        checkStripeCount(stripeCount);
+        stripes = createStripes(stripeCount, socketFactory);
+        hooks = createHooks(stripeCount);
+        loads = new int[stripeCount];
+    }
+
+    private static void checkStripeCount(int stripeCount) {
+        if (stripeCount < 2) throw new IllegalArgumentException("at least 2 stripes are needed: " + stripeCount);
+    }
+
+    @NotNull
+    private Stripe[] createStripes(int count, @Nullable YeelightSocket.Factory socketFactory) {
+        Stripe[] s = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            s[i] = new Stripe(i, socketFactory);
+            s[i].addConnectionListenerInterceptor(new StripeListener(i));
+        }
+        return s;
+    }
+
+    @NotNull
+    private StripeHook[] createHooks(int count) {
+        StripeHook[] h = new StripeHook[count];
+        for (int i = 0; i < count; i++) {
+            h[i] = new StripeHook(i);
+        }
+        return h;
+    }
+
+    /** Amount of stripes, including the notification stripe. */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Connection of single stripe, for setting its rate governor or inspecting it. It must not be
+     * connected, disconnected or released directly.
+     */
+    @NotNull
+    public YeelightConnection getStripe(int index) {
+        return stripes[index];
+    }
+
+    /** Amount of commands waiting for reply on given stripe. */
+    public synchronized int getStripeLoad(int index) {
+        return loads[index];
+    }
+
+    /**
+     * Send commands, each thru the stripe of its method.
+     */
+    @Override
+    public void send(@NotNull YeelightCommand... commands) {
+        if (isReleased())
+            throw new IllegalStateException("This socket was released already " + deviceId);
+        if (commands.length == 0) return;
+        int first = -1;
+        boolean isSingleStripe = true;
+        int[] targets = new int[commands.length];
+        synchronized (this) {
+            for (int i = 0; i < commands.length; i++) {
+                targets[i] = route(commands[i]);
+                if (first == -1) first = targets[i];
+                else if (targets[i] != first) isSingleStripe = false;
+            }
+        }
+        if (isSingleStripe) {
+            sendOnStripe(first, commands);
+            return;
+        }
+        // keep commands of each stripe together, stripes are independent so their order doesn't matter
+        for (int s = 1; s < stripes.length; s++) {
+            ArrayList<YeelightCommand> batch = null;
+            for (int i = 0; i < commands.length; i++) {
+                if (targets[i] != s) continue;
+                if (batch == null) batch = new ArrayList<>();
+                batch.add(commands[i]);
+            }
+            if (batch != null) sendOnStripe(s, batch.toArray(new YeelightCommand[0]));
+        }
+    }
+
+    /**
+     * Choose stripe of command by its method and count it as waiting until it completes. Called while
+     * holding this.
+     */
+    private int route(@NotNull YeelightCommand command) {
+        YeelightMethod method = command.method;
+        Route r = routes.get(method);
+        if (r == null) {
+            r = new Route();
+            routes.put(method, r);
+        }
+        if (r.waiting == 0) r.stripe = leastLoadedStripe();
+        // command that completed already (sent again) is not counted
+        if (command.setCompletionHook(hooks[r.stripe])) {
+            r.waiting++;
+            loads[r.stripe]++;
+        }
+        return r.stripe;
+    }
+
+    /** Command stripe with least commands waiting, connected stripes are preferred on ties. */
+    private int leastLoadedStripe() {
+        int best = 1;
+        for (int s = 2; s < stripes.length; s++) {
+            if (loads[s] < loads[best] || (loads[s] == loads[best] && !stripes[best].isConnected() && stripes[s].isConnected())) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    private void sendOnStripe(int index, @NotNull YeelightCommand[] commands) {
+        Stripe s = stripes[index];
+        // commands are queued by the socket until it connects, closed stripe of a drain fails them
+        if (drains.get() == 0 && !s.isConnected() && !s.isConnecting()) connectStripe(s);
+        s.send(commands);
+    }
+
+    /** Command routed to given stripe completed. */
+    private synchronized void onStripeCommandDone(int index, @NotNull YeelightCommand command) {
+        Route r = routes.get(command.method);
+        if (r != null && r.stripe == index && r.waiting > 0) r.waiting--;
+        if (loads[index] > 0) loads[index]--;
+    }
+
+    private void connectStripe(@NotNull Stripe s) {
+        applySettings(s);
+        s.connect();
+    }
+
+    /** Copy settings of this connection to the stripe before it connects. */
+    private void applySettings(@NotNull Stripe s) {
+        s.setConnectTimeout(getConnectTimeout());
+        s.setIdleProbe(getIdleProbeInterval(), getIdleProbeTimeout());
+        s.setDefaultReplyTimeout(getDefaultReplyTimeout());
+    }
+
+    @Override
+    public void connect() {
+        if (isReleased())
+            throw new IllegalStateException("This socket was released already " + deviceId);
+        for (Stripe s : stripes) {
+            if (!s.isConnected() && !s.isConnecting()) connectStripe(s);
+        }
+    }
+
+    /**
+     * Connects notification stripe on current thread, command stripes connect asynchronously.
+     */
+    @Override
+    public void connectSync() throws Exception {
+        if (isReleased())
+            throw new IllegalStateException("This socket was released already " + deviceId);
+        for (int i = 1; i < stripes.length; i++) {
+            if (!stripes[i].isConnected() && !stripes[i].isConnecting()) connectStripe(stripes[i]);
+        }
+        Stripe n = stripes[NOTIFICATION_STRIPE];
+        applySettings(n);
+        n.connectSync();
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        IOException error = null;
+        for (Stripe s : stripes) {
+            try {
+                s.disconnect();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /** Drains all stripes, listener receives their summed counts once all of them are closed. */
+    @Override
+    public void drain(long timeoutMs, @Nullable DrainListener listener) {
+        drains.incrementAndGet();
+        StripesDrain d = new StripesDrain(listener);
+        for (Stripe s : stripes) {
+            s.drain(timeoutMs, d);
+        }
+    }
+
+    @Override
+    public boolean isConnecting() {
+        for (Stripe s : stripes) {
+            if (s.isConnecting()) return true;
+        }
+        return false;
+    }
+
+    /** True if notification stripe is connected. */
+    @Override
+    public boolean isConnected() {
+        return stripes[NOTIFICATION_STRIPE].isConnected();
+    }
+
+    @Override
+    public boolean isClosing() {
+        for (Stripe s : stripes) {
+            if (s.isClosing()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void onRelease() {
+        for (Stripe s : stripes) {
+            s.release();
+            s.tryDisconnect();
+        }
+    }
+
+    /** Sums drain results of all stripes. */
+    private final class StripesDrain implements DrainListener {
+        @Nullable
+        private final DrainListener listener;
+        // guarded by this
+        private int remaining = stripes.length;
+        private int completed = 0;
+        private int abandoned = 0;
+
+        StripesDrain(@Nullable DrainListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onDrained(long stripeDeviceId, int completed, int abandoned) {
+            int totalCompleted, totalAbandoned;
+            synchronized (this) {
+                totalCompleted = this.completed += completed;
+                totalAbandoned = this.abandoned += abandoned;
+                if (--remaining > 0) return;
+            }
+            drains.decrementAndGet();
+            if (listener != null) listener.onDrained(deviceId, totalCompleted, totalAbandoned);
+        }
+    }
+
+    /** Stops counting completed command as waiting on its stripe. */
+    private final class StripeHook implements YeelightCommand.CompletionHook {
+        private final int index;
+
+        StripeHook(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onCompleted(@NotNull YeelightCommand command) {
+            onStripeCommandDone(index, command);
+        }
+    }
+
+    /** Stripe route of a method. */
+    private static final class Route {
+        int stripe;
+        /** Commands of the method waiting for a reply. */
+        int waiting;
+    }
+
+    /**
+     * Socket of a single stripe. Message ids, round trip time and use are shared with the striped
+     * connection, so ids are unique across all stripes.
+     */
+    private final class Stripe extends YeelightBasicConnection {
+        final int index;
+
+        Stripe(int index, @Nullable YeelightSocket.Factory socketFactory) {
+            super(YeelightStripedConnection.this.deviceId, YeelightStripedConnection.this.address,
+                    YeelightStripedConnection.this.port, socketFactory);
+            this.index = index;
+        }
+
+        @Override
+        public int nextMessageId() {
+            return YeelightStripedConnection.this.nextMessageId();
+        }
+
+        @NotNull
+        @Override
+        public YeelightRttEstimator getRttEstimator() {
+            return YeelightStripedConnection.this.getRttEstimator();
+        }
+
+        @Override
+        void onCommandWritten(@NotNull YeelightCommand command, long nowNanos) {
+            super.onCommandWritten(command, nowNanos);
+            YeelightStripedConnection.this.onCommandWritten(command, nowNanos);
+        }
+    }
+
+    /**
+     * Forwards callbacks of a stripe to this connection. Notifications are only forwarded from
+     * notification stripe as device sends them to every connection.
+     */
+    private final class StripeListener extends ListenerInterceptor {
+        private final int index;
+
+        StripeListener(int index) {
+            super(TAG + index);
+            this.index = index;
+        }
+
+        @Override
+        public void onYeelightDeviceResponse(long deviceId, @NotNull YeelightReply deviceReply) {
+            if (deviceReply.id == YeelightReply.NO_ID && index != NOTIFICATION_STRIPE) return;
+            getCallbackParser().onYeelightDeviceResponse(deviceId, deviceReply);
+        }
+
+        @Override
+        public void onYeelightDeviceConnectionError(long deviceId, @NotNull Throwable exception, @Nullable YeelightCommand failedCommand) {
+            if (failedCommand != null) {
+                getCallbackParser().onYeelightDeviceConnectionError(deviceId, exception, failedCommand);
+                return;
+            }
+            if (index == NOTIFICATION_STRIPE) {
+                getCallbackParser().onYeelightDeviceConnectionError(deviceId, exception, null);
+            } else {
+                YLog.e(TAG, "stripe " + index + " of " + deviceId + " failed to connect: " + exception.getMessage());
+            }
+        }
+
+        @Override
+        public void onYeelightDeviceConnected(long deviceId) {
+            if (index == NOTIFICATION_STRIPE) getCallbackParser().onYeelightDeviceConnected(deviceId);
+        }
+
+        @Override
+        public void onYeelightDeviceDisconnected(long deviceId, @Nullable Throwable error) {
+            if (index == NOTIFICATION_STRIPE) {
+                getCallbackParser().onYeelightDeviceDisconnected(deviceId, error);
+                onDisconnected();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer shared by all connections. Scheduled {@link Timeout}s are kept in buckets of
+ * a wheel that a single thread advances every tick, so scheduling and cancelling is O(1) and any amount
+ * of timeouts costs a single thread.<br>
+ * Timeouts fire up to one tick late. Their tasks run on the timer thread so they should be short.<br><br>
+ *
+ * Timer thread is started with first scheduled timeout and waits without ticking while nothing is scheduled.
+ */
+public final class YeelightTimer {
+    private static final String TAG = "YeelightTimer";
+    /** Default duration of a single tick. */
+    public static final long DEFAULT_TICK_MS = 10;
+    /** Default amount of buckets, with default tick a single wheel turn is about 5 seconds. */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static YeelightTimer defaultTimer;
+
+    private final long tickNanos;
+    /** Head of linked list of each bucket. */
+    @NotNull
+    private final Timeout[] wheel;
+    private final int mask;
+    @NotNull
+    private final String threadName;
+    private final long startNanos = System.nanoTime();
+    /** Ticks that were processed. Guarded by this. */
+    private long tick = 0;
+    /** Amount of scheduled timeouts. Guarded by this. */
+    private int pendingCount = 0;
+    /** Timeouts that expired in current tick, only used by timer thread. */
+    private final ArrayList<Timeout> expired = new ArrayList<>();
+    @Nullable
+    private Thread thread;
+    private volatile boolean isShutdown = false;
+
+    /**
+     * Timer shared by all connections.
+     */
+    @NotNull
+    public static synchronized YeelightTimer getDefault() {
+        if (defaultTimer == null)
+            defaultTimer = new YeelightTimer(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, TAG);
+        return defaultTimer;
+    }
+
+    /**
+     * @param tickMs     duration of a single tick, this is the precision of the timer
+     * @param wheelSize  amount of buckets, rounded up to power of two
+     * @param threadName name of timer thread
+     */
+    public YeelightTimer(long tickMs, int wheelSize, @NotNull String threadName) {
+        if (tickMs < 1) throw new IllegalArgumentException("tick must be at least 1ms: " + tickMs);
+        if (wheelSize < 1) throw new IllegalArgumentException("wheel size must be positive: " + wheelSize);
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) size <<= 1;
+        wheel = new Timeout[size];
+        mask = size - 1;
+        this.threadName = threadName;
+    }
+
+    /** Duration of a single tick. */
+    public long getTickMs() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * Schedule timeout to run after given delay. If it's already scheduled it's moved to the new
+     * deadline instead, so single timeout object can be reused any amount of times.
+     *
+     * @throws IllegalStateException if timeout is scheduled on another timer or this timer is shut down
+     */
+    public synchronized void schedule(@NotNull Timeout timeout, long delayMs) {
+        if (isShutdown) throw new IllegalStateException("timer is shut down");
+        if (timeout.timer != null && timeout.timer != this && timeout.isPending())
+            throw new IllegalStateException("timeout is scheduled on another timer");
+        long now = System.nanoTime();
+        if (pendingCount == 0) {
+            // timer thread is idle and stopped ticking, catch up with current time
+            tick = Math.max(tick, (now - startNanos) / tickNanos);
+        }
+        if (timeout.bucket >= 0) {
+            unlink(timeout);
+        } else {
+            pendingCount++;
+        }
+        long deadline = now - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMs, 0));
+        // round up so timeout never fires early
+        long deadlineTick = Math.max((deadline + tickNanos - 1) / tickNanos, tick + 1);
+        timeout.timer = this;
+        timeout.deadlineTick = deadlineTick;
+        link(timeout, (int) (deadlineTick & mask));
+        if (thread == null) {
+            thread = new Thread(new Worker(), threadName);
+            thread.setDaemon(true);
+            thread.start();
+        } else if (pendingCount == 1) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Cancel timeout.
+     *
+     * @return true if timeout was scheduled on this timer and it did not run yet
+     */
+    public synchronized boolean cancel(@NotNull Timeout timeout) {
+        if (timeout.timer != this || timeout.bucket < 0) return false;
+        unlink(timeout);
+        pendingCount--;
+        return true;
+    }
+
+    /** Amount of scheduled timeouts. */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Stop the timer thread. Pending timeouts never run. Default timer cannot be shut down.
+     */
+    public void shutdown() {
+        if (this == defaultTimer) throw new IllegalStateException("default timer cannot be shut down");
+        synchronized (this) {
+            isShutdown = true;
+            notifyAll();
+        }
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    private void link(@NotNull Timeout timeout, int bucket) {
+        Timeout head = wheel[bucket];
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) head.prev = timeout;
+        wheel[bucket] = timeout;
+    }
+
+    private void unlink(@NotNull Timeout timeout) {
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else wheel[timeout.bucket] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.next = null;
+        timeout.prev = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * Wait for the next tick and collect timeouts that expired in it into {@link #expired}.
+     *
+     * @return false if timer was shut down
+     */
+    private boolean awaitTick() throws InterruptedException {
+        long nextTick;
+        synchronized (this) {
+            while (pendingCount == 0 && !isShutdown) {
+                wait();
+            }
+            nextTick = tick + 1;
+        }
+        long sleepNanos = startNanos + nextTick * tickNanos - System.nanoTime();
+        while (sleepNanos > 0 && !isShutdown) {
+            LockSupport.parkNanos(this, sleepNanos);
+            sleepNanos = startNanos + nextTick * tickNanos - System.nanoTime();
+        }
+        synchronized (this) {
+            if (isShutdown) return false;
+            // tick could have moved ahead if timer went idle and caught up while this was sleeping
+            tick = Math.max(tick, nextTick);
+            Timeout t = wheel[(int) (nextTick & mask)];
+            while (t != null) {
+                Timeout next = t.next;
+                // timeouts further than single wheel turn stay for next turns
+                if (t.deadlineTick <= nextTick) {
+                    unlink(t);
+                    pendingCount--;
+                    expired.add(t);
+                }
+                t = next;
+            }
+        }
+        return true;
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (awaitTick()) {
+                    for (int i = 0; i < expired.size(); i++) {
+                        try {
+                            expired.get(i).run();
+                        } catch (Throwable t) {
+                            YLog.e(TAG, "timeout task failed: " + t);
+                        }
+                    }
+                    expired.clear();
+                }
+            } catch (InterruptedException e) {
+                YLog.e(TAG, "timer thread interrupted");
+            }
+        }
+    }
+
+    /**
+     * Task that can be scheduled on a {@link YeelightTimer}. Same object can be scheduled again after
+     * it runs or while it's pending, so repeating timeouts don't need new objects.
+     */
+    public static abstract class Timeout implements Runnable {
+        // fields below are guarded by the timer
+        @Nullable
+        private YeelightTimer timer;
+        private Timeout next;
+        private Timeout prev;
+        /** Bucket this is linked in, -1 if it's not scheduled. */
+        private int bucket = -1;
+        private long deadlineTick;
+
+        /** True if this is scheduled and did not run yet. */
+        public boolean isPending() {
+            YeelightTimer t = timer;
+            if (t == null) return false;
+            synchronized (t) {
+                return bucket >= 0;
+            }
+        }
+
+        /**
+         * Cancel this timeout if it's scheduled.
+         *
+         * @return true if it was pending
+         */
+        public boolean cancel() {
+            YeelightTimer t = timer;
+            return t != null && t.cancel(this);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Auto connection that doesn't depend on Android, idle timeouts of all connections run on a single
+ * shared {@link YeelightTimer}.<br>
+ * Each connection reuses one timeout object, so sending only moves its deadline and doesn't allocate.
+ * Timeout runs on the timer thread.<br><br>
+ *
+ * With a {@link YeelightLingerPolicy} the timeout adapts to gaps between commands of the device
+ * instead of being fixed, and open sockets of all connections sharing the policy are capped.
+ */
+public class YeelightTimerAutoConnection extends YeelightAutoConnection {
+    /** Default time connection stays open after last command. */
+    public final static long DEFAULT_IDLE_TIMEOUT_MS = 3000;
+    @NotNull
+    private final YeelightTimer timer;
+    private final long idleTimeoutMs;
+    @Nullable
+    private final YeelightLingerPolicy lingerPolicy;
+    private final IdleTimeout idleTimeout = new IdleTimeout();
+    private final YeelightLingerPolicy.History history = new YeelightLingerPolicy.History(16);
+    private volatile long lingerMs;
+    private volatile boolean wasConnected = false;
+    private volatile long reconnectCount = 0;
+
+    /** Connection pool of {@link YeelightTimerAutoConnection}. */
+    public static class PoolProvider extends YeelightConnectionPool<YeelightTimerAutoConnection> {
+        @Nullable
+        private final YeelightSocket.Factory socketFactory;
+        private final long idleTimeoutMs;
+        @Nullable
+        private final YeelightLingerPolicy lingerPolicy;
+
+        public PoolProvider() {
+            this(null, DEFAULT_IDLE_TIMEOUT_MS);
+        }
+
+        /**
+         * @param socketFactory factory of sockets for created connections. If null Thread implementation is used.
+         * @param lingerPolicy  policy shared by all created connections
+         */
+        public PoolProvider(@Nullable YeelightSocket.Factory socketFactory, @NotNull YeelightLingerPolicy lingerPolicy) {
+            this.socketFactory = socketFactory;
+            this.idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+            this.lingerPolicy = lingerPolicy;
+        }
+
+        /**
+         * @param socketFactory factory of sockets for created connections. If null Thread implementation is used.
+         * @param idleTimeoutMs time connections stay open after last command
+         */
+        public PoolProvider(@Nullable YeelightSocket.Factory socketFactory, long idleTimeoutMs) {
+            if (idleTimeoutMs <= 0) throw new IllegalArgumentException("timeout must be positive: " + idleTimeoutMs);
+            this.socketFactory = socketFactory;
+            this.idleTimeoutMs = idleTimeoutMs;
+            this.lingerPolicy = null;
+        }
+
+        /** Linger policy shared by created connections or null. */
+        @Nullable
+        public YeelightLingerPolicy getLingerPolicy() {
+            return lingerPolicy;
+        }
+
+        @Override
+        protected YeelightTimerAutoConnection instantiateConnection(@NotNull YeelightDevice device) {
+            if (lingerPolicy != null) return new YeelightTimerAutoConnection(device, socketFactory, lingerPolicy);
+            return new YeelightTimerAutoConnection(device, socketFactory, idleTimeoutMs);
+        }
+    }
+
+    public YeelightTimerAutoConnection(@NotNull YeelightDevice device) {
+        this(device, null, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param socketFactory factory of socket for this connection. If null Thread implementation is used.
+     * @param idleTimeoutMs time connection stays open after last command
+     */
+    public YeelightTimerAutoConnection(@NotNull YeelightDevice device, @Nullable YeelightSocket.Factory socketFactory,
+                                       long idleTimeoutMs) {
+        this(device, socketFactory, idleTimeoutMs, null, YeelightTimer.getDefault());
+    }
+
+    /**
+     * @param socketFactory factory of socket for this connection. If null Thread implementation is used.
+     * @param lingerPolicy  policy choosing idle timeout, usually shared by all connections of a pool
+     */
+    public YeelightTimerAutoConnection(@NotNull YeelightDevice device, @Nullable YeelightSocket.Factory socketFactory,
+                                       @NotNull YeelightLingerPolicy lingerPolicy) {
+        this(device, socketFactory, DEFAULT_IDLE_TIMEOUT_MS, lingerPolicy, YeelightTimer.getDefault());
+    }
+
+    /**
+     * @param socketFactory factory of socket for this connection. If null Thread implementation is used.
+     * @param idleTimeoutMs time connection stays open after last command, ignored if there's a linger policy
+     * @param lingerPolicy  policy choosing idle timeout or null to use fixed one
+     * @param timer         timer running the idle timeout
+     */
+    public YeelightTimerAutoConnection(@NotNull YeelightDevice device, @Nullable YeelightSocket.Factory socketFactory,
+                                       long idleTimeoutMs, @Nullable YeelightLingerPolicy lingerPolicy,
+                                       @NotNull YeelightTimer timer) {
+        super(device, socketFactory);
+        if (idleTimeoutMs <= 0) throw new IllegalArgumentException("timeout must be positive: " + idleTimeoutMs);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.lingerPolicy = lingerPolicy;
+        this.timer = timer;
+        lingerMs = idleTimeoutMs;
+    }
+
+    @Override
+    protected void initInterceptors() {
+        super.initInterceptors();
+        addConnectionListenerInterceptor(ListenerInterceptor.of(new LingerListener()));
+    }
+
+    /** Fixed time connection stays open after last command, used without linger policy. */
+    public long getIdleTimeout() {
+        return idleTimeoutMs;
+    }
+
+    /** Linger policy of this connection or null. */
+    @Nullable
+    public YeelightLingerPolicy getLingerPolicy() {
+        return lingerPolicy;
+    }
+
+    /** Time connection stays open after the last command that was sent. */
+    public long getLingerMs() {
+        return lingerMs;
+    }
+
+    /** Amount of times a command had to open the socket again after it was closed. */
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    @Override
+    public void send(@NotNull YeelightCommand... commands) {
+        boolean isReconnect = wasConnected && !isConnected() && !isConnecting();
+        if (isReconnect) reconnectCount++;
+        YeelightLingerPolicy p = lingerPolicy;
+        if (p != null) p.onSend(this, history, isReconnect);
+        super.send(commands);
+    }
+
+    @Override
+    public void startTimeout(Runnable runnable) {
+        idleTimeout.runnable = runnable;
+        YeelightLingerPolicy p = lingerPolicy;
+        long linger = p != null ? p.lingerFor(history) : idleTimeoutMs;
+        lingerMs = linger;
+        // rescheduling moves the deadline of pending timeout
+        timer.schedule(idleTimeout, linger);
+    }
+
+    @Override
+    public void onConnectionTimedOut() {
+        YeelightLingerPolicy p = lingerPolicy;
+        if (p != null) p.onIdleClose();
+    }
+
+    @Override
+    public void cancelTimeout(Runnable runnable) {
+        idleTimeout.cancel();
+    }
+
+    /** Tracks open sockets in the linger policy. */
+    private final class LingerListener extends ListenerAdapter {
+        @Override
+        public void onYeelightDeviceConnected(long deviceId) {
+            wasConnected = true;
+            YeelightLingerPolicy p = lingerPolicy;
+            if (p == null) return;
+            YeelightTimerAutoConnection victim = p.onOpened(YeelightTimerAutoConnection.this);
+            if (victim != null) victim.tryDisconnect();
+        }
+
+        @Override
+        public void onYeelightDeviceDisconnected(long deviceId, @Nullable Throwable error) {
+            YeelightLingerPolicy p = lingerPolicy;
+            if (p != null) p.onClosed(YeelightTimerAutoConnection.this);
+        }
+    }
+
+    /** Runs the timeout runnable of the base class. */
+    private static final class IdleTimeout extends YeelightTimer.Timeout {
+        @Nullable
+        volatile Runnable runnable;
+
+        @Override
+        public void run() {
+            Runnable r = runnable;
+            if (r != null) r.run();
+        }
+    }
+}
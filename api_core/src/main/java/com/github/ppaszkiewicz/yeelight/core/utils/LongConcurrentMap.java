@@ -0,0 +1,281 @@
+package com.github.ppaszkiewicz.yeelight.core.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Concurrent map with primitive long keys, for maps that are read much more often than they are
+ * written, like connections by device id.<br>
+ * Reads don't lock or box the key: they probe an immutable open addressing table published thru a
+ * volatile field. Writes are serialized and replace the table with an updated copy, so they cost
+ * O(size). Because tables never change, {@link #snapshot()} can be iterated without copying.<br>
+ * Null values are not allowed.
+ */
+public final class LongConcurrentMap<V> {
+    private final static int MIN_CAPACITY = 16;
+    /** Current table, replaced on every write. */
+    private volatile Snapshot<V> table = new Snapshot<>(MIN_CAPACITY);
+
+    /** Value of given key or null. */
+    @Nullable
+    public V get(long key) {
+        return table.get(key);
+    }
+
+    public boolean containsKey(long key) {
+        return table.get(key) != null;
+    }
+
+    /** Amount of entries. */
+    public int size() {
+        return table.size;
+    }
+
+    public boolean isEmpty() {
+        return table.size == 0;
+    }
+
+    /**
+     * Associate value with the key.
+     *
+     * @return previous value or null
+     */
+    @Nullable
+    public synchronized V put(long key, @NotNull V value) {
+        Snapshot<V> t = table;
+        V old = t.get(key);
+        table = t.with(key, value, old == null);
+        return old;
+    }
+
+    /**
+     * Associate value with the key unless it already has one.
+     *
+     * @return existing value or null if value was added
+     */
+    @Nullable
+    public V putIfAbsent(long key, @NotNull V value) {
+        V existing = table.get(key);
+        if (existing != null) return existing;
+        synchronized (this) {
+            Snapshot<V> t = table;
+            existing = t.get(key);
+            if (existing != null) return existing;
+            table = t.with(key, value, true);
+            return null;
+        }
+    }
+
+    /**
+     * Get value of the key or create it if there's none. Factory is invoked at most once per missing
+     * key, while writes of this map are blocked.
+     */
+    @NotNull
+    public V computeIfAbsent(long key, @NotNull Factory<? extends V> factory) {
+        V existing = table.get(key);
+        if (existing != null) return existing;
+        synchronized (this) {
+            Snapshot<V> t = table;
+            existing = t.get(key);
+            if (existing != null) return existing;
+            V created = factory.create(key);
+            table = t.with(key, created, true);
+            return created;
+        }
+    }
+
+    /**
+     * Remove value of the key.
+     *
+     * @return removed value or null
+     */
+    @Nullable
+    public synchronized V remove(long key) {
+        Snapshot<V> t = table;
+        V old = t.get(key);
+        if (old != null) table = t.without(key);
+        return old;
+    }
+
+    /**
+     * Remove the key only if it's associated with given value.
+     *
+     * @return true if it was removed
+     */
+    public synchronized boolean remove(long key, @NotNull V value) {
+        Snapshot<V> t = table;
+        if (t.get(key) != value) return false;
+        table = t.without(key);
+        return true;
+    }
+
+    /** Remove all entries. */
+    public synchronized void clear() {
+        table = new Snapshot<>(MIN_CAPACITY);
+    }
+
+    /**
+     * Current content of the map. It's not affected by later writes and iterating it doesn't copy.
+     */
+    @NotNull
+    public Snapshot<V> snapshot() {
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return "LongConcurrentMap[" + table.size + "]";
+    }
+
+    /** Creates missing values for {@link #computeIfAbsent(long, Factory)}. */
+    public interface Factory<V> {
+        @NotNull
+        V create(long key);
+    }
+
+    /** Receives entries of a {@link Snapshot}. */
+    public interface Visitor<V> {
+        void visit(long key, @NotNull V value);
+    }
+
+    /**
+     * Immutable content of the map. Iterating its values doesn't copy them.
+     */
+    public static final class Snapshot<V> implements Iterable<V> {
+        private final long[] keys;
+        /** Values by slot, null for empty slot. */
+        private final Object[] values;
+        private final int mask;
+        private final int size;
+
+        Snapshot(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+            size = 0;
+        }
+
+        private Snapshot(long[] keys, Object[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.mask = keys.length - 1;
+            this.size = size;
+        }
+
+        /** Amount of entries. */
+        public int size() {
+            return size;
+        }
+
+        /** Value of given key or null. */
+        @Nullable
+        @SuppressWarnings("unchecked")
+        public V get(long key) {
+            int i = slot(key, mask);
+            Object v;
+            while ((v = values[i]) != null) {
+                if (keys[i] == key) return (V) v;
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        /** Pass all entries to the visitor. */
+        @SuppressWarnings("unchecked")
+        public void forEach(@NotNull Visitor<? super V> visitor) {
+            for (int i = 0; i < values.length; i++) {
+                Object v = values[i];
+                if (v != null) visitor.visit(keys[i], (V) v);
+            }
+        }
+
+        @NotNull
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        /** Copy with the key set to value. */
+        @NotNull
+        Snapshot<V> with(long key, @NotNull V value, boolean isNew) {
+            int newSize = isNew ? size + 1 : size;
+            // keep load factor at most 1/2 so probing stays short
+            int capacity = keys.length;
+            while (newSize * 2 > capacity) capacity <<= 1;
+            Snapshot<V> copy;
+            if (capacity == keys.length) {
+                copy = new Snapshot<>(keys.clone(), values.clone(), newSize);
+            } else {
+                copy = new Snapshot<>(new long[capacity], new Object[capacity], newSize);
+                copy.insertAll(this);
+            }
+            copy.insert(key, value);
+            return copy;
+        }
+
+        /** Copy without the key. */
+        @NotNull
+        Snapshot<V> without(long key) {
+            int capacity = keys.length;
+            while (capacity > MIN_CAPACITY && (size - 1) * 8 < capacity) capacity >>= 1;
+            Snapshot<V> copy = new Snapshot<>(new long[capacity], new Object[capacity], size - 1);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null && keys[i] != key) copy.insert(keys[i], values[i]);
+            }
+            return copy;
+        }
+
+        private void insertAll(@NotNull Snapshot<V> other) {
+            for (int i = 0; i < other.values.length; i++) {
+                if (other.values[i] != null) insert(other.keys[i], other.values[i]);
+            }
+        }
+
+        /** Insert or replace, only used while building new table. */
+        private void insert(long key, @NotNull Object value) {
+            int i = slot(key, mask);
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private static int slot(long key, int mask) {
+            // spread bits of the key, ids of devices are not uniformly distributed
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        private final class ValueIterator implements Iterator<V> {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < values.length && values[from] == null) from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (next >= values.length) throw new NoSuchElementException();
+                V v = (V) values[next];
+                next = advance(next + 1);
+                return v;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("snapshot can't be modified");
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.ppaszkiewicz.yeelight.core.values;
 
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommand;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommandEncoder;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -29,7 +30,7 @@ public final class YeelightCron {
      * Available delayed jobs.
      * Note: order is important (using ordinal).
      */
-    public enum Type implements YeelightCommand.CustomParam {
+    public enum Type implements YeelightCommand.EncodedParam {
         // uses ordinal value when sending
         /**
          * delay [minutes]
@@ -42,14 +43,27 @@ public final class YeelightCron {
         public void addToJSONArray(@NotNull JSONArray jsonArray) {
             jsonArray.put(ordinal());
         }
+
+        @Override
+        public void encodeTo(@NotNull YeelightCommandEncoder encoder) {
+            encoder.param(ordinal());
+        }
     }
 
     @NotNull
     public static YeelightCron fromJSON(@NotNull JSONObject json) throws JSONException{
-        return new YeelightCron(
-                Type.values[json.getInt("type")],
-                json.getInt("delay"),
-                json.getInt("mix")
-        );
+        return from(json.getInt("type"), json.getInt("delay"), json.getInt("mix"));
+    }
+
+    /**
+     * Create from raw values of cron_get reply.
+     *
+     * @throws IllegalArgumentException if type is unknown
+     */
+    @NotNull
+    public static YeelightCron from(int type, int delay, int mix) {
+        if (type < 0 || type >= Type.values.length)
+            throw new IllegalArgumentException("unknown cron type: " + type);
+        return new YeelightCron(Type.values[type], delay, mix);
     }
 }
@@ -2,17 +2,19 @@ package com.github.ppaszkiewicz.yeelight.core.values;
 
 import com.github.ppaszkiewicz.yeelight.core.YLog;
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommand;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommandEncoder;
 
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 
 /**
  * Device flow. Use builder to initialize.
  */
-public final class YeelightFlow implements YeelightCommand.CustomParam {
+public final class YeelightFlow implements YeelightCommand.EncodedParam {
     public static final int REPEAT_INFINITE = 0;
     public static final int BRIGHTNESS_IGNORE = -1;
 
@@ -21,6 +23,8 @@ public final class YeelightFlow implements YeelightCommand.CustomParam {
     private final int stepCount;
     @NotNull
     private final Element[] elements;
+    /** Params of this flow encoded once, flow is immutable so they can be reused. */
+    private byte[] encoded;
 
     /**
      * JsonArray to string (used in flow)
@@ -86,6 +90,24 @@ public final class YeelightFlow implements YeelightCommand.CustomParam {
         jsonArray.put(jsArrayToString(params));
     }
 
+    @Override
+    public void encodeTo(@NotNull YeelightCommandEncoder encoder) {
+        byte[] e = encoded;
+        if (e == null) {
+            // values are identical to ones added to json array
+            StringBuilder sb = new StringBuilder();
+            sb.append(stepCount).append(',').append(endAction.ordinal()).append(",\"");
+            for (int i = 0; i < elements.length; i++) {
+                if (i > 0) sb.append(',');
+                elements[i].appendTo(sb);
+            }
+            sb.append('"');
+            e = sb.toString().getBytes(Charset.forName("UTF-8"));
+            encoded = e;
+        }
+        encoder.rawParams(e);
+    }
+
 
     /**
      * Flow builder. By default flow runs once and recovers to current state.
@@ -310,5 +332,12 @@ public final class YeelightFlow implements YeelightCommand.CustomParam {
             jsonArray.put(value);
             jsonArray.put(brightness);
         }
+
+        private void appendTo(@NotNull StringBuilder sb) {
+            sb.append(duration).append(',')
+                    .append(elementMode.i).append(',')
+                    .append(value).append(',')
+                    .append(brightness);
+        }
     }
 }
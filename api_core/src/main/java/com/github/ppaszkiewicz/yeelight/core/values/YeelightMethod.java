@@ -1,6 +1,7 @@
 package com.github.ppaszkiewicz.yeelight.core.values;
 
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommand;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommandEncoder;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -15,31 +16,31 @@ import java.util.HashMap;
 public enum YeelightMethod {
     none(0), // placeholder value when no method is used
     get_prop(1),
-    set_ct_abx(1 << 2),
-    set_rgb(1 << 3),
-    set_hsv(1 << 4),
-    set_bright(1 << 5),
-    set_power(1 << 6),
+    set_ct_abx(1 << 2, true),
+    set_rgb(1 << 3, true),
+    set_hsv(1 << 4, true),
+    set_bright(1 << 5, true),
+    set_power(1 << 6, true),
     toggle(1 << 7),
     set_default(1 << 8),
-    start_cf(1 << 9),
-    stop_cf(1 << 10),
-    set_scene(1 << 11),
+    start_cf(1 << 9, true),
+    stop_cf(1 << 10, true),
+    set_scene(1 << 11, true),
     cron_add(1 << 12),
     cron_get(1 << 13),
     cron_del(1 << 14),
     set_adjust(1 << 15),
     set_music(1 << 16),
-    set_name(1 << 17),
-    bg_set_rgb(1 << 18),
-    bg_set_hsv(1 << 19),
-    bg_set_ct_abx(1 << 20),
-    bg_start_cf(1 << 21),
-    bg_stop_cf(1 << 22),
-    bg_set_scene(1 << 23),
+    set_name(1 << 17, true),
+    bg_set_rgb(1 << 18, true),
+    bg_set_hsv(1 << 19, true),
+    bg_set_ct_abx(1 << 20, true),
+    bg_start_cf(1 << 21, true),
+    bg_stop_cf(1 << 22, true),
+    bg_set_scene(1 << 23, true),
     bg_set_default(1 << 24),
-    bg_set_power(1 << 25),
-    bg_set_bright(1 << 26),
+    bg_set_power(1 << 25, true),
+    bg_set_bright(1 << 26, true),
     bg_set_adjust(1 << 27),
     bg_toggle(1 << 28),
     dev_toggle(1 << 29),
@@ -52,9 +53,20 @@ public enum YeelightMethod {
 
     /** Flag representing availability of this command.*/
     public final long flag;
+    /**
+     * True if this method sets state to a value given in its params, so newer command with this
+     * method makes older one that was not sent yet obsolete. Background channel has its own methods.<br>
+     * Relative, toggling and scheduling methods are not idempotent and always keep their order.
+     */
+    public final boolean isIdempotent;
 
     YeelightMethod(long flag){
+        this(flag, false);
+    }
+
+    YeelightMethod(long flag, boolean isIdempotent){
         this.flag = flag;
+        this.isIdempotent = isIdempotent;
     }
 
     /** Static values array without {@link #none} enum. */
@@ -105,7 +117,7 @@ public enum YeelightMethod {
 
     /** Available optional "mode" values for {@link #set_power}.
      * Note: order is important (using ordinal). */
-    public enum PowerMode implements YeelightCommand.CustomParam {
+    public enum PowerMode implements YeelightCommand.EncodedParam {
         /** Normal turn on operation (default value) */
         normal,
         ct_mode,
@@ -119,6 +131,11 @@ public enum YeelightMethod {
         public void addToJSONArray(@NotNull JSONArray jsonArray) {
             jsonArray.put(ordinal());
         }
+
+        @Override
+        public void encodeTo(@NotNull YeelightCommandEncoder encoder) {
+            encoder.param(ordinal());
+        }
     }
 
     /** Available Scene values. */
@@ -154,7 +171,7 @@ public enum YeelightMethod {
 
     /** Available action for {@link #set_music} command.
      * Note: order is important (using ordinal). */
-    public enum MusicMode implements YeelightCommand.CustomParam{
+    public enum MusicMode implements YeelightCommand.EncodedParam{
         turn_off,
         turn_on;
 
@@ -162,5 +179,10 @@ public enum YeelightMethod {
         public void addToJSONArray(@NotNull JSONArray jsonArray) {
             jsonArray.put(ordinal());
         }
+
+        @Override
+        public void encodeTo(@NotNull YeelightCommandEncoder encoder) {
+            encoder.param(ordinal());
+        }
     }
 }
@@ -0,0 +1,93 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local device for tests. Accepts any amount of connections and replies "ok" to every command.
+ */
+final class FakeDevice implements Closeable {
+    private final static Pattern ID = Pattern.compile("\"id\":(\\d+)");
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket server;
+    /** Amount of received commands. */
+    final AtomicInteger received = new AtomicInteger();
+
+    FakeDevice() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FakeDevice accept");
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    String getAddress() {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                final Socket s = server.accept();
+                startDaemon(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(s);
+                    }
+                }, "FakeDevice connection");
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(Socket s) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), UTF_8));
+            OutputStream out = s.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                received.incrementAndGet();
+                Matcher m = ID.matcher(line);
+                if (!m.find()) continue;
+                out.write(("{\"id\":" + m.group(1) + ",\"result\":[\"ok\"]}\r\n").getBytes(UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed by the socket under test
+        } finally {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void startDaemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightProp;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link YeelightStreamingReplyParser} with {@link YeelightReplyParser.DefaultImpl} on the
+ * replies a device usually sends. Tests only check that both parsers agree, run
+ * {@link #main(String[])} to measure time and allocations per reply.
+ */
+public class YeelightReplyParserBenchmark {
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static int GET_PROP_ID = 2;
+    private final static String[] REPLIES = {
+            "{\"id\":1,\"result\":[\"ok\"]}",
+            "{\"id\":" + GET_PROP_ID + ",\"result\":[\"on\",\"100\",\"4000\",\"16711680\"]}",
+            "{\"id\":3,\"error\":{\"code\":-1,\"message\":\"unsupported method\"}}",
+            "{\"method\":\"props\",\"params\":{\"power\":\"on\",\"bright\":\"50\"}}"
+    };
+
+    private final ByteBuffer[] lines = new ByteBuffer[REPLIES.length];
+    private final YeelightInFlightTable inFlight = new YeelightInFlightTable();
+    private final YeelightCommand getProp = new YeelightCommand(GET_PROP_ID, YeelightMethod.get_prop, null,
+            YeelightProp.power, YeelightProp.bright, YeelightProp.ct, YeelightProp.rgb);
+
+    public YeelightReplyParserBenchmark() {
+        for (int i = 0; i < REPLIES.length; i++) {
+            lines[i] = ByteBuffer.wrap(REPLIES[i].getBytes(UTF_8));
+        }
+    }
+
+    @Test
+    public void parsersAgree() {
+        YeelightReplyParser streaming = YeelightStreamingReplyParser.obtain(1);
+        YeelightReplyParser json = new YeelightReplyParser.DefaultImpl(1);
+        for (int i = 0; i < REPLIES.length; i++) {
+            YeelightReply expected = parse(json, i);
+            YeelightReply actual = parse(streaming, i);
+            assertNotNull(REPLIES[i], expected);
+            assertNotNull(REPLIES[i], actual);
+            assertEquals(REPLIES[i], expected.id, actual.id);
+            assertEquals(REPLIES[i], expected.ok, actual.ok);
+            assertEquals(REPLIES[i], expected.code, actual.code);
+            assertEquals(REPLIES[i], expected.message, actual.message);
+            assertEquals(REPLIES[i], expected.propHashMap, actual.propHashMap);
+            assertTrue(REPLIES[i], Arrays.equals(expected.results, actual.results));
+            assertEquals(REPLIES[i], expected.getCommand(), actual.getCommand());
+        }
+    }
+
+    @Test
+    public void harnessRuns() {
+        assertTrue(run(YeelightStreamingReplyParser.obtain(1), 1000) > 0);
+        assertTrue(run(new YeelightReplyParser.DefaultImpl(1), 1000) > 0);
+    }
+
+    /**
+     * Measure both parsers.
+     *
+     * @param args optional number of measured passes over all replies
+     */
+    public static void main(String[] args) {
+        int passes = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        YeelightReplyParserBenchmark bench = new YeelightReplyParserBenchmark();
+        YeelightReplyParser streaming = YeelightStreamingReplyParser.obtain(1);
+        YeelightReplyParser json = new YeelightReplyParser.DefaultImpl(1);
+        // warm up both before measuring either
+        bench.run(streaming, passes / 5);
+        bench.run(json, passes / 5);
+        bench.measure("streaming", streaming, passes);
+        bench.measure("json", json, passes);
+    }
+
+    private void measure(String name, YeelightReplyParser parser, int passes) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threads);
+        long start = System.nanoTime();
+        run(parser, passes);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes(threads) - allocatedBefore;
+        long replies = (long) passes * REPLIES.length;
+        System.out.println(name + ": " + (elapsed / replies) + " ns/reply"
+                + (allocatedBefore < 0 ? "" : ", " + (allocated / replies) + " B/reply"));
+    }
+
+    /** @return number of parsed replies, so the loop cannot be optimized away */
+    private int run(YeelightReplyParser parser, int passes) {
+        int parsed = 0;
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < REPLIES.length; i++) {
+                if (parse(parser, i) != null) parsed++;
+            }
+        }
+        return parsed;
+    }
+
+    private YeelightReply parse(YeelightReplyParser parser, int index) {
+        // get_prop reply is matched with its command, which is claimed by the parser
+        if (index == 1) inFlight.put(getProp);
+        ByteBuffer line = lines[index];
+        line.clear();
+        return parser.parse(line, inFlight);
+    }
+
+    /** Allocated bytes of current thread, or -1 if this JVM does not report them. */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
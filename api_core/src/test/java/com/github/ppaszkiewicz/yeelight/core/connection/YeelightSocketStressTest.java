@@ -0,0 +1,216 @@
+package com.github.ppaszkiewicz.yeelight.core.connection;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightMethod;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrent send, connect, disconnect and drain of a single socket. Every command must complete
+ * or fail exactly once and socket may only make valid state transitions.<br>
+ * Run it directly with {@link #main(String[])} to stress for longer.
+ */
+public class YeelightSocketStressTest {
+    private final static int SENDERS = 6;
+    private final static long DEFAULT_DURATION_MS = 2000;
+    private final static long SETTLE_TIMEOUT_MS = 15000;
+
+    private FakeDevice device;
+
+    @Before
+    public void setUp() throws Exception {
+        // churn makes sockets log a failure for almost every command
+        YLog.setInstance(new SilentLog());
+        device = new FakeDevice();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        device.close();
+        YLog.setInstance(null);
+    }
+
+    @Test
+    public void threadSocket() throws Exception {
+        stress(YeelightSocketThreadImpl.FACTORY, DEFAULT_DURATION_MS).check();
+    }
+
+    @Test
+    public void selectorSocket() throws Exception {
+        stress(YeelightSocketSelectorImpl.FACTORY, DEFAULT_DURATION_MS).check();
+    }
+
+    /**
+     * Stress both socket implementations.
+     *
+     * @param args optional duration of each run in milliseconds
+     */
+    public static void main(String[] args) throws Exception {
+        long durationMs = args.length > 0 ? Long.parseLong(args[0]) : 10000;
+        YeelightSocketStressTest test = new YeelightSocketStressTest();
+        test.setUp();
+        try {
+            System.out.println("thread: " + test.stress(YeelightSocketThreadImpl.FACTORY, durationMs));
+            System.out.println("selector: " + test.stress(YeelightSocketSelectorImpl.FACTORY, durationMs));
+        } finally {
+            test.tearDown();
+        }
+        System.exit(0);
+    }
+
+    private Result stress(YeelightSocket.Factory factory, long durationMs) throws Exception {
+        final YeelightBasicConnection conn = new YeelightBasicConnection(1, device.getAddress(), device.getPort(), factory);
+        conn.setDefaultReplyTimeout(2000);
+        final Result result = new Result();
+        conn.getSocket().setStateListener(new YeelightSocket.StateListener() {
+            @Override
+            public void onStateChanged(YeelightSocket<?> socket, YeelightSocket.State from, YeelightSocket.State to) {
+                result.onTransition(from, to);
+            }
+        });
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        YeelightCommand c = new YeelightCommand(conn.nextMessageId(), YeelightMethod.set_bright, null, 1);
+                        c.onReply(result.listener);
+                        result.sent.incrementAndGet();
+                        conn.send(c);
+                    }
+                }
+            }, "stress sender " + i));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                while (System.nanoTime() < end) {
+                    int action = random.nextInt(10);
+                    if (action < 5) {
+                        conn.connect();
+                    } else if (action < 9) {
+                        conn.tryDisconnect();
+                    } else {
+                        conn.drain(random.nextInt(5), null);
+                    }
+                    try {
+                        Thread.sleep(random.nextInt(5));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "stress churn"));
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        // commands still in flight complete with a reply or their reply timeout
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_TIMEOUT_MS);
+        while (result.unaccounted() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        conn.release();
+        conn.tryDisconnect();
+        return result;
+    }
+
+    private static boolean isValid(YeelightSocket.State from, YeelightSocket.State to) {
+        switch (to) {
+            case CONNECTING:
+                return from == YeelightSocket.State.IDLE || from == YeelightSocket.State.CLOSED;
+            case OPEN:
+                return from == YeelightSocket.State.CONNECTING;
+            case DRAINING:
+                return from == YeelightSocket.State.CONNECTING || from == YeelightSocket.State.OPEN;
+            case CLOSING:
+                return from == YeelightSocket.State.CONNECTING || from == YeelightSocket.State.OPEN
+                        || from == YeelightSocket.State.DRAINING;
+            case CLOSED:
+                return from != YeelightSocket.State.IDLE && from != YeelightSocket.State.CLOSED;
+            default:
+                return false;
+        }
+    }
+
+    private static final class SilentLog extends YLog {
+        SilentLog() {
+            super(false);
+        }
+
+        @Override
+        public void error(String tag, String message) {
+        }
+
+        @Override
+        public void debug(String tag, String message) {
+        }
+
+        @Override
+        public void info(String tag, String message) {
+        }
+
+        @Override
+        public void warning(String tag, String message) {
+        }
+    }
+
+    private static final class Result {
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger replied = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger invalidTransitions = new AtomicInteger();
+        final TreeMap<String, Integer> transitions = new TreeMap<>();
+        final YeelightCommand.ErrorListener listener = new YeelightCommand.ErrorListener() {
+            @Override
+            public void onReply(YeelightReply reply) {
+                replied.incrementAndGet();
+            }
+
+            @Override
+            public void onFailure(YeelightCommand command, Throwable error) {
+                failed.incrementAndGet();
+            }
+        };
+
+        void onTransition(YeelightSocket.State from, YeelightSocket.State to) {
+            if (!isValid(from, to)) invalidTransitions.incrementAndGet();
+            String key = from + ">" + to;
+            synchronized (transitions) {
+                Integer count = transitions.get(key);
+                transitions.put(key, count == null ? 1 : count + 1);
+            }
+        }
+
+        int unaccounted() {
+            return sent.get() - replied.get() - failed.get();
+        }
+
+        void check() {
+            assertTrue("nothing was sent", sent.get() > 0);
+            assertEquals("commands without reply or failure: " + this, 0, unaccounted());
+            assertEquals("invalid transitions: " + this, 0, invalidTransitions.get());
+        }
+
+        @Override
+        public String toString() {
+            synchronized (transitions) {
+                return "sent " + sent + ", replied " + replied + ", failed " + failed + ", invalid transitions "
+                        + invalidTransitions + " " + transitions;
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.github.ppaszkiewicz.yeelight.core.utils;
+
+import com.github.ppaszkiewicz.yeelight.core.YLog;
+import com.github.ppaszkiewicz.yeelight.core.YeelightDevice;
+import com.github.ppaszkiewicz.yeelight.core.connection.YeelightBasicConnection;
+import com.github.ppaszkiewicz.yeelight.core.values.YeelightDeviceModel;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares lookups of {@link LongConcurrentMap} with the synchronized {@link HashMap} that backed
+ * connection pool before, {@link ConcurrentHashMap} and the pool itself. Tests only check that map
+ * behaves like a {@link HashMap} and that the harness runs, run {@link #main(String[])} to measure
+ * throughput of concurrent lookups.
+ */
+public class LongConcurrentMapBenchmark {
+
+    @Test
+    public void behavesLikeHashMap() {
+        LongConcurrentMap<String> map = new LongConcurrentMap<>();
+        HashMap<Long, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            // small key range so removes and overwrites hit existing keys
+            long key = random.nextInt(200) - 100;
+            String value = "v" + i;
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                    break;
+                case 2:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, String> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void harnessRuns() throws Exception {
+        long[] keys = keys(16);
+        // releasing the pool logs every connection
+        YLog.getInstance().isEnabled = false;
+        try {
+            for (Lookup lookup : lookups(keys)) {
+                assertTrue(lookup.name, measure(lookup, keys, 2, 50) > 0);
+                lookup.release();
+            }
+        } finally {
+            YLog.getInstance().isEnabled = true;
+        }
+    }
+
+    /**
+     * Measure all lookups.
+     *
+     * @param args optional number of threads, number of keys and duration of each run in milliseconds
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long durationMs = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        long[] keys = keys(keyCount);
+        YLog.getInstance().isEnabled = false;
+        for (Lookup lookup : lookups(keys)) {
+            // warm up before measuring
+            measure(lookup, keys, threads, durationMs / 4);
+            long ops = measure(lookup, keys, threads, durationMs);
+            System.out.println(lookup.name + ": " + (ops * 1000 / durationMs / 1000) + "k lookups/s");
+            lookup.release();
+        }
+        System.exit(0);
+    }
+
+    /** Spread out device ids, like the ones received from discovery. */
+    private static long[] keys(int count) {
+        Random random = new Random(7);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextLong() & 0xFFFFFFFFL;
+        }
+        return keys;
+    }
+
+    private static Lookup[] lookups(long[] keys) {
+        final LongConcurrentMap<Object> longMap = new LongConcurrentMap<>();
+        final HashMap<Long, Object> hashMap = new HashMap<>();
+        final ConcurrentHashMap<Long, Object> concurrentMap = new ConcurrentHashMap<>();
+        final YeelightBasicConnection.PoolProvider pool = new YeelightBasicConnection.PoolProvider();
+        final HashMap<Long, YeelightDevice> devices = new HashMap<>();
+        for (long key : keys) {
+            Object value = new Object();
+            longMap.put(key, value);
+            hashMap.put(key, value);
+            concurrentMap.put(key, value);
+            YeelightDevice device = new YeelightDevice(key, YeelightDeviceModel.UNSPECIFIED, "127.0.0.1", 55443);
+            devices.put(key, device);
+            // connection is only created, it never connects
+            pool.getConnection(device);
+        }
+        return new Lookup[]{
+                new Lookup("LongConcurrentMap") {
+                    @Override
+                    Object get(long key) {
+                        return longMap.get(key);
+                    }
+                },
+                new Lookup("synchronized HashMap") {
+                    @Override
+                    Object get(long key) {
+                        synchronized (hashMap) {
+                            return hashMap.get(key);
+                        }
+                    }
+                },
+                new Lookup("ConcurrentHashMap") {
+                    @Override
+                    Object get(long key) {
+                        return concurrentMap.get(key);
+                    }
+                },
+                new Lookup("pool getConnection") {
+                    @Override
+                    Object get(long key) {
+                        // device lookup is not part of the pool, but boxes the key like the maps above
+                        return pool.getConnection(devices.get(key));
+                    }
+
+                    @Override
+                    void release() {
+                        pool.release();
+                    }
+                }
+        };
+    }
+
+    /** @return amount of lookups done by all threads that found a value */
+    private static long measure(final Lookup lookup, final long[] keys, int threads, long durationMs) throws InterruptedException {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread("bench-" + t) {
+                @Override
+                public void run() {
+                    long found = 0;
+                    try {
+                        start.await();
+                        long end = deadline[0];
+                        int i = offset % keys.length;
+                        while (System.nanoTime() < end) {
+                            // check time every few lookups so clock is not measured instead of lookup
+                            for (int j = 0; j < 64; j++) {
+                                if (lookup.get(keys[i]) != null) found++;
+                                if (++i == keys.length) i = 0;
+                            }
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        total.addAndGet(found);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        deadline[0] = System.nanoTime() + durationMs * 1000000;
+        start.countDown();
+        done.await();
+        return total.get();
+    }
+
+    private abstract static class Lookup {
+        final String name;
+
+        Lookup(String name) {
+            this.name = name;
+        }
+
+        /** Value of given key, never null for benchmarked keys. */
+        abstract Object get(long key);
+
+        /** Release resources after measuring. */
+        void release() {
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.github.ppaszkiewicz.yeelight.core.connection.YeelightCommand
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightConnection
 import com.github.ppaszkiewicz.yeelight.core.connection.YeelightSocket
 import kotlinx.coroutines.*
+import java.util.concurrent.atomic.AtomicInteger
 
 /** Yeelight socket implemented on coroutines instead of threads. */
 open class YeelightSocketCoroutineImpl<T : YeelightConnection>(
@@ -15,9 +16,22 @@ open class YeelightSocketCoroutineImpl<T : YeelightConnection>(
 
     override val coroutineContext = SupervisorJob()
     private var listenerJob: Job? = null
+    /** Writes launched but not finished yet. */
+    private val pendingWrites = AtomicInteger()
 
     override fun writeAsync(vararg msg: YeelightCommand) {
-        launch(Dispatchers.IO) { writeImpl(*msg) }
+        pendingWrites.incrementAndGet()
+        launch(Dispatchers.IO) {
+            try {
+                writeImpl(*msg)
+            } finally {
+                if (pendingWrites.decrementAndGet() == 0) onWriterIdle()
+            }
+        }
+    }
+
+    override fun hasUnsentCommands(): Boolean {
+        return pendingWrites.get() > 0
     }
 
     override fun startListeningOnAsync() {